@@ -0,0 +1,65 @@
+package com.manorrock.assistant.benchmarks;
+
+import com.manorrock.assistant.shared.ChatMessage;
+import com.manorrock.assistant.shared.ContextWindow;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Trims the history to the token budget: a full window receives a turn and
+ * drops its oldest messages, and a window is rebuilt from a stored history
+ * as the CLI does at startup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextWindowBenchmark {
+
+    private List<ChatMessage> stored;
+
+    private ContextWindow<ChatMessage> window;
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        stored = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            stored.add(new ChatMessage(i % 2 == 0 ? "user" : "assistant", Fixtures.message(i)));
+        }
+        window = newWindow();
+        stored.forEach(window::add);
+    }
+
+    @Benchmark
+    public int addTurn() {
+        window.add(stored.get(next++ % stored.size()));
+        window.add(stored.get(next++ % stored.size()));
+        return window.size();
+    }
+
+    @Benchmark
+    public int rebuild() {
+        ContextWindow<ChatMessage> rebuilt = newWindow();
+        stored.forEach(rebuilt::add);
+        return rebuilt.messages().size();
+    }
+
+    private static ContextWindow<ChatMessage> newWindow() {
+        return new ContextWindow<>(4096, message -> ContextWindow.estimateTokens(message.content()), ChatMessage::role);
+    }
+}
@@ -0,0 +1,169 @@
+package com.manorrock.assistant.benchmarks;
+
+import com.example.ConversationJournal;
+import com.manorrock.assistant.shared.ChatMessage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The CLI's {@code loadState}/{@code saveState} round trip on
+ * {@link ConversationJournal}: load a journal holding a long conversation,
+ * read the history window, append a turn and update the settings.
+ *
+ * <p>
+ * The benchmarks that write run on a fresh copy of a state directory built
+ * once per trial, so every invocation starts from the same journal instead
+ * of one that grows with the run and compacts in the middle of it. The
+ * compaction an append triggers once the index passes its threshold is
+ * measured on its own by {@link #compaction(FullCopy)}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversationJournalBenchmark {
+
+    /**
+     * The entries {@link ConversationJournal} compacts above.
+     */
+    private static final int COMPACT_THRESHOLD = 10_000;
+
+    @Param({"1000"})
+    public int storedMessages;
+
+    private Path stateDir;
+
+    private Path fullStateDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        stateDir = createStateDir(storedMessages);
+        fullStateDir = createStateDir(COMPACT_THRESHOLD);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        delete(stateDir);
+        delete(fullStateDir);
+    }
+
+    /**
+     * A copy of the state directory with {@code storedMessages} messages.
+     */
+    @State(Scope.Thread)
+    public static class Copy {
+
+        Path stateDir;
+
+        @Setup(Level.Invocation)
+        public void setUp(ConversationJournalBenchmark benchmark) throws IOException {
+            stateDir = copy(benchmark.stateDir);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws IOException {
+            delete(stateDir);
+        }
+    }
+
+    /**
+     * A copy of the state directory with as many messages as the journal
+     * holds before it compacts.
+     */
+    @State(Scope.Thread)
+    public static class FullCopy {
+
+        Path stateDir;
+
+        @Setup(Level.Invocation)
+        public void setUp(ConversationJournalBenchmark benchmark) throws IOException {
+            stateDir = copy(benchmark.fullStateDir);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws IOException {
+            delete(stateDir);
+        }
+    }
+
+    @Benchmark
+    public int loadState() throws IOException {
+        ConversationJournal journal = new ConversationJournal(stateDir, 200);
+        journal.load();
+        List<ChatMessage> history = journal.getHistory();
+        int length = 0;
+        for (ChatMessage message : history) {
+            length += message.content().length();
+        }
+        return length;
+    }
+
+    @Benchmark
+    public int roundTrip(Copy copy) throws IOException {
+        ConversationJournal journal = new ConversationJournal(copy.stateDir, 200);
+        journal.load();
+        int size = journal.getHistory().size();
+        journal.append(ChatMessage.user(Fixtures.message(storedMessages)));
+        journal.append(ChatMessage.assistant(Fixtures.message(storedMessages + 1)));
+        journal.updateSettings("session", "http://localhost:11434/api/chat", "mistral");
+        return size;
+    }
+
+    @Benchmark
+    public int compaction(FullCopy copy) throws IOException {
+        ConversationJournal journal = new ConversationJournal(copy.stateDir, 200);
+        journal.load();
+        journal.append(ChatMessage.user(Fixtures.message(COMPACT_THRESHOLD)));
+        return journal.getHistory().size();
+    }
+
+    private static Path createStateDir(int messages) throws IOException {
+        Path dir = Files.createTempDirectory("journal-benchmark");
+        ConversationJournal journal = new ConversationJournal(dir, 200);
+        journal.load();
+        for (int i = 0; i < messages; i++) {
+            journal.append(new ChatMessage(i % 2 == 0 ? "user" : "assistant", Fixtures.message(i)));
+        }
+        journal.updateSettings("session", "http://localhost:11434/api/chat", "llama3");
+        return dir;
+    }
+
+    private static Path copy(Path source) throws IOException {
+        Path dir = Files.createTempDirectory("journal-benchmark");
+        try (Stream<Path> files = Files.list(source)) {
+            for (Path file : files.toList()) {
+                Files.copy(file, dir.resolve(file.getFileName()));
+            }
+        }
+        return dir;
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.manorrock.assistant.benchmarks;
+
+/**
+ * Realistic chat message contents shared by the benchmarks.
+ */
+public final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /**
+     * Returns the content of the i-th message of a conversation: short
+     * questions, longer answers and now and then a pasted code snippet.
+     *
+     * @param i the message index
+     * @return the content
+     */
+    public static String message(int i) {
+        if (i % 2 == 0) {
+            return "Question " + i + ": why does the \"build\" fail with exit code 1 after the upgrade?";
+        }
+        StringBuilder answer = new StringBuilder("Answer ").append(i).append(": ");
+        for (int line = 0; line < 8; line++) {
+            answer.append("Check the dependency versions and rerun the build with -e to see the cause. ");
+        }
+        if (i % 5 == 0) {
+            answer.append("\n```java\npublic static void main(String[] args) {\n\tSystem.out.println(\"hello\");\n}\n```\n");
+        }
+        return answer.toString();
+    }
+}
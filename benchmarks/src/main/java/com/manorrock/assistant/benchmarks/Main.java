@@ -0,0 +1,32 @@
+package com.manorrock.assistant.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the allocation profiler enabled.
+ *
+ * <p>
+ * Accepts the usual JMH command line, e.g. a benchmark regex or
+ * {@code -f 1 -wi 3 -i 5}. The {@link GCProfiler} is always added, so every
+ * result comes with {@code gc.alloc.rate.norm}, the bytes allocated per
+ * operation, which catches allocation regressions that timings hide.
+ * </p>
+ */
+public final class Main {
+
+    private Main() {
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder()
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
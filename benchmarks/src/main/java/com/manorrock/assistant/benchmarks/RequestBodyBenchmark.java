@@ -0,0 +1,68 @@
+package com.manorrock.assistant.benchmarks;
+
+import com.manorrock.assistant.shared.ChatCodec;
+import com.manorrock.assistant.shared.ChatMessage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Builds the chat request body from a conversation history, with the shared
+ * {@link ChatCodec} used by the CLI and with org.json as the IDE plugins do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBodyBenchmark {
+
+    @Param({"50"})
+    public int messages;
+
+    private List<ChatMessage> history;
+
+    private List<JSONObject> jsonHistory;
+
+    @Setup
+    public void setUp() {
+        history = new ArrayList<>();
+        jsonHistory = new ArrayList<>();
+        for (int i = 0; i < messages; i++) {
+            String role = i % 2 == 0 ? "user" : "assistant";
+            String content = Fixtures.message(i);
+            history.add(new ChatMessage(role, content));
+            jsonHistory.add(new JSONObject().put("role", role).put("content", content));
+        }
+    }
+
+    @Benchmark
+    public String chatCodec() {
+        return ChatCodec.ollamaRequest("llama3", history, 0.0, "30m", "session");
+    }
+
+    @Benchmark
+    public String orgJson() {
+        JSONObject jsonInput = new JSONObject();
+        jsonInput.put("model", "llama3");
+        jsonInput.put("messages", new JSONArray(jsonHistory));
+        jsonInput.put("stream", true);
+        jsonInput.put("session_id", "session");
+        jsonInput.put("keep_alive", "30m");
+        return jsonInput.toString();
+    }
+}
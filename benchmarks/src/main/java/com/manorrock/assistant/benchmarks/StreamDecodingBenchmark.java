@@ -0,0 +1,81 @@
+package com.manorrock.assistant.benchmarks;
+
+import com.manorrock.assistant.shared.OllamaStreamDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decodes a streamed Ollama answer the way the CLI does in
+ * {@code processMessage}: NDJSON lines split across network chunks are fed
+ * to {@link OllamaStreamDecoder} and every content delta reaches a listener.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamDecodingBenchmark {
+
+    @Param({"500"})
+    public int tokens;
+
+    @Param({"64", "4096"})
+    public int chunkSize;
+
+    private List<byte[]> chunks;
+
+    @Setup
+    public void setUp() {
+        StringBuilder stream = new StringBuilder();
+        for (int i = 0; i < tokens; i++) {
+            stream.append("{\"model\":\"llama3\",\"created_at\":\"2025-03-01T12:00:00.000000Z\",")
+                    .append("\"message\":{\"role\":\"assistant\",\"content\":\"tok")
+                    .append(i).append(i % 10 == 0 ? " \\\"quoted\\\" \\u00e9" : " ")
+                    .append("\"},\"done\":false}\n");
+        }
+        stream.append("{\"model\":\"llama3\",\"message\":{\"role\":\"assistant\",\"content\":\"\"},\"done\":true}\n");
+        byte[] bytes = stream.toString().getBytes(StandardCharsets.UTF_8);
+        chunks = new ArrayList<>();
+        for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+            byte[] chunk = new byte[Math.min(chunkSize, bytes.length - offset)];
+            System.arraycopy(bytes, offset, chunk, 0, chunk.length);
+            chunks.add(chunk);
+        }
+    }
+
+    @Benchmark
+    public String decode(Blackhole blackhole) throws Exception {
+        OllamaStreamDecoder decoder = new OllamaStreamDecoder(blackhole::consume);
+        decoder.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+        for (byte[] chunk : chunks) {
+            decoder.onNext(List.of(ByteBuffer.wrap(chunk)));
+        }
+        decoder.onComplete();
+        return decoder.getBody().toCompletableFuture().get();
+    }
+}
@@ -0,0 +1,113 @@
+package com.manorrock.assistant.benchmarks;
+
+import com.example.CLIController;
+import com.example.ConversationJournal;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.UUID;
+import picocli.CommandLine;
+
+/**
+ * Drives {@link CLIController} in-process the way one user calling
+ * {@code assistant-cli "message"} in a loop would.
+ *
+ * <p>
+ * Each client keeps its own {@link ConversationJournal}, so the history
+ * grows and is trimmed across calls as it would on disk. The time to the
+ * first token is taken when the CLI prints {@code Assistant:}, the answer
+ * ends when the command returns.
+ * </p>
+ */
+public final class CLILoadClient {
+
+    private static final byte[] ASSISTANT = "Assistant: ".getBytes(StandardCharsets.UTF_8);
+
+    private static final String UNAVAILABLE = "Ollama is unavailable";
+
+    private final ConversationJournal journal;
+
+    private final Path workingDir;
+
+    private final String model;
+
+    private final Duration firstTokenTimeout;
+
+    private final Duration idleTimeout;
+
+    /**
+     * Constructor.
+     *
+     * @param stateDir the state directory of this client
+     * @param endpoint the Ollama chat endpoint
+     * @param model the model
+     * @param firstTokenTimeout how long the CLI waits for the first token
+     * @param idleTimeout how long the CLI waits for each later token
+     * @throws IOException when the state cannot be written
+     */
+    public CLILoadClient(Path stateDir, String endpoint, String model, Duration firstTokenTimeout,
+            Duration idleTimeout) throws IOException {
+        this.journal = new ConversationJournal(stateDir, 200);
+        this.workingDir = stateDir;
+        this.model = model;
+        this.firstTokenTimeout = firstTokenTimeout;
+        this.idleTimeout = idleTimeout;
+        journal.load();
+        journal.updateSettings(UUID.randomUUID().toString(), endpoint, model);
+    }
+
+    /**
+     * Sends one message through the CLI.
+     *
+     * @param message the message
+     * @param tokens the tokens the answer is expected to have
+     * @return the timing of the answer
+     */
+    public Sample call(String message, int tokens) {
+        TimingOutputStream output = new TimingOutputStream();
+        PrintStream out = new PrintStream(output, false, StandardCharsets.UTF_8);
+        CLIController controller = new CLIController(journal, out, new ByteArrayInputStream(new byte[0]), workingDir);
+        long start = System.nanoTime();
+        int exitCode = new CommandLine(controller).execute("--no-daemon", "--no-cache", "-m", model,
+                "--first-token-timeout", String.valueOf(firstTokenTimeout.toSeconds()),
+                "--idle-timeout", String.valueOf(idleTimeout.toSeconds()), message);
+        out.flush();
+        long duration = System.nanoTime() - start;
+        if (exitCode != 0 || output.firstToken == 0 || output.toString(StandardCharsets.UTF_8).contains(UNAVAILABLE)) {
+            return Sample.failure(duration);
+        }
+        return new Sample(output.firstToken - start, duration, tokens, false);
+    }
+
+    /**
+     * Captures the output and notes when the answer starts.
+     */
+    private static final class TimingOutputStream extends ByteArrayOutputStream {
+
+        private long firstToken;
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) {
+            if (firstToken == 0 && startsWith(bytes, offset, length)) {
+                firstToken = System.nanoTime();
+            }
+            super.write(bytes, offset, length);
+        }
+
+        private static boolean startsWith(byte[] bytes, int offset, int length) {
+            if (length < ASSISTANT.length) {
+                return false;
+            }
+            for (int i = 0; i < ASSISTANT.length; i++) {
+                if (bytes[offset + i] != ASSISTANT[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
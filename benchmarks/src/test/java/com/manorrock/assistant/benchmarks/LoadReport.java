@@ -0,0 +1,107 @@
+package com.manorrock.assistant.benchmarks;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Percentiles of the samples collected by a load test run.
+ *
+ * <p>
+ * The time to first token is reported at p50, p90, p99 and its maximum. For
+ * the token rate the slow tail is what hurts, so its p90 and p99 are the
+ * rates 90% and 99% of the answers streamed at least as fast as, followed by
+ * the slowest answer.
+ * </p>
+ */
+public final class LoadReport {
+
+    private final List<Sample> samples = new ArrayList<>();
+
+    private long wallNanos;
+
+    /**
+     * Adds a sample.
+     *
+     * @param sample the sample
+     */
+    public synchronized void add(Sample sample) {
+        samples.add(sample);
+    }
+
+    /**
+     * Ends the run.
+     *
+     * @param wallNanos the wall time of the run in nanoseconds
+     */
+    public synchronized void finish(long wallNanos) {
+        this.wallNanos = wallNanos;
+    }
+
+    /**
+     * Returns the number of requests measured.
+     *
+     * @return the number of requests
+     */
+    public synchronized int requests() {
+        return samples.size();
+    }
+
+    /**
+     * Returns the number of measured requests that failed, stalled streams
+     * the client gave up on included.
+     *
+     * @return the number of failures
+     */
+    public synchronized int failures() {
+        return (int) samples.stream().filter(Sample::failed).count();
+    }
+
+    /**
+     * Returns the tokens received by the requests that succeeded.
+     *
+     * @return the number of tokens
+     */
+    public synchronized long tokens() {
+        return samples.stream().filter(sample -> !sample.failed()).mapToLong(Sample::tokens).sum();
+    }
+
+    /**
+     * Prints the report.
+     *
+     * @param out the output
+     */
+    public synchronized void print(PrintStream out) {
+        List<Sample> succeeded = samples.stream().filter(sample -> !sample.failed()).toList();
+        double[] timeToFirstToken = succeeded.stream().mapToDouble(sample -> sample.timeToFirstToken() / 1e6).sorted().toArray();
+        double[] tokensPerSecond = succeeded.stream().mapToDouble(Sample::tokensPerSecond).sorted().toArray();
+        long tokens = succeeded.stream().mapToLong(Sample::tokens).sum();
+        double seconds = wallNanos / 1e9;
+        out.printf("requests: %d, failed: %d, wall time: %.2f s, throughput: %.1f requests/s, %.0f tokens/s%n",
+                samples.size(), samples.size() - succeeded.size(), seconds,
+                succeeded.size() / seconds, tokens / seconds);
+        out.printf("%-22s %10s %10s %10s %10s%n", "", "p50", "p90", "p99", "worst");
+        out.printf("%-22s %10.1f %10.1f %10.1f %10.1f%n", "time to first token ms",
+                percentile(timeToFirstToken, 50), percentile(timeToFirstToken, 90),
+                percentile(timeToFirstToken, 99), percentile(timeToFirstToken, 100));
+        out.printf("%-22s %10.1f %10.1f %10.1f %10.1f%n", "tokens/s per answer",
+                percentile(tokensPerSecond, 50), percentile(tokensPerSecond, 10),
+                percentile(tokensPerSecond, 1), percentile(tokensPerSecond, 0));
+    }
+
+    /**
+     * Returns the nearest-rank percentile of sorted values.
+     *
+     * @param sorted the values in ascending order
+     * @param percentile the percentile, 0 for the minimum and 100 for the
+     * maximum
+     * @return the value, or NaN if there are none
+     */
+    static double percentile(double[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+}
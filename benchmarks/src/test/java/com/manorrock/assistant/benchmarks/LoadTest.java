@@ -0,0 +1,341 @@
+package com.manorrock.assistant.benchmarks;
+
+import com.manorrock.assistant.shared.ChatCodec;
+import com.manorrock.assistant.shared.ChatMessage;
+import com.manorrock.assistant.shared.LlmConfiguration;
+import com.manorrock.assistant.shared.LlmTransport;
+import com.manorrock.assistant.shared.OllamaStreamDecoder;
+import com.manorrock.assistant.shared.StreamWatchdog;
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+/**
+ * Streams answers from a {@link StubLlmServer} with concurrent clients and
+ * reports time-to-first-token and token rate percentiles, all offline.
+ *
+ * <p>
+ * The {@code ollama} and {@code openai} targets send through the shared
+ * {@link LlmTransport}, decoding NDJSON with {@link OllamaStreamDecoder} and
+ * server-sent events with {@link ChatCodec}. The {@code cli} target runs
+ * {@code CLIController} in-process, so the numbers include building the
+ * request from the history and writing the journal.
+ * </p>
+ *
+ * <p>
+ * Every target gives up on an answer after the first token and idle
+ * timeouts, so a request the stub fails or stalls for longer than the idle
+ * timeout is counted as failed rather than as a slow answer.
+ * {@link StreamingLoadTest} runs it against the stub in {@code mvn verify};
+ * for a full run use {@code main} on the test classpath.
+ * </p>
+ */
+@Command(name = "load-test", mixinStandardHelpOptions = true,
+        description = "Streams answers from an in-process stub LLM server and reports latency percentiles")
+public class LoadTest implements Callable<Integer> {
+
+    /**
+     * What the clients drive.
+     */
+    enum Target {
+        OLLAMA, OPENAI, CLI
+    }
+
+    @Option(names = "--target", description = "What the clients drive: ${COMPLETION-CANDIDATES}")
+    private Target target = Target.OLLAMA;
+
+    @Option(names = "--clients", description = "Concurrent clients")
+    private int clients = 8;
+
+    @Option(names = "--requests", description = "Requests per client")
+    private int requests = 10;
+
+    @Option(names = "--warmup", description = "Requests per client sent before measuring, to load classes and open connections")
+    private int warmup = 1;
+
+    @Option(names = "--history", description = "Messages of history sent with every transport request")
+    private int history = 10;
+
+    @Option(names = "--ttft-ms", description = "Stub time to first token in milliseconds")
+    private long timeToFirstToken = 200;
+
+    @Option(names = "--tokens-per-second", description = "Stub token rate")
+    private double tokensPerSecond = 200;
+
+    @Option(names = "--tokens", description = "Tokens per answer")
+    private int tokens = 100;
+
+    @Option(names = "--tokens-per-chunk", description = "Tokens per streamed chunk")
+    private int tokensPerChunk = 1;
+
+    @Option(names = "--failure-rate", description = "Share of requests the stub fails")
+    private double failureRate = 0.0;
+
+    @Option(names = "--stall-rate", description = "Share of answers the stub pauses halfway")
+    private double stallRate = 0.0;
+
+    @Option(names = "--stall-ms", description = "How long a stalled answer pauses in milliseconds")
+    private long stall = 2000;
+
+    @Option(names = "--first-token-timeout", description = "Seconds a client waits for the first token")
+    private long firstTokenTimeout = LlmConfiguration.defaultConfig().firstTokenTimeout().toSeconds();
+
+    @Option(names = "--idle-timeout", description = "Seconds a client waits for each later token")
+    private long idleTimeout = LlmConfiguration.defaultConfig().idleTimeout().toSeconds();
+
+    public static void main(String[] args) {
+        System.exit(new CommandLine(new LoadTest()).setCaseInsensitiveEnumValuesAllowed(true).execute(args));
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        try (StubLlmServer server = new StubLlmServer(profile())) {
+            System.out.printf("%s: %d clients x %d requests against %s%n", target, clients, requests, server.baseUrl());
+            LoadReport report = run(server);
+            report.print(System.out);
+            System.out.printf("stub: %d requests, %d failed, %d stalled, %d tokens sent%n",
+                    server.requests(), server.failures(), server.stalls(), server.tokensSent());
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the stub profile set by the options.
+     *
+     * @return the profile
+     */
+    StubLlmServer.Profile profile() {
+        return StubLlmServer.Profile.defaultProfile()
+                .withTimeToFirstToken(Duration.ofMillis(timeToFirstToken))
+                .withTokensPerSecond(tokensPerSecond)
+                .withTokens(tokens)
+                .withTokensPerChunk(tokensPerChunk)
+                .withFailureRate(failureRate)
+                .withStallRate(stallRate)
+                .withStall(Duration.ofMillis(stall));
+    }
+
+    /**
+     * Runs the clients against a stub.
+     *
+     * @param server the stub
+     * @return the report of the measured requests
+     * @throws Exception when a client cannot run
+     */
+    LoadReport run(StubLlmServer server) throws Exception {
+        Path stateRoot = Files.createTempDirectory("load-test");
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            LoadReport report = new LoadReport();
+            List<Future<?>> futures = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int client = 0; client < clients; client++) {
+                Path stateDir = stateRoot.resolve("client-" + client);
+                futures.add(executor.submit(() -> {
+                    runClient(server, stateDir, report);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            report.finish(System.nanoTime() - start);
+            return report;
+        } finally {
+            executor.shutdownNow();
+            delete(stateRoot);
+        }
+    }
+
+    private void runClient(StubLlmServer server, Path stateDir, LoadReport report) throws IOException {
+        Duration firstTokenTimeout = Duration.ofSeconds(this.firstTokenTimeout);
+        Duration idleTimeout = Duration.ofSeconds(this.idleTimeout);
+        CLILoadClient cli = target == Target.CLI ? new CLILoadClient(stateDir, server.ollamaEndpoint(), StubLlmServer.MODEL,
+                firstTokenTimeout, idleTimeout) : null;
+        List<ChatMessage> messages = new ArrayList<>();
+        for (int i = 0; i < history; i++) {
+            messages.add(i % 2 == 0 ? ChatMessage.user(Fixtures.message(i)) : ChatMessage.assistant(Fixtures.message(i)));
+        }
+        for (int request = -warmup; request < requests; request++) {
+            String message = Fixtures.message(2 * Math.max(0, request));
+            Sample sample = switch (target) {
+                case CLI -> cli.call(message, tokens);
+                case OLLAMA -> ollama(server.ollamaEndpoint(), append(messages, message), firstTokenTimeout, idleTimeout);
+                case OPENAI -> openAi(server.openAiEndpoint(), append(messages, message), firstTokenTimeout, idleTimeout);
+            };
+            if (request >= 0) {
+                report.add(sample);
+            }
+        }
+    }
+
+    private static List<ChatMessage> append(List<ChatMessage> messages, String message) {
+        List<ChatMessage> request = new ArrayList<>(messages);
+        request.add(ChatMessage.user(message));
+        return request;
+    }
+
+    private static Sample ollama(String endpoint, List<ChatMessage> messages, Duration firstTokenTimeout,
+            Duration idleTimeout) {
+        LlmTransport transport = LlmTransport.getDefault();
+        long[] firstToken = {0};
+        int[] chunks = {0};
+        OllamaStreamDecoder.Listener listener = content -> {
+            if (chunks[0]++ == 0) {
+                firstToken[0] = System.nanoTime();
+            }
+        };
+        long start = System.nanoTime();
+        try {
+            HttpResponse<String> response = transport.send(
+                    transport.jsonPost(endpoint, ChatCodec.ollamaRequest(StubLlmServer.MODEL, messages, 0.0, "30m", null)),
+                    OllamaStreamDecoder.handler(listener, firstTokenTimeout, idleTimeout));
+            long duration = System.nanoTime() - start;
+            if (response.statusCode() != 200 || firstToken[0] == 0) {
+                return Sample.failure(duration);
+            }
+            return new Sample(firstToken[0] - start, duration, tokens(response.body()), false);
+        } catch (IOException e) {
+            return Sample.failure(System.nanoTime() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Sample.failure(System.nanoTime() - start);
+        }
+    }
+
+    private static Sample openAi(String endpoint, List<ChatMessage> messages, Duration firstTokenTimeout,
+            Duration idleTimeout) {
+        LlmTransport transport = LlmTransport.getDefault();
+        long start = System.nanoTime();
+        EventStream events = new EventStream(start, firstTokenTimeout, idleTimeout);
+        // wait for the events rather than the response, a stalled stream
+        // cancelled by its watchdog never completes the response body
+        transport.sendAsync(
+                transport.jsonPost(endpoint, ChatCodec.openAiRequest(StubLlmServer.MODEL, messages, 0.0, true)),
+                HttpResponse.BodyHandlers.fromLineSubscriber(events))
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        events.answer.completeExceptionally(error);
+                    }
+                });
+        try {
+            String answer = events.answer.get();
+            long duration = System.nanoTime() - start;
+            return events.firstToken == 0 ? Sample.failure(duration)
+                    : new Sample(events.firstToken - start, duration, tokens(answer), false);
+        } catch (ExecutionException e) {
+            return Sample.failure(System.nanoTime() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Sample.failure(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Counts the tokens of a stub answer, which ends every token with a
+     * space.
+     */
+    private static int tokens(CharSequence answer) {
+        int count = 0;
+        for (int i = 0; i < answer.length(); i++) {
+            if (answer.charAt(i) == ' ') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Collects the content of an OpenAI server-sent events stream, failing it
+     * when it stalls the way {@link OllamaStreamDecoder} does.
+     */
+    private static final class EventStream implements Flow.Subscriber<String> {
+
+        private final CompletableFuture<String> answer = new CompletableFuture<>();
+
+        private final StringBuilder text = new StringBuilder();
+
+        private final long sentNanos;
+
+        private final Duration firstTokenTimeout;
+
+        private final Duration idleTimeout;
+
+        private volatile Flow.Subscription subscription;
+
+        private StreamWatchdog watchdog;
+
+        private long firstToken;
+
+        EventStream(long sentNanos, Duration firstTokenTimeout, Duration idleTimeout) {
+            this.sentNanos = sentNanos;
+            this.firstTokenTimeout = firstTokenTimeout;
+            this.idleTimeout = idleTimeout;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            watchdog = StreamWatchdog.start(sentNanos, firstTokenTimeout, idleTimeout, exception -> {
+                answer.completeExceptionally(exception);
+                this.subscription.cancel();
+            });
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(String line) {
+            watchdog.activity();
+            if (!line.startsWith("data: ") || line.equals("data: [DONE]")) {
+                return;
+            }
+            try {
+                String content = ChatCodec.responseContent(line.substring(6));
+                if (!content.isEmpty() && firstToken == 0) {
+                    firstToken = System.nanoTime();
+                }
+                text.append(content);
+            } catch (IllegalArgumentException e) {
+                watchdog.stop();
+                answer.completeExceptionally(e);
+                subscription.cancel();
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            watchdog.stop();
+            answer.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            watchdog.stop();
+            answer.complete(text.toString());
+        }
+    }
+}
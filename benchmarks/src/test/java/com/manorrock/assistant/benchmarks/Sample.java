@@ -0,0 +1,28 @@
+package com.manorrock.assistant.benchmarks;
+
+/**
+ * The timing of one streamed answer as seen by a client.
+ *
+ * @param timeToFirstToken nanoseconds from sending the request to the first
+ * content
+ * @param duration nanoseconds from sending the request to the end of the
+ * answer
+ * @param tokens the tokens received
+ * @param failed true if the request failed
+ */
+public record Sample(long timeToFirstToken, long duration, int tokens, boolean failed) {
+
+    public static Sample failure(long duration) {
+        return new Sample(-1, duration, 0, true);
+    }
+
+    /**
+     * Returns the token rate after the first token.
+     *
+     * @return the tokens per second, or 0 for a failed or single-chunk answer
+     */
+    public double tokensPerSecond() {
+        long streaming = duration - timeToFirstToken;
+        return failed || tokens < 2 || streaming <= 0 ? 0 : (tokens - 1) * 1e9 / streaming;
+    }
+}
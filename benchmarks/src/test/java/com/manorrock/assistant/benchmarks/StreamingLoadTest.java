@@ -0,0 +1,89 @@
+package com.manorrock.assistant.benchmarks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import picocli.CommandLine;
+
+/**
+ * Runs a short {@link LoadTest} against the {@link StubLlmServer} for every
+ * target.
+ *
+ * <p>
+ * A clean run must complete every stream with every token. A request the
+ * stub fails, or stalls for longer than the idle timeout, must come back as
+ * an error rather than hang or pass as an answer, while a stall shorter than
+ * the idle timeout must not.
+ * </p>
+ */
+class StreamingLoadTest {
+
+    private static final int CLIENTS = 4;
+
+    private static final int REQUESTS = 3;
+
+    private static final int TOKENS = 20;
+
+    @ParameterizedTest
+    @EnumSource(LoadTest.Target.class)
+    void everyStreamCompletes(LoadTest.Target target) throws Exception {
+        LoadTest loadTest = loadTest(target);
+        try (StubLlmServer server = new StubLlmServer(loadTest.profile())) {
+            LoadReport report = loadTest.run(server);
+            assertEquals(CLIENTS * REQUESTS, report.requests());
+            assertEquals(0, report.failures());
+            assertEquals((long) CLIENTS * REQUESTS * TOKENS, report.tokens());
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(LoadTest.Target.class)
+    void failuresAreErrors(LoadTest.Target target) throws Exception {
+        LoadTest loadTest = loadTest(target, "--failure-rate", "1");
+        try (StubLlmServer server = new StubLlmServer(loadTest.profile())) {
+            LoadReport report = loadTest.run(server);
+            assertEquals(CLIENTS * REQUESTS, report.requests());
+            assertEquals(CLIENTS * REQUESTS, report.failures());
+            assertEquals(server.requests(), server.failures());
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(LoadTest.Target.class)
+    void stallsAreErrors(LoadTest.Target target) throws Exception {
+        LoadTest loadTest = loadTest(target, "--stall-rate", "1", "--stall-ms", "3000", "--idle-timeout", "1");
+        try (StubLlmServer server = new StubLlmServer(loadTest.profile())) {
+            LoadReport report = loadTest.run(server);
+            assertEquals(CLIENTS * REQUESTS, report.requests());
+            assertEquals(CLIENTS * REQUESTS, report.failures());
+            assertEquals(server.requests(), server.stalls());
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(LoadTest.Target.class)
+    void shortStallsAreNotErrors(LoadTest.Target target) throws Exception {
+        LoadTest loadTest = loadTest(target, "--stall-rate", "1", "--stall-ms", "200", "--idle-timeout", "2");
+        try (StubLlmServer server = new StubLlmServer(loadTest.profile())) {
+            LoadReport report = loadTest.run(server);
+            assertEquals(0, report.failures());
+            assertEquals(CLIENTS * REQUESTS, server.stalls());
+        }
+    }
+
+    /**
+     * Returns a small, fast load test against a target, with further options.
+     */
+    private static LoadTest loadTest(LoadTest.Target target, String... options) {
+        List<String> args = new ArrayList<>(List.of("--target", target.name(), "--clients", String.valueOf(CLIENTS),
+                "--requests", String.valueOf(REQUESTS), "--warmup", "0", "--ttft-ms", "20",
+                "--tokens-per-second", "500", "--tokens", String.valueOf(TOKENS), "--first-token-timeout", "5"));
+        args.addAll(List.of(options));
+        LoadTest loadTest = new LoadTest();
+        new CommandLine(loadTest).parseArgs(args.toArray(String[]::new));
+        return loadTest;
+    }
+}
@@ -0,0 +1,341 @@
+package com.manorrock.assistant.benchmarks;
+
+import com.manorrock.assistant.shared.ChatCodec;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for a streaming LLM server.
+ *
+ * <p>
+ * Speaks the Ollama {@code /api/chat} NDJSON protocol and the OpenAI
+ * {@code /v1/chat/completions} server-sent events protocol on a loopback
+ * port, so the streaming code of the frontends can be driven under load
+ * without a model or a network. {@code GET /api/tags} lists the stub model
+ * and an Ollama request without messages, as sent by
+ * {@link com.manorrock.assistant.shared.OllamaWarmup}, is answered at once.
+ * </p>
+ *
+ * <p>
+ * How an answer is streamed is set by a {@link Profile}: the time to the
+ * first token, the token rate, how many tokens go into each chunk, and the
+ * share of requests that fail with a 500 or stall in the middle of the
+ * answer. Every request is served on its own thread, so slow answers do not
+ * delay each other.
+ * </p>
+ */
+public final class StubLlmServer implements AutoCloseable {
+
+    /**
+     * The model name the stub reports.
+     */
+    public static final String MODEL = "stub";
+
+    /**
+     * How the stub streams its answers.
+     *
+     * @param timeToFirstToken the delay before the first chunk
+     * @param tokensPerSecond the token rate after the first chunk
+     * @param tokens the tokens in each answer
+     * @param tokensPerChunk the tokens written per chunk
+     * @param failureRate the share of requests answered with a 500
+     * @param stallRate the share of answers that pause halfway
+     * @param stall how long a stalled answer pauses
+     */
+    public record Profile(Duration timeToFirstToken, double tokensPerSecond, int tokens, int tokensPerChunk,
+            double failureRate, double stallRate, Duration stall) {
+
+        public static Profile defaultProfile() {
+            return new Profile(Duration.ofMillis(200), 50, 100, 1, 0.0, 0.0, Duration.ofSeconds(5));
+        }
+
+        public Profile withTimeToFirstToken(Duration timeToFirstToken) {
+            return new Profile(timeToFirstToken, tokensPerSecond, tokens, tokensPerChunk, failureRate, stallRate, stall);
+        }
+
+        public Profile withTokensPerSecond(double tokensPerSecond) {
+            return new Profile(timeToFirstToken, tokensPerSecond, tokens, tokensPerChunk, failureRate, stallRate, stall);
+        }
+
+        public Profile withTokens(int tokens) {
+            return new Profile(timeToFirstToken, tokensPerSecond, tokens, tokensPerChunk, failureRate, stallRate, stall);
+        }
+
+        public Profile withTokensPerChunk(int tokensPerChunk) {
+            return new Profile(timeToFirstToken, tokensPerSecond, tokens, tokensPerChunk, failureRate, stallRate, stall);
+        }
+
+        public Profile withFailureRate(double failureRate) {
+            return new Profile(timeToFirstToken, tokensPerSecond, tokens, tokensPerChunk, failureRate, stallRate, stall);
+        }
+
+        public Profile withStallRate(double stallRate) {
+            return new Profile(timeToFirstToken, tokensPerSecond, tokens, tokensPerChunk, failureRate, stallRate, stall);
+        }
+
+        public Profile withStall(Duration stall) {
+            return new Profile(timeToFirstToken, tokensPerSecond, tokens, tokensPerChunk, failureRate, stallRate, stall);
+        }
+    }
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private final AtomicInteger stalls = new AtomicInteger();
+
+    private final AtomicLong tokensSent = new AtomicLong();
+
+    private volatile Profile profile;
+
+    /**
+     * Starts a stub on an ephemeral loopback port.
+     *
+     * @param profile how answers are streamed
+     * @throws IOException when the port cannot be bound
+     */
+    public StubLlmServer(Profile profile) throws IOException {
+        this(profile, 0);
+    }
+
+    /**
+     * Starts a stub on the given loopback port.
+     *
+     * @param profile how answers are streamed
+     * @param port the port, 0 for an ephemeral port
+     * @throws IOException when the port cannot be bound
+     */
+    public StubLlmServer(Profile profile, int port) throws IOException {
+        this.profile = profile;
+        AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "stub-llm-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        server.setExecutor(executor);
+        server.createContext("/api/chat", exchange -> serve(exchange, false));
+        server.createContext("/v1/chat/completions", exchange -> serve(exchange, true));
+        server.createContext("/api/tags", exchange -> respond(exchange, 200, "application/json",
+                "{\"models\":[{\"name\":\"" + MODEL + "\",\"model\":\"" + MODEL + "\"}]}"));
+        server.start();
+    }
+
+    /**
+     * Changes how later answers are streamed.
+     *
+     * @param profile the profile
+     */
+    public void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Returns the profile answers are streamed with.
+     *
+     * @return the profile
+     */
+    public Profile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Returns the base URL, e.g. {@code http://127.0.0.1:41234}.
+     *
+     * @return the base URL
+     */
+    public String baseUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    /**
+     * Returns the Ollama chat endpoint.
+     *
+     * @return the endpoint URL
+     */
+    public String ollamaEndpoint() {
+        return baseUrl() + "/api/chat";
+    }
+
+    /**
+     * Returns the OpenAI chat completions endpoint.
+     *
+     * @return the endpoint URL
+     */
+    public String openAiEndpoint() {
+        return baseUrl() + "/v1/chat/completions";
+    }
+
+    /**
+     * Returns the number of chat requests received.
+     *
+     * @return the number of requests
+     */
+    public int requests() {
+        return requests.get();
+    }
+
+    /**
+     * Returns the number of requests answered with a failure.
+     *
+     * @return the number of failures
+     */
+    public int failures() {
+        return failures.get();
+    }
+
+    /**
+     * Returns the number of answers that stalled.
+     *
+     * @return the number of stalls
+     */
+    public int stalls() {
+        return stalls.get();
+    }
+
+    /**
+     * Returns the number of tokens streamed.
+     *
+     * @return the number of tokens
+     */
+    public long tokensSent() {
+        return tokensSent.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void serve(HttpExchange exchange, boolean openAi) throws IOException {
+        try (exchange) {
+            Profile current = profile;
+            Map<?, ?> request = (Map<?, ?>) ChatCodec.parse(
+                    new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            if (!openAi && request.get("messages") instanceof List<?> messages && messages.isEmpty()) {
+                respond(exchange, 200, "application/json",
+                        "{\"model\":" + ChatCodec.quote(MODEL) + ",\"done\":true,\"done_reason\":\"load\"}");
+                return;
+            }
+            requests.incrementAndGet();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (random.nextDouble() < current.failureRate()) {
+                failures.incrementAndGet();
+                respond(exchange, 500, "application/json",
+                        openAi ? "{\"error\":{\"message\":\"stub failure\"}}" : "{\"error\":\"stub failure\"}");
+                return;
+            }
+            boolean stall = random.nextDouble() < current.stallRate();
+            // Ollama streams unless told not to, OpenAI only when asked to
+            boolean stream = openAi ? Boolean.TRUE.equals(request.get("stream"))
+                    : !Boolean.FALSE.equals(request.get("stream"));
+            exchange.getResponseHeaders().set("Content-Type",
+                    !stream ? "application/json" : openAi ? "text/event-stream" : "application/x-ndjson");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream body = exchange.getResponseBody();
+            sleep(current.timeToFirstToken().toNanos());
+            if (!stream) {
+                StringBuilder answer = new StringBuilder();
+                for (int i = 0; i < current.tokens(); i++) {
+                    answer.append(token(i));
+                }
+                sleep((long) (current.tokens() * 1e9 / current.tokensPerSecond()));
+                tokensSent.addAndGet(current.tokens());
+                body.write(bytes(openAi ? openAiMessage(answer) : ollamaMessage(answer, true)));
+                return;
+            }
+            long start = System.nanoTime();
+            for (int sent = 0; sent < current.tokens();) {
+                if (stall && sent >= current.tokens() / 2) {
+                    stalls.incrementAndGet();
+                    sleep(current.stall().toNanos());
+                    stall = false;
+                    start += current.stall().toNanos();
+                }
+                StringBuilder chunk = new StringBuilder();
+                int end = Math.min(current.tokens(), sent + Math.max(1, current.tokensPerChunk()));
+                for (int i = sent; i < end; i++) {
+                    chunk.append(token(i));
+                }
+                // pace against the start so slow writes do not lower the rate further
+                sleep(start + (long) (sent * 1e9 / current.tokensPerSecond()) - System.nanoTime());
+                body.write(bytes(openAi ? openAiChunk(chunk) : ollamaMessage(chunk, false) + "\n"));
+                body.flush();
+                tokensSent.addAndGet(end - sent);
+                sent = end;
+            }
+            body.write(bytes(openAi ? "data: [DONE]\n\n" : ollamaMessage("", true) + "\n"));
+        } catch (RuntimeException e) {
+            respond(exchange, 400, "application/json", "{\"error\":" + ChatCodec.quote(String.valueOf(e.getMessage())) + "}");
+        } catch (IOException e) {
+            // the client went away, e.g. because it cancelled the request
+        }
+    }
+
+    private static String ollamaMessage(CharSequence content, boolean done) {
+        return "{\"model\":" + ChatCodec.quote(MODEL) + ",\"message\":{\"role\":\"assistant\",\"content\":"
+                + ChatCodec.quote(content.toString()) + "},\"done\":" + done + "}";
+    }
+
+    private static String openAiChunk(CharSequence content) {
+        return "data: {\"object\":\"chat.completion.chunk\",\"model\":" + ChatCodec.quote(MODEL)
+                + ",\"choices\":[{\"index\":0,\"delta\":{\"content\":" + ChatCodec.quote(content.toString())
+                + "}}]}\n\n";
+    }
+
+    private static String openAiMessage(CharSequence content) {
+        return "{\"object\":\"chat.completion\",\"model\":" + ChatCodec.quote(MODEL)
+                + ",\"choices\":[{\"index\":0,\"message\":{\"role\":\"assistant\",\"content\":"
+                + ChatCodec.quote(content.toString()) + "},\"finish_reason\":\"stop\"}]}";
+    }
+
+    private static String token(int i) {
+        return "tok" + i + " ";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String body) {
+        try (exchange) {
+            byte[] bytes = bytes(body);
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(status, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        } catch (IOException e) {
+            // the client went away
+        }
+    }
+
+    private static void sleep(long nanos) throws IOException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Stub stopped", e);
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,193 @@
+package com.example;
+
+import com.manorrock.assistant.shared.ChatCodec;
+import com.manorrock.assistant.shared.EndpointPool;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends a list of independent prompts concurrently and writes one JSON line
+ * per answer.
+ *
+ * <p>
+ * Every prompt runs on its own virtual thread when the JVM has them (JDK 21
+ * and later) and on a pooled platform thread otherwise; the CLI itself still
+ * targets Java 17. How many requests are in flight is bounded per endpoint,
+ * so a batch keeps each Ollama server busy without queueing more requests
+ * than it runs in parallel ({@code OLLAMA_NUM_PARALLEL}). Every prompt leases
+ * its host from the {@link EndpointPool} and is sent to that host alone, so
+ * no hedged backup request slips past the bound. Only hosts with a free slot
+ * are leased from, so a prompt never waits for a busy host while another one
+ * is idle, and it only gets a thread once it has its slot.
+ * </p>
+ *
+ * <p>
+ * In ordered mode the lines follow the input, an answer that finishes early
+ * is held back until all earlier ones were written. In unordered mode every
+ * line is written as soon as its answer is complete. Each line holds the
+ * {@code index} and {@code input} of the prompt, and either its
+ * {@code response} or an {@code error}, plus the time taken in
+ * {@code millis}.
+ * </p>
+ */
+class BatchRunner {
+
+    /**
+     * Answers one prompt.
+     */
+    interface Chat {
+
+        /**
+         * Sends a prompt to the given endpoint and waits for the answer.
+         *
+         * @param input the line of the batch, e.g. a prompt or a file path
+         * @param endpoint the endpoint
+         * @return the answer
+         * @throws Exception when the prompt cannot be answered
+         */
+        String send(String input, String endpoint) throws Exception;
+    }
+
+    private final Chat chat;
+
+    private final String endpoints;
+
+    private final int concurrency;
+
+    private final boolean ordered;
+
+    private final Map<String, Semaphore> limits = new ConcurrentHashMap<>();
+
+    private final Semaphore slots;
+
+    private final PrintStream out;
+
+    private String[] lines;
+
+    private int next;
+
+    /**
+     * Constructor.
+     *
+     * @param chat answers one prompt
+     * @param endpoints the comma separated endpoints to spread the prompts over
+     * @param concurrency the requests in flight per endpoint
+     * @param ordered true to write the lines in input order
+     * @param out receives the JSON lines
+     */
+    BatchRunner(Chat chat, String endpoints, int concurrency, boolean ordered, PrintStream out) {
+        this.chat = chat;
+        this.endpoints = endpoints;
+        this.concurrency = concurrency;
+        this.slots = new Semaphore(concurrency * EndpointPool.split(endpoints).size());
+        this.ordered = ordered;
+        this.out = out;
+    }
+
+    /**
+     * Answers all prompts and waits until every line is written.
+     *
+     * @param inputs the prompts or file paths
+     * @param err receives the summary
+     * @return the number of failed prompts
+     * @throws InterruptedException when interrupted while waiting
+     */
+    int run(List<String> inputs, PrintWriter err) throws InterruptedException {
+        lines = new String[inputs.size()];
+        AtomicInteger failures = new AtomicInteger();
+        long start = System.nanoTime();
+        ExecutorService executor = newExecutor();
+        try {
+            for (int i = 0; i < inputs.size(); i++) {
+                int index = i;
+                String input = inputs.get(i);
+                // a free slot overall means a host with a free slot, since
+                // a host gives its slot back before the overall one
+                slots.acquire();
+                List<String> free = new ArrayList<>();
+                for (String endpoint : EndpointPool.split(endpoints)) {
+                    if (limit(endpoint).availablePermits() > 0) {
+                        free.add(endpoint);
+                    }
+                }
+                EndpointPool.Lease lease = EndpointPool.getDefault().acquire(String.join(",", free), null);
+                String endpoint = lease.endpoint();
+                Semaphore limit = limit(endpoint);
+                limit.acquireUninterruptibly();
+                executor.execute(() -> {
+                    long started = System.nanoTime();
+                    StringBuilder line = new StringBuilder(256);
+                    line.append("{\"index\":").append(index).append(",\"input\":").append(ChatCodec.quote(input));
+                    try {
+                        String response = chat.send(input, endpoint);
+                        line.append(",\"response\":").append(ChatCodec.quote(response));
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                        line.append(",\"error\":").append(ChatCodec.quote(
+                                e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName()));
+                    } finally {
+                        // the request counted for or against the host on its own lease
+                        lease.cancel();
+                        limit.release();
+                        slots.release();
+                    }
+                    line.append(",\"millis\":").append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started))
+                            .append('}');
+                    write(index, line.toString());
+                });
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+        out.flush();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        err.printf("System: Batch of %d prompts, %d failed, in %.1f s (%.2f prompts/s)%n",
+                inputs.size(), failures.get(), seconds, inputs.size() / Math.max(seconds, 1e-9));
+        err.flush();
+        return failures.get();
+    }
+
+    private Semaphore limit(String endpoint) {
+        return limits.computeIfAbsent(endpoint, key -> new Semaphore(concurrency));
+    }
+
+    private synchronized void write(int index, String line) {
+        if (!ordered) {
+            out.println(line);
+            return;
+        }
+        lines[index] = line;
+        while (next < lines.length && lines[next] != null) {
+            out.println(lines[next]);
+            lines[next++] = null;
+        }
+    }
+
+    /**
+     * Creates a virtual thread per task executor if the JVM has one, else a
+     * cached pool of daemon threads; the semaphores bound both.
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger counter = new AtomicInteger();
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "batch-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
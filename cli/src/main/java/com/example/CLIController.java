@@ -1,26 +1,51 @@
 package com.example;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
+import com.manorrock.assistant.shared.ChatCodec;
+import com.manorrock.assistant.shared.ChatMessage;
+import com.manorrock.assistant.shared.ContextWindow;
+import com.manorrock.assistant.shared.ConversationCompactor;
+import com.manorrock.assistant.shared.EndpointHealth;
+import com.manorrock.assistant.shared.EndpointPool;
+import com.manorrock.assistant.shared.HedgePolicy;
+import com.manorrock.assistant.shared.HedgedChat;
+import com.manorrock.assistant.shared.LlmConfiguration;
+import com.manorrock.assistant.shared.LlmMetrics;
+import com.manorrock.assistant.shared.OllamaStreamDecoder;
+import com.manorrock.assistant.shared.OllamaSummarizer;
+import com.manorrock.assistant.shared.OllamaWarmup;
+import com.manorrock.assistant.shared.ResponseCache;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
+import picocli.CommandLine.Spec;
 
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
+import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.stream.Stream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
 
 @Command(name = "assistant-cli", mixinStandardHelpOptions = true, version = "1.0",
         description = "CLI version of the Manorrock Assistant")
@@ -37,29 +62,141 @@ public class CLIController implements Callable<Integer> {
     @Option(names = {"--stdin"}, description = "Read message from standard input")
     private boolean readFromStdin = false;
 
+    @Option(names = {"--context-tokens"}, description = "Context size of the model in tokens, the history sent is trimmed to fit")
+    private int contextTokens = LlmConfiguration.defaultConfig().contextTokens();
+
+    @Option(names = {"--temperature"}, description = "Sampling temperature, answers at 0.0 are cached")
+    private double temperature = LlmConfiguration.defaultConfig().temperature();
+
+    @Option(names = {"--keep-alive"}, description = "How long Ollama keeps the model loaded, e.g. 30m or -1m for ever")
+    private String keepAlive = LlmConfiguration.defaultConfig().keepAlive();
+
+    @Option(names = {"--connect-timeout"}, description = "Seconds to wait for a connection to Ollama")
+    private long connectTimeout = LlmConfiguration.defaultConfig().connectTimeout().toSeconds();
+
+    @Option(names = {"--first-token-timeout"}, description = "Seconds to wait for the first token, e.g. while a large model loads")
+    private long firstTokenTimeout = LlmConfiguration.defaultConfig().firstTokenTimeout().toSeconds();
+
+    @Option(names = {"--idle-timeout"}, description = "Seconds to wait for each later token before the answer is given up")
+    private long idleTimeout = LlmConfiguration.defaultConfig().idleTimeout().toSeconds();
+
+    @Option(names = {"--hedge"}, description = "Send a request slow to stream its first token again to another endpoint, the first to stream wins")
+    private boolean hedge = false;
+
+    @Option(names = {"--no-cache"}, description = "Always ask the model, even for a cached answer")
+    private boolean noCache = false;
+
+    @Option(names = {"--repl"}, description = "Read messages from the terminal until /exit, keeping the session in memory")
+    private boolean repl = false;
+
+    @Option(names = {"--daemon"}, description = "Run as a daemon serving later calls over a Unix domain socket")
+    private boolean daemon = false;
+
+    @Option(names = {"--stop-daemon"}, description = "Stop the running daemon")
+    private boolean stopDaemon = false;
+
+    @Option(names = {"--no-daemon"}, description = "Run in this process even if a daemon is running")
+    private boolean noDaemon = false;
+
+    @Option(names = {"--batch"}, paramLabel = "FILE", arity = "0..1", fallbackValue = "-",
+            description = "Answer every line of FILE (or standard input) as a separate prompt, a line naming a file is explained, and write JSON lines")
+    private String batch;
+
+    @Option(names = {"--concurrency"}, description = "Requests in flight per endpoint in batch mode")
+    private int concurrency = 4;
+
+    @Option(names = {"--unordered"}, description = "Write batch answers as they complete instead of in input order")
+    private boolean unordered = false;
+
     @Parameters(paramLabel = "MESSAGE", description = "Message to send", arity = "0..1")
     private String message;
 
+    @Spec
+    private CommandLine.Model.CommandSpec spec;
+
     private String sessionId = UUID.randomUUID().toString();
-    private LinkedList<JSONObject> history = new LinkedList<>();
+    private List<ChatMessage> history = new ArrayList<>();
     private DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMdd HH:mm:ss");
-    private Path stateDir = Paths.get(System.getProperty("user.home"), ".manorrock", "assistant", "cli-state");
+    private static final String EXPLAIN_PROMPT = "Please explain the following text in a clear and concise manner:\n\n";
+    private static final Path STATE_DIR = Paths.get(System.getProperty("user.home"), ".manorrock", "assistant", "cli-state");
+    private Path stateDir = STATE_DIR;
+    private final ConversationJournal journal;
+    private final PrintStream out;
+    private final InputStream in;
+    private final Path workingDir;
+    private ContextWindow<ChatMessage> context;
+    private ConversationCompactor<ChatMessage> compactor;
+    private final Set<CompletableFuture<?>> inFlight = ConcurrentHashMap.newKeySet();
+    private volatile boolean aborted;
+    private ResponseCache responseCache = new ResponseCache(ResponseCache.defaultDirectory(), ResponseCache.DEFAULT_MAX_BYTES);
+
+    public CLIController() {
+        this(new ConversationJournal(STATE_DIR, 200), System.out, System.in, Paths.get(""));
+    }
+
+    /**
+     * Constructor for a call served in-process, e.g. by the daemon.
+     *
+     * @param journal the journal, possibly already loaded
+     * @param out the output of the call
+     * @param in the standard input of the call
+     * @param workingDir the working directory of the call
+     */
+    public CLIController(ConversationJournal journal, PrintStream out, InputStream in, Path workingDir) {
+        this.journal = journal;
+        this.out = out;
+        this.in = in;
+        this.workingDir = workingDir;
+    }
 
     public static void main(String[] args) {
+        List<String> arguments = Arrays.asList(args);
+        if (!arguments.contains("--daemon") && !arguments.contains("--no-daemon") && !arguments.contains("--repl")) {
+            // A running daemon serves the call, skipping JVM warm-up and state loading
+            try {
+                Integer exitCode = CLIDaemon.forward(STATE_DIR, args);
+                if (exitCode != null) {
+                    System.exit(exitCode);
+                }
+            } catch (IOException e) {
+                System.err.println("System: Daemon connection failed: " + e.getMessage());
+                System.exit(1);
+            }
+        }
         int exitCode = new CommandLine(new CLIController()).execute(args);
         System.exit(exitCode);
     }
 
     @Override
     public Integer call() throws Exception {
+        if (stopDaemon) {
+            out.println("System: No daemon running");
+            return 0;
+        }
+        if (daemon && CLIDaemon.isRunning(stateDir)) {
+            // the running daemon owns the socket and the journal
+            out.println("System: Daemon already running on " + CLIDaemon.socketPath(stateDir));
+            return 1;
+        }
         loadState();
+        if (daemon) {
+            // the first call served should not wait for the model to load
+            OllamaWarmup.warm(llmEndpoint != null ? llmEndpoint : DEFAULT_ENDPOINT, model, keepAlive);
+            new CLIDaemon(stateDir, journal).serve();
+            return 0;
+        }
         if (llmEndpoint == null) {
             llmEndpoint = DEFAULT_ENDPOINT;
         }
+        if (batch != null) {
+            return runBatch();
+        }
         if (readFromStdin) {
-            message = new String(System.in.readAllBytes()).trim();
+            message = new String(in.readAllBytes()).trim();
         }
-        if (message != null) {
+        if (repl) {
+            runRepl();
+        } else if (message != null) {
             handleSendAction(message);
         } else {
             showHelp();
@@ -68,6 +205,93 @@ public class CLIController implements Callable<Integer> {
         return 0;
     }
 
+    /**
+     * Reads messages from the terminal until /exit or end of input. History,
+     * settings and connections stay in memory between turns, turns are
+     * written to the journal in the background and older turns are
+     * summarized while the user types the next message. The terminal is read
+     * on its own thread, so /stop typed while an answer streams cancels it;
+     * other lines typed meanwhile are sent after it. The endpoints are probed
+     * in the background, so a message to a host that is down fails at once,
+     * and the model is loaded while the first message is typed.
+     *
+     * @throws IOException when writing the journal fails
+     */
+    private void runRepl() throws IOException {
+        out.println("System: Interactive mode, type /help for commands and /exit to quit");
+        EndpointHealth.getDefault().watch(llmEndpoint);
+        OllamaWarmup.warm(llmEndpoint, model, keepAlive);
+        BlockingQueue<Optional<String>> lines = new LinkedBlockingQueue<>();
+        Thread readerThread = new Thread(() -> readLines(lines), "repl-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+        while (true) {
+            out.print("> ");
+            out.flush();
+            Optional<String> line;
+            try {
+                line = lines.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (line.isEmpty() || line.get().trim().equals("/exit")) {
+                break;
+            }
+            handleSendAction(line.get().trim());
+            if (compactor != null) {
+                compactor.compactAsync();
+            }
+        }
+        journal.flush();
+    }
+
+    /**
+     * Reads the terminal for the REPL, stopping the answer in flight on
+     * /stop and queueing every other line.
+     *
+     * @param lines receives the lines, and an empty value at end of input
+     */
+    private void readLines(BlockingQueue<Optional<String>> lines) {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().equals("/stop") || !stop()) {
+                    lines.add(Optional.of(line));
+                }
+            }
+        } catch (IOException e) {
+            out.println("System: Error reading input: " + e.getMessage());
+        }
+        lines.add(Optional.empty());
+    }
+
+    /**
+     * Answers every line of the batch file as an independent prompt,
+     * leaving the conversation history untouched.
+     *
+     * @return 0 if all prompts were answered, 1 otherwise
+     * @throws IOException when the batch file cannot be read
+     * @throws InterruptedException when interrupted while waiting
+     */
+    private int runBatch() throws IOException, InterruptedException {
+        String text = batch.equals("-") ? new String(in.readAllBytes(), StandardCharsets.UTF_8)
+                : Files.readString(workingDir.resolve(batch));
+        List<String> inputs = new ArrayList<>();
+        for (String line : text.split("\r?\n")) {
+            if (!line.isBlank()) {
+                inputs.add(line.strip());
+            }
+        }
+        BatchRunner runner = new BatchRunner((input, endpoint) -> {
+            Path file = workingDir.resolve(input);
+            String prompt = Files.isRegularFile(file) ? EXPLAIN_PROMPT + Files.readString(file) : input;
+            return chat(endpoint, List.of(ChatMessage.user(prompt)), null, content -> { });
+        }, llmEndpoint, Math.max(1, concurrency), !unordered, out);
+        return runner.run(inputs, spec.commandLine().getErr()) == 0 ? 0 : 1;
+    }
+
     private void handleSendAction(String userMessage) {
         if (!userMessage.isEmpty()) {
             if (userMessage.startsWith("/")) {
@@ -75,7 +299,9 @@ public class CLIController implements Callable<Integer> {
                 return;
             }
 
-            System.out.println("You: " + userMessage);
+            if (!repl) {
+                out.println("You: " + userMessage);
+            }
             processMessage(userMessage);
         }
     }
@@ -91,8 +317,12 @@ public class CLIController implements Callable<Integer> {
             clearResponseArea();
         } else if (command.startsWith("/explain")) {
             explainFromClipboardOrFile(command);
+        } else if (command.equals("/stats")) {
+            showStats();
+        } else if (command.equals("/stop")) {
+            out.println("System: Nothing to stop.");
         } else {
-            System.out.println("System: Unknown command. Type /help for a list of commands.");
+            out.println("System: Unknown command. Type /help for a list of commands.");
         }
     }
 
@@ -108,29 +338,28 @@ public class CLIController implements Callable<Integer> {
         if (filePath != null && !filePath.isEmpty()) {
             // Read from file
             try {
-                textToExplain = Files.readString(Paths.get(filePath));
-                System.out.println("System: Explaining content from file: " + filePath);
+                textToExplain = Files.readString(workingDir.resolve(filePath));
+                out.println("System: Explaining content from file: " + filePath);
             } catch (IOException e) {
-                System.out.println("System: Error reading file: " + e.getMessage());
+                out.println("System: Error reading file: " + e.getMessage());
                 return;
             }
         } else {
             // Read from clipboard
             try {
                 textToExplain = getClipboardContent();
-                System.out.println("System: Explaining content from clipboard");
+                out.println("System: Explaining content from clipboard");
             } catch (Exception e) {
-                System.out.println("System: Failed to access clipboard: " + e.getMessage());
-                System.out.println("System: Usage: /explain [file_path] - Explains text from clipboard or specified file");
+                out.println("System: Failed to access clipboard: " + e.getMessage());
+                out.println("System: Usage: /explain [file_path] - Explains text from clipboard or specified file");
                 return;
             }
         }
         
         if (textToExplain != null && !textToExplain.trim().isEmpty()) {
-            String promptPrefix = "Please explain the following text in a clear and concise manner:\n\n";
-            processMessage(promptPrefix + textToExplain);
+            processMessage(EXPLAIN_PROMPT + textToExplain);
         } else {
-            System.out.println("System: No content found to explain.");
+            out.println("System: No content found to explain.");
         }
     }
 
@@ -161,162 +390,265 @@ public class CLIController implements Callable<Integer> {
     }
 
     private void changeEndpoint(String command) {
-        String newEndpoint = command.substring(12).trim();
-        if (!newEndpoint.startsWith("http://") && !newEndpoint.startsWith("https://")) {
-            newEndpoint = "http://" + newEndpoint;
+        llmEndpoint = EndpointPool.chatEndpoints(command.substring(12).trim());
+        out.println("System: Endpoint changed to " + llmEndpoint);
+        if (repl) {
+            EndpointHealth.getDefault().watch(llmEndpoint);
         }
-        llmEndpoint = newEndpoint + "/api/chat";
-        System.out.println("System: Endpoint changed to " + llmEndpoint);
         saveState();
+        warmUp();
     }
 
     private void changeModel(String command) {
         String newModel = command.substring(7).trim();
         model = newModel;
-        System.out.println("System: Model changed to " + model);
+        out.println("System: Model changed to " + model);
         saveState();
+        warmUp();
+    }
+
+    /**
+     * Loads the model now, so the next message does not wait for it. The
+     * one-shot CLI exits right after the command, so it waits for the load,
+     * the REPL loads it in the background.
+     */
+    private void warmUp() {
+        if (repl) {
+            OllamaWarmup.warm(llmEndpoint, model, keepAlive);
+        } else if (OllamaWarmup.warm(llmEndpoint, model, keepAlive).join()) {
+            out.println("System: Model " + model + " loaded for " + keepAlive);
+        }
     }
 
     private void showHelp() {
         String helpMessage = "\n\nSystem: Available commands:\n" +
-                             "/llmEndpoint myhostname:myport - Change the Ollama endpoint\n" +
+                             "/llmEndpoint myhostname:myport[,myhostname:myport...] - Change the Ollama endpoints\n" +
                              "/model <name> - Change the model used\n" +
                              "/help - Show this help message\n" +
                              "/clear - Clear the response window\n" +
-                             "/explain [file_path] - Explain text from clipboard or specified file";
-        System.out.println(helpMessage);
+                             "/explain [file_path] - Explain text from clipboard or specified file\n" +
+                             "/stats - Show request timings of this session (--repl or --daemon)\n" +
+                             "/stop - Stop the answer being streamed (--repl)\n" +
+                             "/exit - Leave interactive mode (--repl)";
+        out.println(helpMessage);
+    }
+
+    /**
+     * Shows the request timings recorded by this process and the size of
+     * the history. A one-shot call starts with no timings, the REPL and the
+     * daemon accumulate them across messages.
+     */
+    private void showStats() {
+        out.println("System: " + LlmMetrics.getDefault().report());
+        out.println("System: " + EndpointPool.getDefault().report(llmEndpoint));
+        out.println("System: " + EndpointHealth.getDefault().status(llmEndpoint));
+        if (context != null) {
+            out.println("System: History " + context.size() + " messages, "
+                    + context.tokens() + " of " + context.budget() + " tokens");
+        }
+        if (compactor != null) {
+            out.println("System: History compaction " + compactor.stats());
+        }
     }
 
     private void clearResponseArea() {
-        System.out.println("System: Response area cleared.");
+        out.println("System: Response area cleared.");
     }
 
     private void processMessage(String message) {
         String timestamp = LocalDateTime.now().format(formatter);
 
         try {
-            JSONObject messageObject = new JSONObject();
-            messageObject.put("role", "user");
-            messageObject.put("content", message);
+            appendHistory(ChatMessage.user(message));
 
-            history.add(messageObject);
-            if (history.size() > 50) {
-                history.removeFirst();
-            }
-
-            JSONObject jsonInput = new JSONObject();
-            jsonInput.put("model", model);
-            jsonInput.put("messages", new JSONArray(history));
-            jsonInput.put("stream", true);
-            jsonInput.put("session_id", sessionId);
-
-            HttpClient client = HttpClient.newHttpClient();
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(llmEndpoint))
-                    .header("Content-Type", "application/json")
-                    .POST(HttpRequest.BodyPublishers.ofString(jsonInput.toString()))
-                    .build();
-
-            HttpResponse<Stream<String>> response = client.send(request, HttpResponse.BodyHandlers.ofLines());
-            StringBuilder responseBuilder = new StringBuilder();
+            List<ChatMessage> messages = context.messages();
             final boolean[] isFirstLine = {true};
-            response.body().forEach(line -> {
-                JSONObject jsonObject = new JSONObject(line);
-                if (jsonObject.has("session_id")) {
-                    sessionId = jsonObject.getString("session_id");
-                }
-                if (jsonObject.has("messages")) {
-                    JSONArray messages = jsonObject.getJSONArray("messages");
-                    for (int i = 0; i < messages.length(); i++) {
-                        JSONObject msg = messages.getJSONObject(i);
-                        if ("assistant".equals(msg.getString("role"))) {
-                            String content = msg.getString("content");
-                            responseBuilder.append(content);
-                            if (isFirstLine[0]) {
-                                System.out.print("Assistant: " + content);
-                                isFirstLine[0] = false;
-                            } else {
-                                System.out.print(content);
-                            }
-                        }
-                    }
-                } else {
-                    String content = jsonObject.getJSONObject("message").getString("content");
-                    responseBuilder.append(content);
+            OllamaStreamDecoder.Listener listener = new OllamaStreamDecoder.Listener() {
+                @Override
+                public void onContent(String content) {
                     if (isFirstLine[0]) {
-                        System.out.print("Assistant: " + content);
+                        out.print("Assistant: " + content);
                         isFirstLine[0] = false;
                     } else {
-                        System.out.print(content);
+                        out.print(content);
                     }
                 }
-            });
 
-            String responseText = responseBuilder.toString().trim();
+                @Override
+                public void onSessionId(String newSessionId) {
+                    sessionId = newSessionId;
+                }
+            };
+
+            String responseText = chat(llmEndpoint, messages, sessionId, listener);
 
-            JSONObject responseObject = new JSONObject();
-            responseObject.put("role", "assistant");
-            responseObject.put("content", responseText);
-            history.add(responseObject);
-            if (history.size() > 50) {
-                history.removeFirst();
+            appendHistory(ChatMessage.assistant(responseText));
+            if (repl) {
+                out.println();
             }
+        } catch (CancellationException e) {
+            out.println();
+            out.println("System: Stopped");
         } catch (Exception e) {
-            System.out.println("Assistant: Ollama is unavailable.");
-            System.out.println("[" + timestamp + " - Error]\n" + e.getMessage());
+            out.println("Assistant: Ollama is unavailable.");
+            out.println("[" + timestamp + " - Error]\n" + e.getMessage());
         }
     }
 
+    /**
+     * Sends messages to the model and streams the answer to the listener.
+     * Deterministic answers are replayed from the cache without asking the
+     * model. With several endpoints a failing host fails over to another one,
+     * and with {@code --hedge} a slow one is hedged with another one, see
+     * {@link HedgedChat}.
+     *
+     * @param endpoints the comma separated endpoints, see {@link EndpointPool}
+     * @param messages the messages, oldest first
+     * @param session the session id keeping the conversation on one host, or null
+     * @param listener receives the streamed answer
+     * @return the answer
+     * @throws IOException when the request fails
+     * @throws CancellationException when the answer was stopped with /stop
+     * or the call was aborted
+     * @throws InterruptedException when interrupted while waiting
+     */
+    private String chat(String endpoints, List<ChatMessage> messages, String session,
+            OllamaStreamDecoder.Listener listener) throws IOException, InterruptedException {
+        String cacheKey = null;
+        if (!noCache && ResponseCache.isCacheable(temperature)) {
+            cacheKey = ResponseCache.key("OLLAMA", model, temperature, messages,
+                    ChatMessage::role, ChatMessage::content);
+        }
+        Optional<String> cached = cacheKey == null ? Optional.empty() : responseCache.get(cacheKey);
+        if (aborted) {
+            throw new CancellationException("Call aborted");
+        }
+        if (cached.isPresent()) {
+            LlmMetrics.getDefault().cacheHit("OLLAMA", model);
+            listener.onContent(cached.get());
+            return cached.get();
+        }
+
+        int promptTokens = 0;
+        for (ChatMessage entry : messages) {
+            promptTokens += ContextWindow.estimateTokens(entry.content());
+        }
+        LlmMetrics.Request metric = LlmMetrics.getDefault().start("OLLAMA", model, promptTokens);
+        String body = ChatCodec.ollamaRequest(model, messages, temperature, keepAlive, session);
+
+        CompletableFuture<HttpResponse<String>> future = null;
+        HttpResponse<String> response;
+        try {
+            future = HedgedChat.send(endpoints, session, body, timeouts(),
+                    hedge ? HedgePolicy.defaultPolicy() : HedgePolicy.disabled(), metric, listener);
+            inFlight.add(future);
+            if (aborted) {
+                // abort() may have run between the check above and the add
+                future.cancel(true);
+            }
+            response = future.get();
+        } catch (CancellationException e) {
+            metric.cancel();
+            throw e;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            metric.fail(e);
+            throw e;
+        } catch (ExecutionException | RuntimeException e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            metric.fail(cause);
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+        } finally {
+            if (future != null) {
+                inFlight.remove(future);
+            }
+        }
+        metric.record(response, null);
+
+        String responseText = response.body().trim();
+        if (cacheKey != null && !responseText.isEmpty()) {
+            responseCache.put(cacheKey, responseText);
+        }
+        return responseText;
+    }
+
+    /**
+     * Cancels the answers in flight, for /stop.
+     *
+     * @return true if an answer was stopped
+     */
+    boolean stop() {
+        boolean stopped = false;
+        for (CompletableFuture<?> request : inFlight) {
+            stopped |= request.cancel(true);
+        }
+        return stopped;
+    }
+
+    /**
+     * Stops the call for good, e.g. when the client of the daemon went away:
+     * the answers in flight are cancelled and no further request is sent.
+     */
+    void abort() {
+        aborted = true;
+        stop();
+    }
+
+    /**
+     * Returns the timeouts set on the command line.
+     *
+     * @return the default configuration with the timeouts of the options
+     */
+    private LlmConfiguration timeouts() {
+        return LlmConfiguration.defaultConfig()
+                .withConnectTimeout(Duration.ofSeconds(connectTimeout))
+                .withFirstTokenTimeout(Duration.ofSeconds(firstTokenTimeout))
+                .withIdleTimeout(Duration.ofSeconds(idleTimeout));
+    }
+
     private void loadState() {
         try {
-            if (Files.exists(stateDir)) {
-                Path historyFile = stateDir.resolve("history.json");
-                if (Files.exists(historyFile)) {
-                    String content = Files.readString(historyFile);
-                    JSONArray jsonArray = new JSONArray(content);
-                    for (int i = 0; i < jsonArray.length(); i++) {
-                        history.add(jsonArray.getJSONObject(i));
-                    }
-                }
-                Path sessionIdFile = stateDir.resolve("session_id.txt");
-                if (Files.exists(sessionIdFile)) {
-                    sessionId = Files.readString(sessionIdFile).trim();
-                }
-                Path endpointFile = stateDir.resolve("endpoint.txt");
-                if (Files.exists(endpointFile)) {
-                    llmEndpoint = Files.readString(endpointFile).trim();
-                } else {
-                    llmEndpoint = DEFAULT_ENDPOINT;
-                }
-                Path modelFile = stateDir.resolve("model.txt");
-                if (Files.exists(modelFile)) {
-                    model = Files.readString(modelFile).trim();
-                } else {
-                    model = "llama3";
-                }
-            } else {
-                Files.createDirectories(stateDir);
+            journal.load();
+            history = journal.getHistory();
+            if (journal.getSessionId() != null) {
+                sessionId = journal.getSessionId();
             }
+            llmEndpoint = journal.getEndpoint() != null ? journal.getEndpoint() : DEFAULT_ENDPOINT;
+            model = journal.getModel() != null ? journal.getModel() : "llama3";
         } catch (IOException e) {
-            System.out.println("Error loading state: " + e.getMessage());
+            out.println("Error loading state: " + e.getMessage());
         }
     }
 
     private void saveState() {
         try {
-            Path historyFile = stateDir.resolve("history.json");
-            Files.writeString(historyFile, new JSONArray(history).toString());
-
-            Path sessionIdFile = stateDir.resolve("session_id.txt");
-            Files.writeString(sessionIdFile, sessionId);
-
-            Path endpointFile = stateDir.resolve("endpoint.txt");
-            Files.writeString(endpointFile, llmEndpoint);
+            journal.updateSettings(sessionId, llmEndpoint, model);
+        } catch (IOException e) {
+            out.println("Error saving state: " + e.getMessage());
+        }
+    }
 
-            Path modelFile = stateDir.resolve("model.txt");
-            Files.writeString(modelFile, model);
+    private void appendHistory(ChatMessage message) {
+        if (context == null) {
+            context = new ContextWindow<>(contextTokens, entry -> ContextWindow.estimateTokens(entry.content()),
+                    ChatMessage::role);
+            history.forEach(context::add);
+            if (repl) {
+                compactor = new ConversationCompactor<>(context,
+                        entry -> entry.role() + ": " + entry.content(),
+                        summary -> ChatMessage.system(ConversationCompactor.SUMMARY_PREFIX + summary),
+                        new OllamaSummarizer(() -> llmEndpoint, () -> model, () -> keepAlive, this::timeouts));
+            }
+        }
+        context.add(message);
+        if (repl) {
+            journal.appendLater(message);
+            return;
+        }
+        try {
+            journal.append(message);
         } catch (IOException e) {
-            System.out.println("Error saving state: " + e.getMessage());
+            out.println("Error saving state: " + e.getMessage());
         }
     }
 }
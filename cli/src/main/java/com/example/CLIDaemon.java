@@ -0,0 +1,307 @@
+package com.example;
+
+import picocli.CommandLine;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Opt-in daemon keeping one warm CLI process behind a Unix domain socket.
+ *
+ * <p>
+ * {@code assistant-cli --daemon} binds {@code daemon.sock} in the state
+ * directory and serves requests one at a time. It keeps the JIT-compiled
+ * code, the pooled {@link com.manorrock.assistant.shared.LlmTransport}
+ * connections and the loaded {@link ConversationJournal} across calls. While
+ * it runs, every other {@code assistant-cli} call is a thin client: it
+ * forwards its arguments, working directory and, with {@code --stdin} or
+ * {@code --batch -}, its standard input, then copies the streamed output and
+ * exit code back without initializing picocli or reading any state. Calls
+ * made with {@code --no-daemon} while the daemon runs append their turns to
+ * the same journal. Its lock keeps the records of both intact, but the
+ * daemon's loaded history window does not include those turns, so its
+ * later answers do not see them until it is restarted.
+ * </p>
+ *
+ * <p>
+ * Requests are length-prefixed: the argument count, each argument, the
+ * working directory and the standard input (length -1 if absent). Responses
+ * are frames of a type byte ({@link #STDOUT}, {@link #STDERR} or
+ * {@link #EXIT}), a length and the payload, so tokens reach the client as
+ * soon as they are printed.
+ * </p>
+ *
+ * <p>
+ * The client sends nothing after its request, so the daemon reads the
+ * socket while the call runs: end of stream means the client went away,
+ * e.g. on Ctrl+C, and the call is aborted so the next queued request does
+ * not wait for an answer nobody reads.
+ * </p>
+ */
+class CLIDaemon {
+
+    static final byte STDOUT = 1;
+
+    static final byte STDERR = 2;
+
+    static final byte EXIT = 3;
+
+    private final Path socket;
+
+    private final ConversationJournal journal;
+
+    private boolean running = true;
+
+    /**
+     * Constructor.
+     *
+     * @param stateDir the state directory
+     * @param journal the journal kept in memory across requests
+     */
+    CLIDaemon(Path stateDir, ConversationJournal journal) {
+        this.socket = socketPath(stateDir);
+        this.journal = journal;
+    }
+
+    /**
+     * Returns the socket the daemon listens on.
+     *
+     * @param stateDir the state directory
+     * @return the socket path
+     */
+    static Path socketPath(Path stateDir) {
+        return stateDir.resolve("daemon.sock");
+    }
+
+    /**
+     * Returns whether a daemon answers on the socket.
+     *
+     * @param stateDir the state directory
+     * @return true if a daemon accepts connections
+     */
+    static boolean isRunning(Path stateDir) {
+        Path socket = socketPath(stateDir);
+        if (!Files.exists(socket)) {
+            return false;
+        }
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Forwards a CLI call to a running daemon.
+     *
+     * @param stateDir the state directory
+     * @param args the command line arguments
+     * @return the exit code, or null if no daemon is running
+     * @throws IOException when the connection fails after the request was sent
+     */
+    static Integer forward(Path stateDir, String[] args) throws IOException {
+        Path socket = socketPath(stateDir);
+        if (!Files.exists(socket)) {
+            return null;
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            return null;
+        }
+        try (channel) {
+            DataOutputStream request = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            boolean readStdin = false;
+            request.writeInt(args.length);
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                writeString(request, arg);
+                // --batch without a file, or with "-", reads the prompts from standard input
+                readStdin |= arg.equals("--stdin") || arg.equals("--batch=-")
+                        || arg.equals("--batch") && (i + 1 == args.length || args[i + 1].startsWith("-"));
+            }
+            writeString(request, Paths.get("").toAbsolutePath().toString());
+            if (readStdin) {
+                byte[] stdin = System.in.readAllBytes();
+                request.writeInt(stdin.length);
+                request.write(stdin);
+            } else {
+                request.writeInt(-1);
+            }
+            request.flush();
+
+            DataInputStream response = new DataInputStream(Channels.newInputStream(channel));
+            while (true) {
+                byte type = response.readByte();
+                byte[] payload = new byte[response.readInt()];
+                response.readFully(payload);
+                switch (type) {
+                    case STDOUT -> {
+                        System.out.write(payload);
+                        System.out.flush();
+                    }
+                    case STDERR -> {
+                        System.err.write(payload);
+                        System.err.flush();
+                    }
+                    case EXIT -> {
+                        return ByteBuffer.wrap(payload).getInt();
+                    }
+                    default -> throw new IOException("Unknown frame type: " + type);
+                }
+            }
+        }
+    }
+
+    /**
+     * Serves requests until {@code --stop-daemon} is received.
+     *
+     * @throws IOException when the socket cannot be bound or another daemon
+     * is running
+     */
+    void serve() throws IOException {
+        Files.createDirectories(socket.getParent());
+        if (isRunning(socket.getParent())) {
+            throw new IOException("Daemon already running on " + socket);
+        }
+        // a daemon that did not shut down cleanly leaves its socket behind,
+        // which refuses connections
+        Files.deleteIfExists(socket);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            System.out.println("System: Daemon listening on " + socket);
+            while (running) {
+                try (SocketChannel channel = server.accept()) {
+                    handle(channel);
+                } catch (EOFException e) {
+                    // a connection without a request, e.g. from isRunning()
+                } catch (IOException e) {
+                    System.out.println("System: Daemon request failed: " + e.getMessage());
+                }
+            }
+        } finally {
+            Files.deleteIfExists(socket);
+        }
+    }
+
+    private void handle(SocketChannel channel) throws IOException {
+        DataInputStream request = new DataInputStream(Channels.newInputStream(channel));
+        String[] args = new String[request.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = readString(request);
+        }
+        Path workingDir = Paths.get(readString(request));
+        int stdinLength = request.readInt();
+        byte[] stdin = new byte[Math.max(0, stdinLength)];
+        request.readFully(stdin);
+
+        PrintStream out = new PrintStream(new FrameOutputStream(channel, STDOUT), true, StandardCharsets.UTF_8);
+        PrintStream err = new PrintStream(new FrameOutputStream(channel, STDERR), true, StandardCharsets.UTF_8);
+        int exitCode;
+        if (Arrays.asList(args).contains("--stop-daemon")) {
+            out.println("System: Daemon stopped");
+            running = false;
+            exitCode = 0;
+        } else {
+            CLIController controller = new CLIController(journal, out, new ByteArrayInputStream(stdin), workingDir);
+            CommandLine commandLine = new CommandLine(controller);
+            commandLine.setOut(new PrintWriter(out, true));
+            commandLine.setErr(new PrintWriter(err, true));
+            AtomicBoolean done = new AtomicBoolean();
+            watchClient(channel, controller, done);
+            try {
+                exitCode = commandLine.execute(args);
+            } finally {
+                done.set(true);
+            }
+        }
+        out.flush();
+        err.flush();
+        new FrameOutputStream(channel, EXIT).write(ByteBuffer.allocate(4).putInt(exitCode).array());
+    }
+
+    /**
+     * Aborts the call when the client closes its end of the socket. The
+     * watching thread ends when the daemon closes the channel after the call.
+     */
+    private static void watchClient(SocketChannel channel, CLIController controller, AtomicBoolean done) {
+        Thread watcher = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocate(64);
+            try {
+                while (channel.read(buffer) >= 0) {
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                // closed by the daemon after the call, or reset by the client
+            }
+            if (!done.get()) {
+                System.out.println("System: Daemon client disconnected, stopping the call");
+                controller.abort();
+            }
+        }, "daemon-client-watch");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes every chunk as one frame of the given type.
+     */
+    private static final class FrameOutputStream extends OutputStream {
+
+        private final SocketChannel channel;
+
+        private final byte type;
+
+        FrameOutputStream(SocketChannel channel, byte type) {
+            this.channel = channel;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            ByteBuffer frame = ByteBuffer.allocate(5 + length).put(type).putInt(length).put(bytes, offset, length).flip();
+            synchronized (channel) {
+                while (frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,585 @@
+package com.example;
+
+import com.manorrock.assistant.shared.ChatCodec;
+import com.manorrock.assistant.shared.ChatMessage;
+import com.manorrock.assistant.shared.LlmEvents;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Append-only, segmented store for the CLI conversation.
+ *
+ * <p>
+ * Messages are appended as JSON records to segment files
+ * ({@code history-00000000.log}, ...) of at most {@link #SEGMENT_SIZE} bytes.
+ * The offset index {@code history.idx} holds one fixed-width entry
+ * (segment, position, length) per message, so the tail of the conversation
+ * is found with a single seek. Saving a turn costs two small appends no
+ * matter how long the conversation is. The REPL queues messages with
+ * {@link #appendLater(ChatMessage)} so they are written in batches off the
+ * prompt thread.
+ * </p>
+ *
+ * <p>
+ * At startup only the index entries of the history window and the segments
+ * they point into are memory-mapped; messages are decoded lazily on first
+ * access. Startup time and heap use therefore stay flat as the stored
+ * history grows. Once the index holds more than {@link #COMPACT_THRESHOLD}
+ * entries, segments before the window are deleted and the index is
+ * rewritten to the window.
+ * </p>
+ *
+ * <p>
+ * The session id, endpoint and model are kept in {@code settings.properties}
+ * and only rewritten when they change. On first use the legacy
+ * {@code history.json}, {@code session_id.txt}, {@code endpoint.txt},
+ * {@code model.txt} and {@code journal.log} state is imported.
+ * </p>
+ *
+ * <p>
+ * Several processes may write the same state directory, e.g. parallel
+ * scripted calls. Loading, appending and compacting hold a lock on
+ * {@code history.lock}, and an append takes its positions from the actual
+ * end of the segment and the index, not from what this instance last saw.
+ * An index entry that does not point at a whole record is left out of the
+ * history window instead of failing every later call.
+ * </p>
+ *
+ * <p>
+ * Opening, loading, appending to and reading a journal is public so it can
+ * be driven from outside the CLI, e.g. by the benchmarks; the rest stays
+ * internal to the CLI.
+ * </p>
+ */
+public class ConversationJournal {
+
+    static final int SEGMENT_SIZE = 1 << 20;
+
+    static final int ENTRY_SIZE = 12;
+
+    static final long COMPACT_THRESHOLD = 10_000;
+
+    /**
+     * The monitors guarding the file lock of each state directory, since a
+     * file lock is held per process and cannot be taken twice in it.
+     */
+    private static final Map<Path, Object> LOCKS = new ConcurrentHashMap<>();
+
+    private final Path stateDir;
+    private final Path indexFile;
+    private final Path lockFile;
+    private final Path settingsFile;
+    private final int window;
+    private final List<Message> messages = new ArrayList<>();
+    private final Map<Integer, MappedByteBuffer> segments = new HashMap<>();
+    private final List<ChatMessage> history = new AbstractList<>() {
+        @Override
+        public ChatMessage get(int index) {
+            return messages.get(index).decode();
+        }
+
+        @Override
+        public int size() {
+            return messages.size();
+        }
+    };
+    private String sessionId;
+    private String endpoint;
+    private String model;
+    private long count;
+    private int segment;
+    private long segmentSize;
+    private boolean loaded;
+    private final List<ChatMessage> pending = new ArrayList<>();
+    private ExecutorService writer;
+    private volatile IOException writeFailure;
+
+    /**
+     * A message in the history window, decoded on first access.
+     */
+    private static final class Message {
+
+        private final int segment;
+        private final int position;
+        private final ByteBuffer bytes;
+        private ChatMessage decoded;
+
+        Message(int segment, int position, ByteBuffer bytes, ChatMessage decoded) {
+            this.segment = segment;
+            this.position = position;
+            this.bytes = bytes;
+            this.decoded = decoded;
+        }
+
+        ChatMessage decode() {
+            if (decoded == null) {
+                decoded = ChatCodec.decodeMessage(StandardCharsets.UTF_8.decode(bytes.duplicate()).toString());
+            }
+            return decoded;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param stateDir the state directory
+     * @param window the number of messages kept in the history window
+     */
+    public ConversationJournal(Path stateDir, int window) {
+        this.stateDir = stateDir;
+        this.indexFile = stateDir.resolve("history.idx");
+        this.lockFile = stateDir.toAbsolutePath().normalize().resolve("history.lock");
+        this.settingsFile = stateDir.resolve("settings.properties");
+        this.window = window;
+    }
+
+    /**
+     * Loads the settings and maps the tail of the log holding the history
+     * window. Does nothing if the journal is already loaded, e.g. in a
+     * daemon serving many calls.
+     *
+     * @throws IOException when an I/O error occurs
+     */
+    public void load() throws IOException {
+        if (loaded) {
+            return;
+        }
+        LlmEvents.HistoryPersistence event = new LlmEvents.HistoryPersistence();
+        event.begin();
+        Files.createDirectories(stateDir);
+        long bytes = locked(() -> {
+            if (!Files.exists(indexFile)) {
+                importLegacyState();
+                return -1;
+            }
+            if (Files.exists(settingsFile)) {
+                Properties settings = new Properties();
+                try (InputStream input = Files.newInputStream(settingsFile)) {
+                    settings.load(input);
+                }
+                sessionId = settings.getProperty("sessionId");
+                endpoint = settings.getProperty("endpoint");
+                model = settings.getProperty("model");
+            }
+            long mapped = 0;
+            try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                count = channel.size() / ENTRY_SIZE;
+                if (channel.size() != count * ENTRY_SIZE) {
+                    // drop a torn entry left behind by an interrupted append
+                    channel.truncate(count * ENTRY_SIZE);
+                }
+                int tail = (int) Math.min(window, count);
+                if (tail > 0) {
+                    MappedByteBuffer entries = channel.map(FileChannel.MapMode.READ_ONLY,
+                            (count - tail) * ENTRY_SIZE, (long) tail * ENTRY_SIZE);
+                    for (int i = 0; i < tail; i++) {
+                        int entrySegment = entries.getInt();
+                        int position = entries.getInt();
+                        int length = entries.getInt();
+                        segment = Math.max(segment, entrySegment);
+                        MappedByteBuffer records = mapSegment(entrySegment);
+                        if (records == null || !isRecord(records, position, length)) {
+                            continue;
+                        }
+                        mapped += length;
+                        messages.add(new Message(entrySegment, position, records.slice(position, length), null));
+                    }
+                }
+            }
+            return mapped;
+        });
+        if (bytes < 0) {
+            loaded = true;
+            event.commit("import", messages.size(), 0);
+            return;
+        }
+        Path segmentFile = segmentFile(segment);
+        segmentSize = Files.exists(segmentFile) ? Files.size(segmentFile) : 0;
+        loaded = true;
+        event.commit("load", messages.size(), bytes);
+    }
+
+    /**
+     * Appends a message to the log and the history window.
+     *
+     * @param message the message
+     * @throws IOException when an I/O error occurs
+     */
+    public void append(ChatMessage message) throws IOException {
+        appendAll(List.of(message));
+    }
+
+    /**
+     * Appends messages to the log and the history window with one write per
+     * touched segment and one write to the index.
+     *
+     * @param batch the messages
+     * @throws IOException when an I/O error occurs
+     */
+    synchronized void appendAll(List<ChatMessage> batch) throws IOException {
+        LlmEvents.HistoryPersistence event = new LlmEvents.HistoryPersistence();
+        event.begin();
+        long bytes = locked(() -> appendLocked(batch));
+        event.commit("append", batch.size(), bytes);
+    }
+
+    /**
+     * Appends messages holding the lock.
+     *
+     * @return the bytes written
+     */
+    private long appendLocked(List<ChatMessage> batch) throws IOException {
+        long written = 0;
+        try (FileChannel index = FileChannel.open(indexFile, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // another process may have appended since, continue where the files end
+            count = index.size() / ENTRY_SIZE;
+            if (index.size() != count * ENTRY_SIZE) {
+                index.truncate(count * ENTRY_SIZE);
+            }
+            if (count > 0) {
+                ByteBuffer last = ByteBuffer.allocate(Integer.BYTES);
+                index.read(last, (count - 1) * ENTRY_SIZE);
+                segment = Math.max(segment, last.getInt(0));
+            }
+            Path segmentFile = segmentFile(segment);
+            segmentSize = Files.exists(segmentFile) ? Files.size(segmentFile) : 0;
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            ByteBuffer entries = ByteBuffer.allocate(batch.size() * ENTRY_SIZE);
+            for (ChatMessage message : batch) {
+                byte[] record = (ChatCodec.encode(message) + "\n").getBytes(StandardCharsets.UTF_8);
+                int length = record.length - 1;
+                if (segmentSize > 0 && segmentSize + record.length > SEGMENT_SIZE) {
+                    writeRecords(records);
+                    segment++;
+                    segmentSize = 0;
+                }
+                int position = (int) segmentSize;
+                records.writeBytes(record);
+                segmentSize += record.length;
+                written += record.length + ENTRY_SIZE;
+                entries.putInt(segment).putInt(position).putInt(length);
+                messages.add(new Message(segment, position, ByteBuffer.wrap(record, 0, length), message));
+            }
+            writeRecords(records);
+            // the index is written last so it never points past the log
+            entries.flip();
+            long end = count * ENTRY_SIZE;
+            while (entries.hasRemaining()) {
+                end += index.write(entries, end);
+            }
+            count += batch.size();
+        }
+        while (messages.size() > window) {
+            messages.remove(0);
+        }
+        if (count > COMPACT_THRESHOLD) {
+            compactLocked();
+        }
+        return written;
+    }
+
+    /**
+     * Queues a message to be appended on a background thread. Messages
+     * queued while a write is in progress are written together in the next
+     * batch. Call {@link #flush()} before exiting.
+     *
+     * @param message the message
+     */
+    void appendLater(ChatMessage message) {
+        synchronized (pending) {
+            pending.add(message);
+            if (pending.size() > 1) {
+                return;
+            }
+        }
+        if (writer == null) {
+            writer = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "journal-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        writer.execute(this::drain);
+    }
+
+    /**
+     * Waits until all queued messages are written.
+     *
+     * @throws IOException when a queued write failed
+     */
+    void flush() throws IOException {
+        if (writer != null) {
+            try {
+                writer.submit(() -> { }).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+        IOException failure = writeFailure;
+        writeFailure = null;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Returns the history window. Messages are decoded on first access.
+     *
+     * @return the history window
+     */
+    public List<ChatMessage> getHistory() {
+        return history;
+    }
+
+    /**
+     * Returns the stored session id.
+     *
+     * @return the session id, or null
+     */
+    String getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Returns the stored endpoint.
+     *
+     * @return the endpoint, or null
+     */
+    String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Returns the stored model.
+     *
+     * @return the model, or null
+     */
+    String getModel() {
+        return model;
+    }
+
+    /**
+     * Updates the session id, endpoint and model, writing the settings only
+     * if one of them changed.
+     *
+     * @param sessionId the session id
+     * @param endpoint the endpoint
+     * @param model the model
+     * @throws IOException when an I/O error occurs
+     */
+    public void updateSettings(String sessionId, String endpoint, String model) throws IOException {
+        if (!sessionId.equals(this.sessionId) || !endpoint.equals(this.endpoint) || !model.equals(this.model)) {
+            this.sessionId = sessionId;
+            this.endpoint = endpoint;
+            this.model = model;
+            writeSettings();
+        }
+    }
+
+    /**
+     * Deletes the segments before the history window and rewrites the index
+     * so it only holds the window.
+     *
+     * @throws IOException when an I/O error occurs
+     */
+    void compact() throws IOException {
+        locked(() -> {
+            compactLocked();
+            return 0L;
+        });
+    }
+
+    /**
+     * Rewrites the index to its last entries and deletes the segments they
+     * no longer point into, holding the lock. The entries are read from the
+     * index rather than taken from the window, so the turns another process
+     * appended are kept.
+     */
+    private void compactLocked() throws IOException {
+        LlmEvents.HistoryPersistence event = new LlmEvents.HistoryPersistence();
+        event.begin();
+        ByteBuffer entries;
+        try (FileChannel index = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            long total = index.size() / ENTRY_SIZE;
+            int tail = (int) Math.min(window, total);
+            entries = ByteBuffer.allocate(tail * ENTRY_SIZE);
+            long position = (total - tail) * ENTRY_SIZE;
+            while (entries.hasRemaining() && index.read(entries, position + entries.position()) >= 0) {
+                // read the whole tail
+            }
+        }
+        int first = entries.capacity() == 0 ? segment : entries.getInt(0);
+        Path temp = stateDir.resolve("history.idx.tmp");
+        Files.write(temp, entries.array());
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        count = entries.capacity() / ENTRY_SIZE;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(stateDir, "history-*.log")) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                int number = Integer.parseInt(name.substring(8, name.length() - 4));
+                if (number < first) {
+                    segments.remove(number);
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        event.commit("compact", (int) count, entries.capacity());
+    }
+
+    /**
+     * Runs an action holding the lock of the state directory, against other
+     * processes and other journals of the same directory in this process.
+     */
+    private long locked(LockedAction action) throws IOException {
+        synchronized (LOCKS.computeIfAbsent(lockFile, key -> new Object())) {
+            try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    FileLock lock = channel.lock()) {
+                return action.run();
+            }
+        }
+    }
+
+    /**
+     * An action run holding the lock.
+     */
+    private interface LockedAction {
+
+        long run() throws IOException;
+    }
+
+    /**
+     * Returns whether an index entry points at a whole record: a JSON object
+     * starting at the beginning of a line and ending at its end.
+     */
+    private static boolean isRecord(MappedByteBuffer records, int position, int length) {
+        return position >= 0 && length > 0 && position + length < records.limit()
+                && (position == 0 || records.get(position - 1) == '\n')
+                && records.get(position) == '{' && records.get(position + length) == '\n';
+    }
+
+    private void drain() {
+        List<ChatMessage> batch;
+        synchronized (pending) {
+            batch = new ArrayList<>(pending);
+            pending.clear();
+        }
+        try {
+            appendAll(batch);
+        } catch (IOException e) {
+            writeFailure = e;
+        }
+    }
+
+    private void writeRecords(ByteArrayOutputStream records) throws IOException {
+        if (records.size() > 0) {
+            Files.write(segmentFile(segment), records.toByteArray(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            records.reset();
+        }
+    }
+
+    private void writeSettings() throws IOException {
+        LlmEvents.HistoryPersistence event = new LlmEvents.HistoryPersistence();
+        event.begin();
+        Properties settings = new Properties();
+        if (sessionId != null) {
+            settings.setProperty("sessionId", sessionId);
+        }
+        if (endpoint != null) {
+            settings.setProperty("endpoint", endpoint);
+        }
+        if (model != null) {
+            settings.setProperty("model", model);
+        }
+        // unique, another process may write its settings at the same time
+        Path temp = Files.createTempFile(stateDir, "settings.properties", ".tmp");
+        try (OutputStream output = Files.newOutputStream(temp)) {
+            settings.store(output, null);
+        }
+        Files.move(temp, settingsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        event.commit("settings", 0, event.isEnabled() ? Files.size(settingsFile) : 0);
+    }
+
+    private MappedByteBuffer mapSegment(int number) throws IOException {
+        MappedByteBuffer buffer = segments.get(number);
+        if (buffer == null) {
+            try (FileChannel channel = FileChannel.open(segmentFile(number), StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+            segments.put(number, buffer);
+        }
+        return buffer;
+    }
+
+    private Path segmentFile(int number) {
+        return stateDir.resolve(String.format("history-%08d.log", number));
+    }
+
+    private void importLegacyState() throws IOException {
+        List<ChatMessage> legacy = new ArrayList<>();
+        Path journalFile = stateDir.resolve("journal.log");
+        Path historyFile = stateDir.resolve("history.json");
+        if (Files.exists(journalFile)) {
+            for (String line : Files.readAllLines(journalFile, StandardCharsets.UTF_8)) {
+                if (!line.isEmpty()) {
+                    legacy.add(ChatCodec.decodeMessage(line));
+                }
+            }
+            Path journalIndex = stateDir.resolve("journal.idx");
+            if (Files.exists(journalIndex)) {
+                Properties index = new Properties();
+                try (InputStream input = Files.newInputStream(journalIndex)) {
+                    index.load(input);
+                }
+                sessionId = index.getProperty("sessionId");
+                endpoint = index.getProperty("endpoint");
+                model = index.getProperty("model");
+            }
+        } else if (Files.exists(historyFile)) {
+            legacy.addAll(ChatCodec.decodeMessages(Files.readString(historyFile)));
+        }
+        Path sessionIdFile = stateDir.resolve("session_id.txt");
+        if (sessionId == null && Files.exists(sessionIdFile)) {
+            sessionId = Files.readString(sessionIdFile).trim();
+        }
+        Path endpointFile = stateDir.resolve("endpoint.txt");
+        if (endpoint == null && Files.exists(endpointFile)) {
+            endpoint = Files.readString(endpointFile).trim();
+        }
+        Path modelFile = stateDir.resolve("model.txt");
+        if (model == null && Files.exists(modelFile)) {
+            model = Files.readString(modelFile).trim();
+        }
+        writeSettings();
+        Files.write(indexFile, new byte[0], StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        appendLocked(legacy.subList(Math.max(0, legacy.size() - window), legacy.size()));
+    }
+}
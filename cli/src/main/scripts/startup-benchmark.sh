@@ -0,0 +1,39 @@
+#!/usr/bin/env bash
+#
+# Reports the median time to the first REPL prompt of the CLI jar with and
+# without the class data sharing archive built with -Pappcds.
+#
+# Usage: startup-benchmark.sh [runs]
+#
+DIR=$(cd "$(dirname "$0")" && pwd)
+JAVA="${JAVA_HOME:+$JAVA_HOME/bin/}java"
+RUNS=${1:-10}
+HOME_DIR=$(mktemp -d)
+trap 'rm -rf "$HOME_DIR"' EXIT
+
+# Runs the REPL until its first prompt and exits, printing the elapsed milliseconds.
+measure() {
+    local start end
+    start=$EPOCHREALTIME
+    printf '/exit\n' | "$JAVA" "$@" -Duser.home="$HOME_DIR" -jar "$DIR/@JAR@" --repl --no-daemon > /dev/null
+    end=$EPOCHREALTIME
+    awk -v start="$start" -v end="$end" 'BEGIN { printf "%d\n", (end - start) * 1000 }'
+}
+
+# Prints the median of the given number of runs.
+median() {
+    local i
+    for ((i = 0; i < RUNS; i++)); do
+        measure "$@"
+    done | sort -n | awk '{ values[NR] = $1 } END { print values[int((NR + 1) / 2)] }'
+}
+
+measure -Xshare:off > /dev/null
+echo "Time to first prompt, median of $RUNS runs"
+echo "  without archive: $(median -Xshare:off) ms"
+echo "  default JDK archive: $(median) ms"
+if [ -f "$DIR/assistant-cli.jsa" ]; then
+    echo "  with assistant-cli.jsa: $(median -XX:SharedArchiveFile="$DIR/assistant-cli.jsa") ms"
+else
+    echo "  with assistant-cli.jsa: not built, run mvn -Pappcds package"
+fi
@@ -0,0 +1,93 @@
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.manorrock.assistant.shared.ChatMessage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Two journals writing one state directory, the way parallel CLI calls or a
+ * {@code --no-daemon} call next to the daemon do.
+ */
+class ConversationJournalTest {
+
+    @TempDir
+    Path stateDir;
+
+    @Test
+    void staleWriterAppendsAfterTheOtherWriter() throws IOException {
+        ConversationJournal first = new ConversationJournal(stateDir, 200);
+        ConversationJournal second = new ConversationJournal(stateDir, 200);
+        first.load();
+        second.load();
+        first.append(ChatMessage.user("from the first writer"));
+        second.append(ChatMessage.user("from the second writer, which is longer"));
+
+        assertEquals(List.of(ChatMessage.user("from the first writer"),
+                ChatMessage.user("from the second writer, which is longer")), reload());
+    }
+
+    @Test
+    void concurrentWritersKeepEveryMessage() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (String name : List.of("a", "b")) {
+                writers.add(executor.submit(() -> {
+                    ConversationJournal journal = new ConversationJournal(stateDir, 200);
+                    journal.load();
+                    for (int i = 0; i < 50; i++) {
+                        journal.append(ChatMessage.user(name + i));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        List<ChatMessage> history = reload();
+        assertEquals(100, history.size());
+        for (String name : List.of("a", "b")) {
+            List<String> contents = history.stream().map(ChatMessage::content).filter(c -> c.startsWith(name)).toList();
+            for (int i = 0; i < 50; i++) {
+                assertEquals(name + i, contents.get(i));
+            }
+        }
+    }
+
+    @Test
+    void entryNotPointingAtARecordIsDropped() throws IOException {
+        ConversationJournal journal = new ConversationJournal(stateDir, 200);
+        journal.load();
+        journal.append(ChatMessage.user("kept"));
+        // an entry pointing into the middle of the record
+        ByteBuffer entry = ByteBuffer.allocate(ConversationJournal.ENTRY_SIZE).putInt(0).putInt(3).putInt(5);
+        Files.write(stateDir.resolve("history.idx"), entry.array(), StandardOpenOption.APPEND);
+        journal = new ConversationJournal(stateDir, 200);
+        journal.load();
+        journal.append(ChatMessage.assistant("also kept"));
+
+        assertEquals(List.of(ChatMessage.user("kept"), ChatMessage.assistant("also kept")), reload());
+    }
+
+    private List<ChatMessage> reload() throws IOException {
+        ConversationJournal journal = new ConversationJournal(stateDir, 200);
+        journal.load();
+        return new ArrayList<>(journal.getHistory());
+    }
+}
@@ -0,0 +1,81 @@
+package com.example;
+
+import javafx.beans.property.SimpleStringProperty;
+import javafx.beans.property.StringProperty;
+
+/**
+ * A single message in the desktop transcript.
+ *
+ * <p>
+ * The speaker is fixed, the text is observable so the cell showing the
+ * active answer can follow the stream while all other cells stay untouched.
+ * </p>
+ */
+public class ChatEntry {
+
+    private final String speaker;
+
+    private final StringProperty text;
+
+    /**
+     * Constructor.
+     *
+     * @param speaker the speaker (e.g. "You", "Assistant", "System"), or null
+     * for text without a speaker prefix
+     * @param text the initial text
+     */
+    public ChatEntry(String speaker, String text) {
+        this.speaker = speaker;
+        this.text = new SimpleStringProperty(this, "text", text);
+    }
+
+    /**
+     * Returns the speaker.
+     *
+     * @return the speaker, or null
+     */
+    public String getSpeaker() {
+        return speaker;
+    }
+
+    /**
+     * Returns the text.
+     *
+     * @return the text
+     */
+    public String getText() {
+        return text.get();
+    }
+
+    /**
+     * Sets the text.
+     *
+     * @param text the text
+     */
+    public void setText(String text) {
+        this.text.set(text);
+    }
+
+    /**
+     * Appends to the text.
+     *
+     * @param chunk the text to append
+     */
+    public void append(String chunk) {
+        text.set(text.get() + chunk);
+    }
+
+    /**
+     * Returns the text property.
+     *
+     * @return the text property
+     */
+    public StringProperty textProperty() {
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        return speaker == null ? getText() : speaker + ": " + getText();
+    }
+}
@@ -0,0 +1,48 @@
+package com.example;
+
+import javafx.beans.binding.Bindings;
+import javafx.scene.control.ContentDisplay;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+
+/**
+ * List cell rendering a {@link ChatEntry} as wrapped text.
+ *
+ * <p>
+ * The label is bound to the entry's text while the cell shows it, so only
+ * the cell of the message being streamed is re-laid out.
+ * </p>
+ */
+public class ChatEntryCell extends ListCell<ChatEntry> {
+
+    private final Label label = new Label();
+
+    /**
+     * Constructor.
+     *
+     * @param listView the owning list view, used to wrap text to its width
+     */
+    public ChatEntryCell(ListView<ChatEntry> listView) {
+        label.setWrapText(true);
+        label.maxWidthProperty().bind(listView.widthProperty().subtract(30));
+        setContentDisplay(ContentDisplay.GRAPHIC_ONLY);
+    }
+
+    @Override
+    protected void updateItem(ChatEntry item, boolean empty) {
+        super.updateItem(item, empty);
+        label.textProperty().unbind();
+        if (empty || item == null) {
+            label.setText(null);
+            setGraphic(null);
+        } else {
+            if (item.getSpeaker() == null) {
+                label.textProperty().bind(item.textProperty());
+            } else {
+                label.textProperty().bind(Bindings.concat(item.getSpeaker(), ": ", item.textProperty()));
+            }
+            setGraphic(label);
+        }
+    }
+}
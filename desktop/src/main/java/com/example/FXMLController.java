@@ -3,27 +3,53 @@ package com.example;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.control.Button;
+import javafx.scene.control.IndexedCell;
+import javafx.scene.control.Label;
 import javafx.scene.control.ProgressBar;
+import javafx.scene.control.ListView;
 import javafx.scene.control.TextArea;
+import javafx.scene.control.skin.VirtualFlow;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
 import javafx.scene.input.Clipboard;
-import java.util.LinkedList;
+import javafx.scene.input.ClipboardContent;
+import java.net.ConnectException;
+import java.net.http.HttpTimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
 import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+import dev.langchain4j.http.client.jdk.JdkHttpClientBuilder;
 import dev.langchain4j.model.chat.StreamingChatLanguageModel;
 import dev.langchain4j.model.ollama.OllamaStreamingChatModel;
 import dev.langchain4j.model.openai.OpenAiStreamingChatModel;
 import dev.langchain4j.model.azure.AzureOpenAiStreamingChatModel;
 import dev.langchain4j.data.message.AiMessage;
 import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
 import dev.langchain4j.data.message.UserMessage;
 import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
 import dev.langchain4j.model.chat.response.ChatResponse;
-import com.example.shared.LlmConfiguration;
+import com.manorrock.assistant.shared.ContextWindow;
+import com.manorrock.assistant.shared.ConversationCompactor;
+import com.manorrock.assistant.shared.EndpointHealth;
+import com.manorrock.assistant.shared.EndpointPool;
+import com.manorrock.assistant.shared.HedgePolicy;
+import com.manorrock.assistant.shared.HedgedRequest;
+import com.manorrock.assistant.shared.LlmConfiguration;
+import com.manorrock.assistant.shared.LlmMetrics;
+import com.manorrock.assistant.shared.OllamaWarmup;
+import com.manorrock.assistant.shared.ResponseCache;
+import com.manorrock.assistant.shared.StreamWatchdog;
 
 /**
  * Controller class for the JavaFX-based LLM chat interface.
@@ -32,7 +58,7 @@ import com.example.shared.LlmConfiguration;
 public class FXMLController {
 
     @FXML
-    private TextArea responseArea;
+    private ListView<ChatEntry> responseArea;
     
     @FXML
     private TextArea requestArea;
@@ -40,28 +66,68 @@ public class FXMLController {
     @FXML
     private Button sendButton;
 
+    @FXML
+    private Button stopButton;
+
     @FXML
     private Button startOverButton;
 
     @FXML
     private ProgressBar progressBar;
 
-    private LinkedList<ChatMessage> history = new LinkedList<>();
+    @FXML
+    private Label statusLabel;
+
     private LlmConfiguration config = LlmConfiguration.defaultConfig();
+    private ContextWindow<ChatMessage> history = new ContextWindow<>(config.contextTokens(), FXMLController::estimateTokens,
+            FXMLController::messageRole);
+    private String conversationId = UUID.randomUUID().toString();
+    private LlmConfiguration backupConfig;
+    private boolean hedging;
+    private CompletableFuture<ChatResponse> inFlight;
+
+    private final LanguageModelCache modelCache = new LanguageModelCache(FXMLController::createLanguageModel);
+
+    private final ResponseCache responseCache = new ResponseCache(ResponseCache.defaultDirectory(), ResponseCache.DEFAULT_MAX_BYTES);
+
+    private final ConversationCompactor<ChatMessage> compactor = new ConversationCompactor<>(history,
+            FXMLController::transcriptLine,
+            summary -> SystemMessage.from(ConversationCompactor.SUMMARY_PREFIX + summary),
+            this::summarize);
     
-    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+    // OpenAI and Azure OpenAI only take one timeout for the whole call, which
+    // would cut off a long answer, so stalls are left to the StreamWatchdog
+    private static final Duration CALL_TIMEOUT = Duration.ofMinutes(10);
     
     /**
      * Initializes the controller with default settings and UI event handlers.
+     * - Sets up the virtualized transcript list
      * - Sets welcome message in response area
      * - Initializes progress bar to 0
+     * - Pre-warms the language model for the default configuration
+     *   and loads the Ollama model in the background
+     * - Shows whether Ollama is up before the first message
      * - Shows help message
      * - Sets up Enter key handler for request area (Enter sends, Shift+Enter adds newline)
      */
     @FXML
     public void initialize() {
-        responseArea.setText("Welcome to Manorrock Assistant");
+        responseArea.setCellFactory(ChatEntryCell::new);
+        responseArea.setOnKeyPressed(event -> {
+            ChatEntry selected = responseArea.getSelectionModel().getSelectedItem();
+            if (selected != null && event.isShortcutDown() && event.getCode() == KeyCode.C) {
+                ClipboardContent content = new ClipboardContent();
+                content.putString(selected.getText());
+                Clipboard.getSystemClipboard().setContent(content);
+                event.consume();
+            }
+        });
+        addEntry(null, "Welcome to Manorrock Assistant");
         progressBar.setProgress(0);
+        modelCache.prewarm(config);
+        OllamaWarmup.warm(config);
+        EndpointHealth.getDefault().addListener((endpoint, state) -> Platform.runLater(this::updateStatus));
+        watchEndpoints();
         showHelp();
 
         requestArea.addEventFilter(KeyEvent.KEY_PRESSED, event -> {
@@ -90,7 +156,7 @@ public class FXMLController {
             }
             
             // Display the user's message in the response area
-            responseArea.appendText("\n\nYou: " + userMessage);
+            addEntry("You", userMessage);
             
             // Clear the request area
             requestArea.clear();
@@ -108,9 +174,15 @@ public class FXMLController {
      * - /llmVendor: Change LLM vendor
      * - /llmApiKey: Set API key
      * - /llmTemperature: Set temperature
+     * - /llmContextTokens: Set context size in tokens
+     * - /llmKeepAlive: Set how long Ollama keeps the model loaded
+     * - /llmBackup: Set the vendor and model failing requests fail over to
+     * - /llmHedge: Turn hedging of slow requests on or off
      * - /help: Show help
      * - /clear: Clear response area
      * - /explain: Explain clipboard content
+     * - /stats: Show request timings and history size
+     * - /stop: Stop the answer being streamed
      *
      * @param command The command string to process
      */
@@ -125,22 +197,70 @@ public class FXMLController {
             changeApiKey(command);
         } else if (command.startsWith("/llmTemperature ")) {
             changeTemperature(command);
+        } else if (command.startsWith("/llmContextTokens ")) {
+            changeContextTokens(command);
+        } else if (command.startsWith("/llmKeepAlive ")) {
+            changeKeepAlive(command);
+        } else if (command.startsWith("/llmBackup")) {
+            changeBackup(command);
+        } else if (command.startsWith("/llmHedge")) {
+            changeHedging(command);
         } else if (command.equals("/help")) {
             showHelp();
         } else if (command.equals("/clear")) {
             clearResponseArea();
         } else if (command.equals("/explain")) {
             explainSelection();
+        } else if (command.equals("/stats")) {
+            showStats();
+        } else if (command.equals("/stop")) {
+            handleStopAction();
         } else {
-            responseArea.appendText("\n\nSystem: Unknown command. Type /help for a list of commands.");
+            addEntry("System", "Unknown command. Type /help for a list of commands.");
         }
         requestArea.clear();
     }
 
+    /**
+     * Replaces the current configuration and pre-warms its language model
+     * in the background. For Ollama the model itself is loaded too, so the
+     * next message does not wait for the weights.
+     *
+     * @param newConfig The new configuration
+     */
+    private void updateConfig(LlmConfiguration newConfig) {
+        config = newConfig;
+        modelCache.prewarm(config);
+        OllamaWarmup.warm(config);
+        watchEndpoints();
+    }
+
+    /**
+     * Probes the Ollama hosts of the configuration in the background, or
+     * stops probing for another vendor.
+     */
+    private void watchEndpoints() {
+        EndpointHealth.getDefault().watch(isOllama(config) ? config.endpoint() : "");
+        updateStatus();
+    }
+
+    /**
+     * Shows whether Ollama is up, so a down endpoint is visible before a
+     * message is sent. Other vendors are not probed.
+     */
+    private void updateStatus() {
+        statusLabel.setText(isOllama(config) ? EndpointHealth.getDefault().status(config.endpoint()) : "");
+    }
+
+    private static boolean isOllama(LlmConfiguration config) {
+        return "OLLAMA".equalsIgnoreCase(config.vendor());
+    }
+
     /**
      * Changes the LLM endpoint.
-     * Format: /llmEndpoint hostname:port
-     * Constructs full URL with http:// prefix and /api/chat suffix.
+     * Format: /llmEndpoint hostname:port[,hostname:port...]
+     * Constructs full URLs with http:// prefix and /api/chat suffix,
+     * several hosts form a pool the messages are spread over.
      *
      * @param command The endpoint change command
      */
@@ -148,12 +268,11 @@ public class FXMLController {
         Pattern pattern = Pattern.compile("/llmEndpoint\\s+(\\S+)");
         Matcher matcher = pattern.matcher(command);
         if (matcher.find()) {
-            String newEndpoint = "http://" + matcher.group(1) + "/api/chat";
-            config = new LlmConfiguration(newEndpoint, config.model(), config.vendor(), 
-                                       config.apiKey(), config.temperature());
-            responseArea.appendText("\n\nSystem: Endpoint changed to " + newEndpoint);
+            String newEndpoint = EndpointPool.chatEndpoints(matcher.group(1));
+            updateConfig(config.withEndpoint(newEndpoint));
+            addEntry("System", "Endpoint changed to " + newEndpoint);
         } else {
-            responseArea.appendText("\n\nSystem: Invalid endpoint format. Use /llmEndpoint myhostname:myport");
+            addEntry("System", "Invalid endpoint format. Use /llmEndpoint myhostname:myport");
         }
     }
 
@@ -168,11 +287,10 @@ public class FXMLController {
         Matcher matcher = pattern.matcher(command);
         if (matcher.find()) {
             String newModel = matcher.group(1);
-            config = new LlmConfiguration(config.endpoint(), newModel, config.vendor(), 
-                                       config.apiKey(), config.temperature());
-            responseArea.appendText("\n\nSystem: Model changed to " + newModel);
+            updateConfig(config.withModel(newModel));
+            addEntry("System", "Model changed to " + newModel);
         } else {
-            responseArea.appendText("\n\nSystem: Invalid model format. Use /model <name>");
+            addEntry("System", "Invalid model format. Use /model <name>");
         }
     }
 
@@ -189,14 +307,63 @@ public class FXMLController {
         if (matcher.find() && !matcher.group(1).isEmpty()) {
             String newVendor = matcher.group(1).toUpperCase();
             if (newVendor.equals("OLLAMA") || newVendor.equals("OPENAI") || newVendor.equals("AZURE_OPENAI")) {
-                config = new LlmConfiguration(config.endpoint(), config.model(), newVendor, 
-                                           config.apiKey(), config.temperature());
-                responseArea.appendText("\n\nSystem: Vendor changed to " + newVendor);
+                updateConfig(config.withVendor(newVendor));
+                addEntry("System", "Vendor changed to " + newVendor);
             } else {
-                responseArea.appendText("\n\nSystem: Invalid vendor. Supported vendors: OLLAMA, OPENAI, AZURE_OPENAI");
+                addEntry("System", "Invalid vendor. Supported vendors: OLLAMA, OPENAI, AZURE_OPENAI");
             }
         } else {
-            responseArea.appendText("\n\nSystem: Please specify a vendor. Supported vendors: OLLAMA, OPENAI, AZURE_OPENAI");
+            addEntry("System", "Please specify a vendor. Supported vendors: OLLAMA, OPENAI, AZURE_OPENAI");
+        }
+    }
+
+    /**
+     * Sets the backup vendor and model that a failing request, or with
+     * /llmHedge on a slow one, is sent to when there is no other Ollama host
+     * to send it to.
+     * The backup uses the API key and endpoint of the current configuration.
+     * Format: /llmBackup vendorname modelname, or /llmBackup off
+     *
+     * @param command The backup change command
+     */
+    private void changeBackup(String command) {
+        Pattern pattern = Pattern.compile("/llmBackup\\s+(\\S+)(?:\\s+(\\S+))?");
+        Matcher matcher = pattern.matcher(command);
+        if (!matcher.find() || !matcher.group(1).equalsIgnoreCase("off") && matcher.group(2) == null) {
+            addEntry("System", "Invalid backup format. Use /llmBackup <vendor> <model> or /llmBackup off");
+        } else if (matcher.group(1).equalsIgnoreCase("off")) {
+            backupConfig = null;
+            addEntry("System", "Backup vendor removed");
+        } else {
+            String backupVendor = matcher.group(1).toUpperCase();
+            if (backupVendor.equals("OLLAMA") || backupVendor.equals("OPENAI") || backupVendor.equals("AZURE_OPENAI")) {
+                backupConfig = config.withVendor(backupVendor).withModel(matcher.group(2));
+                modelCache.prewarm(backupConfig);
+                addEntry("System", "Backup changed to " + backupVendor + " " + matcher.group(2));
+            } else {
+                addEntry("System", "Invalid vendor. Supported vendors: OLLAMA, OPENAI, AZURE_OPENAI");
+            }
+        }
+    }
+
+    /**
+     * Turns hedging on or off. With hedging on, a request that has not
+     * streamed its first token in time is sent again to another host or the
+     * backup vendor and the first to stream wins. It is off by default since
+     * it can double the load on the hosts; a failed request fails over either
+     * way.
+     * Format: /llmHedge on, or /llmHedge off
+     *
+     * @param command The hedging change command
+     */
+    private void changeHedging(String command) {
+        Pattern pattern = Pattern.compile("/llmHedge\\s+(on|off)$", Pattern.CASE_INSENSITIVE);
+        Matcher matcher = pattern.matcher(command.trim());
+        if (matcher.find()) {
+            hedging = matcher.group(1).equalsIgnoreCase("on");
+            addEntry("System", "Hedging turned " + (hedging ? "on" : "off"));
+        } else {
+            addEntry("System", "Invalid hedging format. Use /llmHedge on or /llmHedge off");
         }
     }
 
@@ -211,9 +378,8 @@ public class FXMLController {
         Matcher matcher = pattern.matcher(command);
         if (matcher.find()) {
             String newKey = matcher.group(1);
-            config = new LlmConfiguration(config.endpoint(), config.model(), config.vendor(), 
-                                       newKey, config.temperature());
-            responseArea.appendText("\n\nSystem: API key updated");
+            updateConfig(config.withApiKey(newKey));
+            addEntry("System", "API key updated");
         }
     }
 
@@ -231,40 +397,277 @@ public class FXMLController {
             try {
                 double newTemp = Double.parseDouble(matcher.group(1));
                 if (newTemp >= 0.0 && newTemp <= 1.0) {
-                    config = new LlmConfiguration(config.endpoint(), config.model(), 
-                                               config.vendor(), config.apiKey(), newTemp);
-                    responseArea.appendText("\n\nSystem: Temperature changed to " + newTemp);
+                    updateConfig(config.withTemperature(newTemp));
+                    addEntry("System", "Temperature changed to " + newTemp);
                 } else {
-                    responseArea.appendText("\n\nSystem: Temperature must be between 0.0 and 1.0");
+                    addEntry("System", "Temperature must be between 0.0 and 1.0");
                 }
             } catch (NumberFormatException e) {
-                responseArea.appendText("\n\nSystem: Invalid temperature format. Use /llmTemperature <number>");
+                addEntry("System", "Invalid temperature format. Use /llmTemperature <number>");
             }
         }
     }
 
+    /**
+     * Sets the context size of the model in tokens.
+     * Format: /llmContextTokens value
+     * The conversation history sent with each message is trimmed to fit.
+     *
+     * @param command The context size change command
+     */
+    private void changeContextTokens(String command) {
+        Pattern pattern = Pattern.compile("/llmContextTokens\\s+(\\d+)");
+        Matcher matcher = pattern.matcher(command);
+        if (matcher.find()) {
+            try {
+                int newContextTokens = Integer.parseInt(matcher.group(1));
+                if (newContextTokens >= 256) {
+                    updateConfig(config.withContextTokens(newContextTokens));
+                    history.setContextTokens(newContextTokens);
+                    addEntry("System", "Context size changed to " + newContextTokens + " tokens");
+                } else {
+                    addEntry("System", "Context size must be at least 256 tokens");
+                }
+            } catch (NumberFormatException e) {
+                addEntry("System", "Invalid context size format. Use /llmContextTokens <number>");
+            }
+        } else {
+            addEntry("System", "Invalid context size format. Use /llmContextTokens <number>");
+        }
+    }
+
+    /**
+     * Sets how long Ollama keeps the model loaded after a message.
+     * Format: /llmKeepAlive duration, e.g. 30m, 2h or -1m to never unload.
+     *
+     * @param command The keep alive change command
+     */
+    private void changeKeepAlive(String command) {
+        Pattern pattern = Pattern.compile("/llmKeepAlive\\s+(-?\\d+(ms|s|m|h))$");
+        Matcher matcher = pattern.matcher(command.trim());
+        if (matcher.find()) {
+            updateConfig(config.withKeepAlive(matcher.group(1)));
+            addEntry("System", "Keep alive changed to " + config.keepAlive());
+        } else {
+            addEntry("System", "Invalid keep alive format. Use /llmKeepAlive <duration>, e.g. 30m");
+        }
+    }
+
+    /**
+     * Estimates the tokens of a chat message for the context window.
+     *
+     * @param message The chat message
+     * @return The estimated tokens
+     */
+    private static int estimateTokens(ChatMessage message) {
+        return ContextWindow.estimateTokens(messageText(message));
+    }
+
+    /**
+     * Returns the text of a chat message.
+     *
+     * @param message The chat message
+     * @return The text, or null if the message has no single text
+     */
+    private static String messageText(ChatMessage message) {
+        if (message instanceof AiMessage aiMessage) {
+            return aiMessage.text();
+        } else if (message instanceof UserMessage userMessage && userMessage.hasSingleText()) {
+            return userMessage.singleText();
+        } else if (message instanceof SystemMessage systemMessage) {
+            return systemMessage.text();
+        }
+        return null;
+    }
+
+    /**
+     * Renders a chat message for the transcript that is summarized when the
+     * history is compacted.
+     *
+     * @param message The chat message
+     * @return The message as "role: content"
+     */
+    private static String transcriptLine(ChatMessage message) {
+        String text = messageText(message);
+        return messageRole(message) + ": " + (text == null ? "" : text);
+    }
+
+    /**
+     * Returns the role of a chat message as named by the chat APIs.
+     *
+     * @param message The chat message
+     * @return The role, e.g. "user" or "assistant"
+     */
+    private static String messageRole(ChatMessage message) {
+        return message instanceof AiMessage ? "assistant" : message.type().name().toLowerCase();
+    }
+
+    /**
+     * Asks the current model for a summary of older turns.
+     * Runs on the model's own threads, never on the FX thread.
+     * Renews the keep alive afterwards like a chat answer does.
+     * Fails a summary that stalls, so the compactor can try again.
+     *
+     * @param transcript The transcript to summarize
+     * @return The future summary
+     */
+    private CompletableFuture<String> summarize(String transcript) {
+        CompletableFuture<String> summary = new CompletableFuture<>();
+        StringBuilder builder = new StringBuilder();
+        EndpointPool.Lease lease = EndpointPool.getDefault().acquire(config.endpoint(), null);
+        LlmConfiguration summaryConfig = config.withEndpoint(lease.endpoint());
+        AtomicBoolean finished = new AtomicBoolean();
+        AtomicReference<StreamWatchdog> watchdog = new AtomicReference<>();
+        StreamingChatResponseHandler handler = new StreamingChatResponseHandler() {
+            @Override
+            public void onPartialResponse(String token) {
+                if (finished.get()) {
+                    return;
+                }
+                watchdog.get().activity();
+                lease.firstToken();
+                builder.append(token);
+            }
+
+            @Override
+            public void onCompleteResponse(ChatResponse response) {
+                if (!finish()) {
+                    return;
+                }
+                lease.release(null);
+                // LangChain4j does not send keep_alive, so the summary
+                // reset it to Ollama's default as well
+                OllamaWarmup.warm(summaryConfig);
+                summary.complete(builder.toString());
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                if (finish()) {
+                    lease.release(error);
+                    summary.completeExceptionally(error);
+                }
+            }
+
+            private boolean finish() {
+                watchdog.get().stop();
+                return finished.compareAndSet(false, true);
+            }
+        };
+        modelCache.get(summaryConfig)
+            .thenAccept(model -> {
+                watchdog.set(StreamWatchdog.start(System.nanoTime(), summaryConfig.firstTokenTimeout(),
+                        summaryConfig.idleTimeout(), handler::onError));
+                model.chat(List.of(UserMessage.from(ConversationCompactor.SUMMARY_PROMPT + transcript)), handler);
+            })
+            .exceptionally(e -> {
+                lease.release(e);
+                summary.completeExceptionally(e);
+                return null;
+            });
+        return summary;
+    }
+
     /**
      * Shows help message listing all available commands
      * and their descriptions.
      */
     private void showHelp() {
-        String helpMessage = "\n\nSystem: Available commands:\n" +
+        String helpMessage = "Available commands:\n" +
                            "/clear - Clear the response window\n" +
                            "/explain - Explain the selected text\n" +
                            "/help - Show this help message\n" +
                            "/llmApiKey <apikey> - Set API key for OpenAI or Azure\n" +
-                           "/llmEndpoint myhostname:myport - Change the endpoint\n" +
+                           "/llmContextTokens <number> - Set the model's context size in tokens\n" +
+                           "/llmEndpoint myhostname:myport[,myhostname:myport...] - Change the endpoints\n" +
+                           "/llmKeepAlive <duration> - Set how long Ollama keeps the model loaded (e.g. 30m)\n" +
+                           "/llmBackup <vendor> <model> - Fail over to a backup vendor (off to remove)\n" +
+                           "/llmHedge on|off - Send slow requests again to another host or the backup vendor\n" +
                            "/llmModel <name> - Change the model used\n" +
                            "/llmTemperature <number> - Set temperature (0.0-1.0)\n" +
-                           "/llmVendor <name> - Change vendor";
-        responseArea.appendText(helpMessage);
+                           "/llmVendor <name> - Change vendor\n" +
+                           "/stats - Show request timings and history size\n" +
+                           "/stop - Stop the answer being streamed";
+        addEntry("System", helpMessage);
     }
 
     /**
-     * Clears all text from the response area.
+     * Shows the request timings per vendor and model, the size of the
+     * history and how much of it was summarized.
+     */
+    private void showStats() {
+        addEntry("System", LlmMetrics.getDefault().report() + "\n"
+                + EndpointPool.getDefault().report(config.endpoint()) + "\n"
+                + "History: " + history.size() + " messages, " + history.tokens() + " of "
+                + history.budget() + " tokens\n"
+                + "History compaction: " + compactor.stats());
+    }
+
+    /**
+     * Clears all messages from the response area.
      */
     private void clearResponseArea() {
-        responseArea.clear();
+        responseArea.getItems().clear();
+    }
+
+    /**
+     * Adds a message to the transcript and scrolls it into view.
+     *
+     * @param speaker the speaker, or null for text without a prefix
+     * @param text the message text
+     * @return the added entry
+     */
+    private ChatEntry addEntry(String speaker, String text) {
+        ChatEntry entry = new ChatEntry(speaker, text);
+        responseArea.getItems().add(entry);
+        responseArea.scrollTo(responseArea.getItems().size() - 1);
+        return entry;
+    }
+
+    /**
+     * Appends a pulse of streamed text to an answer.
+     * - Keeps the transcript scrolled to the end while the answer grows
+     * - Leaves it alone once the user scrolled up to read
+     *
+     * @param answer The answer entry being streamed
+     * @param text The text to append
+     */
+    private void appendStreamed(ChatEntry answer, String text) {
+        VirtualFlow<?> flow = (VirtualFlow<?>) responseArea.lookup(".virtual-flow");
+        boolean follow = flow != null && isScrolledToEnd(flow);
+        answer.append(text);
+        if (follow) {
+            responseArea.layout();
+            flow.setPosition(1.0);
+        }
+    }
+
+    /**
+     * Returns whether the end of the last entry is in view.
+     *
+     * @param flow The virtual flow of the transcript
+     * @return true if the transcript is scrolled to the end
+     */
+    private static boolean isScrolledToEnd(VirtualFlow<?> flow) {
+        if (flow.getPosition() >= 1.0) {
+            return true;
+        }
+        IndexedCell<?> last = flow.getLastVisibleCell();
+        return last == null || last.getIndex() == flow.getCellCount() - 1
+                && last.getLayoutY() + last.getHeight() <= flow.getHeight() + 1;
+    }
+
+    /**
+     * Handles Stop button action and the /stop command.
+     * - Cancels the request being streamed and every attempt of it
+     * - The request completes right away, which returns the UI to idle
+     */
+    @FXML
+    private void handleStopAction() {
+        CompletableFuture<ChatResponse> request = inFlight;
+        if (request == null || !request.cancel(true)) {
+            addEntry("System", "Nothing to stop.");
+        }
     }
 
     /**
@@ -277,41 +680,46 @@ public class FXMLController {
     @FXML
     private void handleStartOverAction() {
         history.clear();
-        responseArea.clear();
-        responseArea.setText("Welcome to Manorrock Assistant");
+        conversationId = UUID.randomUUID().toString();
+        responseArea.getItems().clear();
+        addEntry(null, "Welcome to Manorrock Assistant");
         showHelp();
     }
     
     /**
-     * Creates a streaming chat language model based on current configuration.
+     * Creates a streaming chat language model for the given configuration.
+     * Called by the model cache on its background thread.
      * Configures model-specific settings for:
-     * - OLLAMA: Uses baseUrl, model name, timeout, temperature
-     * - OPENAI: Uses API key, model name, timeout, temperature
-     * - AZURE_OPENAI: Uses endpoint, API key, deployment name, timeout, temperature
+     * - OLLAMA: Uses baseUrl, model name, connect and first token timeouts, temperature
+     * - OPENAI: Uses API key, model name, call timeout, temperature
+     * - AZURE_OPENAI: Uses endpoint, API key, deployment name, call timeout, temperature
      *
+     * @param config The configuration to build the model for
      * @return Configured StreamingChatLanguageModel instance
      * @throws IllegalArgumentException if vendor is unknown
      */
-    private StreamingChatLanguageModel createLanguageModel() {
+    private static StreamingChatLanguageModel createLanguageModel(LlmConfiguration config) {
         String vendor = config.vendor();
         return switch (vendor.toUpperCase()) {
             case "OLLAMA" -> OllamaStreamingChatModel.builder()
                 .baseUrl(config.endpoint().substring(0, config.endpoint().lastIndexOf("/api/chat")))
                 .modelName(config.model())
-                .timeout(TIMEOUT)
+                .httpClientBuilder(new JdkHttpClientBuilder()
+                        .connectTimeout(config.connectTimeout())
+                        .readTimeout(config.firstTokenTimeout()))
                 .temperature(config.temperature())
                 .build();
             case "OPENAI" -> OpenAiStreamingChatModel.builder()
                 .apiKey(config.apiKey())
                 .modelName(config.model())
-                .timeout(TIMEOUT)
+                .timeout(CALL_TIMEOUT)
                 .temperature(config.temperature())
                 .build();
             case "AZURE_OPENAI" -> AzureOpenAiStreamingChatModel.builder()
                 .endpoint(config.endpoint())
                 .apiKey(config.apiKey())
                 .deploymentName(config.model())
-                .timeout(TIMEOUT)
+                .timeout(CALL_TIMEOUT)
                 .temperature(config.temperature())
                 .build();
             default -> throw new IllegalArgumentException("Unknown vendor: " + vendor);
@@ -322,92 +730,290 @@ public class FXMLController {
      * Processes a message through the LLM.
      * - Adds message to history
      * - Disables send button during processing
+     * - Replays a cached answer when the temperature is 0.0
+     * - Obtains the cached (or pre-warmed) language model off the FX thread
+     * - Fails at once when every Ollama host is down
+     * - Fails a failing request over to another host or the backup vendor, and
+     *   hedges a slow one with them when /llmHedge is on
      * - Shows progress indicator
-     * - Streams response tokens to UI
-     * - Handles errors and timeouts
+     * - Streams response tokens to UI, coalesced per frame
+     * - Handles errors, timeouts and the Stop action
      * - Re-enables UI after completion
+     * - Summarizes older turns in the background once the history grows
      *
      * @param message The message to process
      */
     private void processMessage(String message) {
-        try {
-            UserMessage userMessage = UserMessage.from(message);
-            history.add(userMessage);
-            if (history.size() > 50) {
-                history.removeFirst();
-            }
+        UserMessage userMessage = UserMessage.from(message);
+        history.add(userMessage);
 
-            sendButton.setDisable(true);
-            progressBar.setProgress(ProgressBar.INDETERMINATE_PROGRESS);
+        sendButton.setDisable(true);
+        stopButton.setDisable(false);
+        progressBar.setProgress(ProgressBar.INDETERMINATE_PROGRESS);
 
-            StreamingChatLanguageModel langChainModel = createLanguageModel();
+        StringBuilder responseBuilder = new StringBuilder();
+        ChatEntry answer = addEntry("Assistant", "");
+        StreamingTextRenderer renderer = new StreamingTextRenderer(text -> appendStreamed(answer, text));
 
-            StringBuilder responseBuilder = new StringBuilder();
-            final boolean[] isFirstLine = {true};
+        List<ChatMessage> messages = history.messages();
+        LlmConfiguration requestConfig = config;
 
-            ArrayList<ChatMessage> messages = new ArrayList<>(history);
-            
-            langChainModel.chat(messages, new StreamingChatResponseHandler() {
-                /**
-                 * Handles each token of the streaming response.
-                 * Updates UI with new content and maintains formatting.
-                 */
-                @Override
-                public void onPartialResponse(String token) {
-                    responseBuilder.append(token);
+        // Deterministic answers are replayed from the cache without asking the model
+        String cacheKey = ResponseCache.isCacheable(requestConfig.temperature())
+                ? ResponseCache.key(requestConfig.vendor(), requestConfig.model(), requestConfig.temperature(), messages,
+                        FXMLController::messageRole, FXMLController::messageText)
+                : null;
+        Optional<String> cached = cacheKey == null ? Optional.empty() : responseCache.get(cacheKey);
+        if (cached.isPresent()) {
+            LlmMetrics.getDefault().cacheHit(requestConfig.vendor(), requestConfig.model());
+            answer.append(cached.get());
+            sendButton.setDisable(false);
+            stopButton.setDisable(true);
+            progressBar.setProgress(0);
+            history.add(AiMessage.from(cached.get()));
+            compactor.compactAsync();
+            return;
+        }
+
+        LlmMetrics.Request metric = LlmMetrics.getDefault().start(requestConfig.vendor(), requestConfig.model(),
+                history.tokens());
+
+        // Hosts known to be down are left out, without any the request fails at once
+        EndpointHealth health = EndpointHealth.getDefault();
+        String endpoints = isOllama(requestConfig) ? health.available(requestConfig.endpoint()) : requestConfig.endpoint();
+        if (endpoints.isEmpty()) {
+            String errorMessage = "Request not sent: " + health.status(requestConfig.endpoint());
+            metric.fail(new ConnectException(errorMessage));
+            finishRequest(null);
+            showError(answer, errorMessage);
+            return;
+        }
+        EndpointPool.Lease lease = EndpointPool.getDefault().acquire(endpoints, conversationId);
+        List<String> otherEndpoints = EndpointPool.split(endpoints);
+        otherEndpoints.remove(lease.endpoint());
+        LlmConfiguration backupVendor = backupConfig;
+
+        // A failing host fails over to another host of the pool, or to the
+        // backup vendor when there is no other host; a slow one only when
+        // hedging is on
+        HedgedRequest.Starter<ChatResponse> backup = null;
+        if ("OLLAMA".equalsIgnoreCase(requestConfig.vendor()) && !otherEndpoints.isEmpty()) {
+            backup = attempt -> {
+                EndpointPool.Lease backupLease = EndpointPool.getDefault().acquire(String.join(",", otherEndpoints), null);
+                return startAttempt(requestConfig.withEndpoint(backupLease.endpoint()), backupLease, messages, metric,
+                        responseBuilder, renderer, attempt);
+            };
+        } else if (backupVendor != null) {
+            backup = attempt -> startAttempt(backupVendor, null, messages, metric, responseBuilder, renderer, attempt);
+        }
+        HedgePolicy policy = hedging ? HedgePolicy.defaultPolicy() : HedgePolicy.disabled();
+        CompletableFuture<ChatResponse> request = HedgedRequest.send(
+                attempt -> startAttempt(requestConfig.withEndpoint(lease.endpoint()), lease, messages, metric,
+                        responseBuilder, renderer, attempt),
+                backup, policy.isEnabled() ? policy.delay(metric.firstTokens()) : null);
+        inFlight = request;
+        request.whenComplete((response, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                if (cause instanceof CancellationException) {
+                    metric.cancel();
                     Platform.runLater(() -> {
-                        if (isFirstLine[0]) {
-                            responseArea.appendText("\n\nAssistant: " + token);
-                            isFirstLine[0] = false;
-                        } else {
-                            responseArea.appendText(token);
-                        }
-                        responseArea.positionCaret(responseArea.getText().length());
+                        renderer.flush();
+                        finishRequest(request);
+                        addEntry("System", "Stopped");
                     });
+                    return;
+                }
+                metric.fail(cause);
+                String errorMessage;
+                if (cause instanceof HttpTimeoutException) {
+                    errorMessage = "Request timed out: " + cause.getMessage();
+                } else if (cause.getCause() instanceof TimeoutException
+                        || cause.getCause() instanceof HttpTimeoutException) {
+                    errorMessage = "Request timed out: " + cause.getCause().getMessage();
+                } else {
+                    errorMessage = "Error: " + cause.getMessage();
                 }
+                Platform.runLater(() -> {
+                    renderer.flush();
+                    finishRequest(request);
+                    showError(answer, errorMessage);
+                });
+                return;
+            }
+            metric.complete();
+            String fullResponse = responseBuilder.toString().trim();
+            if (cacheKey != null && !fullResponse.isEmpty()) {
+                responseCache.put(cacheKey, fullResponse);
+            }
+            // LangChain4j does not send keep_alive, so renew it after
+            // the answer instead of falling back to Ollama's default
+            OllamaWarmup.warm(requestConfig);
+            Platform.runLater(() -> {
+                renderer.flush();
+                finishRequest(request);
 
-                /**
-                 * Handles completion of the response.
-                 * Re-enables UI controls and updates conversation history.
-                 */
-                @Override
-                public void onCompleteResponse(ChatResponse response) {
-                    String fullResponse = responseBuilder.toString().trim();
-                    Platform.runLater(() -> {
-                        sendButton.setDisable(false);
-                        progressBar.setProgress(0);
+                // Add the assistant's response to the history and
+                // summarize older turns before the next message
+                history.add(AiMessage.from(fullResponse));
+                compactor.compactAsync();
+            });
+        });
+    }
+
+    /**
+     * Sends one attempt of a hedged request.
+     * - Obtains the cached (or pre-warmed) language model off the FX thread
+     * - Streams tokens to the UI only once the attempt won the answer
+     * - Fails the attempt when the first token or a later one is late
+     * - Reports completion and errors to the hedged request and the lease
+     *
+     * LangChain4j cannot abort a stream, so a cancelled or timed out attempt
+     * keeps running on its own threads and its tokens are dropped.
+     *
+     * @param attemptConfig The configuration to send the attempt with
+     * @param lease The lease of the endpoint, or null for a backup vendor
+     * @param messages The messages to send
+     * @param metric The timing of the request
+     * @param responseBuilder Collects the answer
+     * @param renderer Renders the answer
+     * @param attempt The attempt
+     * @return Cancels the attempt
+     */
+    private Runnable startAttempt(LlmConfiguration attemptConfig, EndpointPool.Lease lease,
+            List<ChatMessage> messages, LlmMetrics.Request metric, StringBuilder responseBuilder,
+            StreamingTextRenderer renderer, HedgedRequest.Attempt<ChatResponse> attempt) {
+        String conversation = conversationId;
+        AtomicBoolean finished = new AtomicBoolean();
+        AtomicReference<StreamWatchdog> watchdog = new AtomicReference<>();
+        StreamingChatResponseHandler handler = new StreamingChatResponseHandler() {
+            private boolean claimed;
 
-                        // Add the assistant's response to the history
-                        history.add(AiMessage.from(fullResponse));
-                        if (history.size() > 50) {
-                            history.removeFirst();
+            /**
+             * Handles each token of the streaming response.
+             * Buffers the token for the next frame of the renderer,
+             * which only updates the cell of the active answer.
+             */
+            @Override
+            public void onPartialResponse(String token) {
+                if (finished.get() || !attempt.claim()) {
+                    return;
+                }
+                StreamWatchdog current = watchdog.get();
+                if (current != null) {
+                    current.activity();
+                }
+                if (!claimed) {
+                    claimed = true;
+                    if (lease != null) {
+                        lease.firstToken();
+                        if (attempt.isBackup()) {
+                            lease.stick(conversation);
                         }
-                    });
+                    }
                 }
+                metric.content(token);
+                responseBuilder.append(token);
+                renderer.append(token);
+            }
 
-                @Override
-                public void onError(Throwable error) {
-                    Platform.runLater(() -> {
-                        String errorMessage = "Error: " + error.getMessage();
-                        responseArea.appendText("\n\nAssistant: " + errorMessage);
-                        responseArea.positionCaret(responseArea.getText().length());
-                        sendButton.setDisable(false);
-                        progressBar.setProgress(0);
-                    });
+            @Override
+            public void onCompleteResponse(ChatResponse response) {
+                if (finish()) {
+                    release(null);
+                    attempt.complete(response);
+                }
+            }
+
+            /**
+             * Handles an error of the stream, or a timeout of the watchdog.
+             */
+            @Override
+            public void onError(Throwable error) {
+                if (finish()) {
+                    release(error);
+                    attempt.fail(error);
+                }
+            }
+
+            private boolean finish() {
+                StreamWatchdog current = watchdog.get();
+                if (current != null) {
+                    current.stop();
+                }
+                return finished.compareAndSet(false, true);
+            }
+
+            private void release(Throwable error) {
+                if (lease != null) {
+                    if (attempt.isCancelled()) {
+                        lease.cancel();
+                    } else {
+                        lease.release(error);
+                        if (error == null) {
+                            EndpointHealth.getDefault().succeeded(lease.endpoint());
+                        } else {
+                            EndpointHealth.getDefault().failed(lease.endpoint(), error);
+                        }
+                    }
+                }
+            }
+        };
+
+        modelCache.get(attemptConfig)
+            .thenAccept(langChainModel -> {
+                if (!attempt.isCancelled()) {
+                    metric.built();
+                    watchdog.set(StreamWatchdog.start(System.nanoTime(), attemptConfig.firstTokenTimeout(),
+                            attemptConfig.idleTimeout(), handler::onError));
+                    langChainModel.chat(messages, handler);
                 }
+            })
+            .exceptionally(e -> {
+                handler.onError(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                return null;
             });
-        } catch (Exception e) {
-            String errorMessage;
-            if (e.getCause() instanceof java.util.concurrent.TimeoutException) {
-                errorMessage = "Request timed out after " + TIMEOUT.getSeconds() + " seconds";
-            } else {
-                errorMessage = "Error: " + e.getMessage();
+        return () -> {
+            StreamWatchdog current = watchdog.get();
+            if (current != null) {
+                current.stop();
             }
-            responseArea.appendText("\n\nAssistant: " + errorMessage);
-            responseArea.positionCaret(responseArea.getText().length());
-            sendButton.setDisable(false);
-            progressBar.setProgress(0);
+            if (lease != null) {
+                lease.cancel();
+            }
+        };
+    }
+
+    /**
+     * Shows an error in place of an answer that failed.
+     * - Drops the answer entry if nothing was streamed into it
+     * - Adds the error message to the transcript
+     *
+     * @param answer The answer entry of the failed request
+     * @param errorMessage The error message to show
+     */
+    private void showError(ChatEntry answer, String errorMessage) {
+        if (answer.getText().isEmpty()) {
+            responseArea.getItems().remove(answer);
+        }
+        addEntry("Assistant", errorMessage);
+    }
+
+    /**
+     * Returns the UI to idle once a request completed, failed or was stopped.
+     * - Forgets the request unless a newer one is in flight
+     * - Re-enables UI controls
+     *
+     * @param request The request that ended
+     */
+    private void finishRequest(CompletableFuture<ChatResponse> request) {
+        if (inFlight == request) {
+            inFlight = null;
         }
+        sendButton.setDisable(false);
+        stopButton.setDisable(true);
+        progressBar.setProgress(0);
     }
 
     /**
@@ -423,10 +1029,10 @@ public class FXMLController {
         
         if (clipboardContent != null && !clipboardContent.isEmpty()) {
             String prompt = "Please explain the content below the line\n-----------------------------------------\n" + clipboardContent;
-            responseArea.appendText("\n\nYou: " + prompt);
+            addEntry("You", prompt);
             processMessage(prompt);
         } else {
-            responseArea.appendText("\n\nSystem: No text found in clipboard. Copy some text and try again.");
+            addEntry("System", "No text found in clipboard. Copy some text and try again.");
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,82 @@
+package com.example;
+
+import com.manorrock.assistant.shared.LlmConfiguration;
+import dev.langchain4j.model.chat.StreamingChatLanguageModel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Cache of streaming chat models keyed by {@link LlmConfiguration}.
+ *
+ * <p>
+ * Models are built on a background thread and reused across messages, so
+ * neither the FX thread nor the first token after a configuration change
+ * waits for HTTP client, JSON mapper or SDK pipeline construction. Only the
+ * most recently used configurations are kept, enough for a small
+ * {@link com.manorrock.assistant.shared.EndpointPool} of hosts.
+ * </p>
+ */
+public class LanguageModelCache {
+
+    private static final int MAX_ENTRIES = 8;
+
+    private final Function<LlmConfiguration, StreamingChatLanguageModel> factory;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "language-model-cache");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<LlmConfiguration, CompletableFuture<StreamingChatLanguageModel>> models
+            = new LinkedHashMap<>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LlmConfiguration, CompletableFuture<StreamingChatLanguageModel>> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param factory builds a model for a configuration
+     */
+    public LanguageModelCache(Function<LlmConfiguration, StreamingChatLanguageModel> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Returns the model for the configuration, building it in the background
+     * if it is not cached yet. A failed build is not cached.
+     *
+     * @param config the configuration
+     * @return the future model
+     */
+    public CompletableFuture<StreamingChatLanguageModel> get(LlmConfiguration config) {
+        synchronized (models) {
+            CompletableFuture<StreamingChatLanguageModel> model = models.get(config);
+            if (model == null || model.isCompletedExceptionally()) {
+                model = CompletableFuture.supplyAsync(() -> factory.apply(config), executor);
+                models.put(config, model);
+            }
+            return model;
+        }
+    }
+
+    /**
+     * Starts building the model for the configuration so it is ready before
+     * the next message is sent. For an endpoint pool a model is built for
+     * every endpoint, since each message goes to one of them.
+     *
+     * @param config the configuration
+     */
+    public void prewarm(LlmConfiguration config) {
+        for (String endpoint : config.endpoints()) {
+            get(config.withEndpoint(endpoint));
+        }
+    }
+}
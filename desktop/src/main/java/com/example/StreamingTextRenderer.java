@@ -0,0 +1,99 @@
+package com.example;
+
+import com.manorrock.assistant.shared.LlmEvents;
+import java.util.function.Consumer;
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+
+/**
+ * Coalesces streamed tokens into at most one UI update per JavaFX pulse.
+ *
+ * <p>
+ * Tokens are buffered from any thread. While there is pending text an
+ * {@link AnimationTimer} runs on the FX thread and hands everything that
+ * arrived since the previous pulse to the sink in a single call; once the
+ * buffer stays empty for a pulse the timer stops itself. Every update is
+ * recorded as an {@link LlmEvents.UiAppend} flight recorder event.
+ * </p>
+ */
+public class StreamingTextRenderer extends AnimationTimer {
+
+    private final Consumer<String> sink;
+
+    private final StringBuilder pending = new StringBuilder();
+
+    private int pendingTokens;
+
+    private boolean scheduled;
+
+    /**
+     * Constructor.
+     *
+     * @param sink receives the coalesced text on the FX thread
+     */
+    public StreamingTextRenderer(Consumer<String> sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Buffers text for the next pulse. May be called from any thread.
+     *
+     * @param text the text to append
+     */
+    public void append(String text) {
+        boolean start;
+        synchronized (pending) {
+            pending.append(text);
+            pendingTokens++;
+            start = !scheduled;
+            scheduled = true;
+        }
+        if (start) {
+            Platform.runLater(this::start);
+        }
+    }
+
+    /**
+     * Hands any buffered text to the sink immediately. Must be called on the
+     * FX thread, e.g. before appending text that has to follow the stream.
+     */
+    public void flush() {
+        String chunk;
+        int tokens;
+        synchronized (pending) {
+            if (pending.length() == 0) {
+                return;
+            }
+            chunk = pending.toString();
+            tokens = pendingTokens;
+            pending.setLength(0);
+            pendingTokens = 0;
+        }
+        render(chunk, tokens);
+    }
+
+    @Override
+    public void handle(long now) {
+        String chunk;
+        int tokens;
+        synchronized (pending) {
+            if (pending.length() == 0) {
+                scheduled = false;
+                stop();
+                return;
+            }
+            chunk = pending.toString();
+            tokens = pendingTokens;
+            pending.setLength(0);
+            pendingTokens = 0;
+        }
+        render(chunk, tokens);
+    }
+
+    private void render(String chunk, int tokens) {
+        LlmEvents.UiAppend event = new LlmEvents.UiAppend();
+        event.begin();
+        sink.accept(chunk);
+        event.commit("desktop", tokens, chunk.length());
+    }
+}
@@ -1,13 +1,11 @@
 package com.manorrock.assistant.eclipse.views;
 
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.LinkedList;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -26,6 +24,7 @@ import org.eclipse.swt.layout.GridLayout;
 import org.eclipse.swt.widgets.Button;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Label;
 import org.eclipse.swt.widgets.ProgressBar;
 import org.eclipse.ui.IEditorPart;
 import org.eclipse.ui.ISelectionListener;
@@ -44,29 +43,57 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
 
+import com.manorrock.assistant.shared.ContextWindow;
+import com.manorrock.assistant.shared.ConversationCompactor;
+import com.manorrock.assistant.shared.EndpointHealth;
+import com.manorrock.assistant.shared.EndpointPool;
+import com.manorrock.assistant.shared.HedgePolicy;
+import com.manorrock.assistant.shared.HedgedChat;
+import com.manorrock.assistant.shared.LlmConfiguration;
+import com.manorrock.assistant.shared.LlmEvents;
+import com.manorrock.assistant.shared.LlmMetrics;
+import com.manorrock.assistant.shared.OllamaStreamDecoder;
+import com.manorrock.assistant.shared.OllamaSummarizer;
+import com.manorrock.assistant.shared.OllamaWarmup;
+
 public class AssistantView extends ViewPart implements ISelectionListener {
     public static final String ID = "com.manorrock.assistant.eclipse.views.AssistantView";
 
     private StyledText responseArea;
     private StyledText requestArea;
     private Button sendButton;
+    private Button stopButton;
     private Button startOverButton;
     private ProgressBar progressBar;
+    private Label statusLabel;
+    private final EndpointHealth.Listener healthListener = (endpoint, state) -> Display.getDefault().asyncExec(this::updateStatus);
     private IEditorPart lastActiveEditor;
     
     private String sessionId = UUID.randomUUID().toString();
-    private LinkedList<JSONObject> history = new LinkedList<>();
+    private ContextWindow<JSONObject> history = new ContextWindow<>(
+            LlmConfiguration.defaultConfig().contextTokens(), message -> ContextWindow.estimateTokens(message.optString("content")),
+            message -> message.optString("role"));
     private String ollamaEndpoint = "http://localhost:11434/api/chat";
     private String model = "llama3";
+    private String keepAlive = LlmConfiguration.defaultConfig().keepAlive();
+    private ConversationCompactor<JSONObject> compactor = new ConversationCompactor<>(history,
+            message -> message.optString("role") + ": " + message.optString("content"),
+            summary -> new JSONObject().put("role", "system").put("content", ConversationCompactor.SUMMARY_PREFIX + summary),
+            new OllamaSummarizer(() -> ollamaEndpoint, () -> model, () -> keepAlive,
+                    LlmConfiguration::defaultConfig));
     private DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMdd HH:mm:ss");
     private MessageConsole console;
     private MessageConsoleStream consoleStream;
+    private CompletableFuture<HttpResponse<String>> inFlight;
     
     @Override
     public void createPartControl(Composite parent) {
         // Create console for logging
         console = findConsole("Manorrock Assistant Log");
         consoleStream = console.newMessageStream();
+        OllamaWarmup.warm(ollamaEndpoint, model, keepAlive);
+        compactor.setListener(stats -> consoleStream.println(
+                "[" + LocalDateTime.now().format(formatter) + " - System]\nHistory compacted: " + stats));
         
         // Set up UI layout
         GridLayout layout = new GridLayout();
@@ -89,13 +116,21 @@ public class AssistantView extends ViewPart implements ISelectionListener {
         // Button panel
         Composite buttonPanel = new Composite(parent, SWT.NONE);
         buttonPanel.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
-        GridLayout buttonLayout = new GridLayout(2, false);
+        GridLayout buttonLayout = new GridLayout(4, false);
         buttonPanel.setLayout(buttonLayout);
         
+        statusLabel = new Label(buttonPanel, SWT.NONE);
+        statusLabel.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
+        
         sendButton = new Button(buttonPanel, SWT.PUSH);
         sendButton.setText("Send");
         sendButton.setLayoutData(new GridData(SWT.RIGHT, SWT.CENTER, true, false));
         
+        stopButton = new Button(buttonPanel, SWT.PUSH);
+        stopButton.setText("Stop");
+        stopButton.setLayoutData(new GridData(SWT.RIGHT, SWT.CENTER, false, false));
+        stopButton.setEnabled(false);
+        
         startOverButton = new Button(buttonPanel, SWT.PUSH);
         startOverButton.setText("Start Over");
         startOverButton.setLayoutData(new GridData(SWT.RIGHT, SWT.CENTER, false, false));
@@ -105,6 +140,11 @@ public class AssistantView extends ViewPart implements ISelectionListener {
         progressBar.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
         progressBar.setVisible(false);
         
+        // Show whether Ollama is up before the first message
+        EndpointHealth.getDefault().addListener(healthListener);
+        EndpointHealth.getDefault().watch(ollamaEndpoint);
+        updateStatus();
+        
         // Set initial message
         responseArea.setText("Welcome to Manorrock Assistant");
         
@@ -123,6 +163,7 @@ public class AssistantView extends ViewPart implements ISelectionListener {
         });
         
         sendButton.addListener(SWT.Selection, event -> handleSendAction());
+        stopButton.addListener(SWT.Selection, event -> handleStopAction());
         startOverButton.addListener(SWT.Selection, event -> handleStartOverAction());
         
         // Add tool bar actions
@@ -199,8 +240,12 @@ public class AssistantView extends ViewPart implements ISelectionListener {
             showHelp();
         } else if (command.equals("/clear")) {
             clearResponseArea();
+        } else if (command.equals("/stats")) {
+            showStats();
         } else if (command.equals("/explain")) {
             explainSelection();
+        } else if (command.equals("/stop")) {
+            handleStopAction();
         } else {
             responseArea.append("\n\nSystem: Unknown command. Type /help for a list of commands.");
         }
@@ -246,7 +291,10 @@ public class AssistantView extends ViewPart implements ISelectionListener {
         Matcher matcher = pattern.matcher(command);
         if (matcher.find()) {
             String newEndpoint = matcher.group(1);
-            ollamaEndpoint = "http://" + newEndpoint + "/api/chat";
+            ollamaEndpoint = EndpointPool.chatEndpoints(newEndpoint);
+            OllamaWarmup.warm(ollamaEndpoint, model, keepAlive);
+            EndpointHealth.getDefault().watch(ollamaEndpoint);
+            updateStatus();
             responseArea.append("\n\nSystem: Endpoint changed to " + ollamaEndpoint);
             consoleStream.println("[" + LocalDateTime.now().format(formatter) + " - System]\nEndpoint changed to " + ollamaEndpoint);
         } else {
@@ -259,6 +307,7 @@ public class AssistantView extends ViewPart implements ISelectionListener {
         Matcher matcher = pattern.matcher(command);
         if (matcher.find()) {
             model = matcher.group(1);
+            OllamaWarmup.warm(ollamaEndpoint, model, keepAlive);
             responseArea.append("\n\nSystem: Model changed to " + model);
             consoleStream.println("[" + LocalDateTime.now().format(formatter) + " - System]\nModel changed to " + model);
         } else {
@@ -268,18 +317,51 @@ public class AssistantView extends ViewPart implements ISelectionListener {
     
     private void showHelp() {
         String helpMessage = "\n\nSystem: Available commands:\n" +
-                            "/llmEndpoint myhostname:myport - Change the Ollama endpoint\n" +
+                            "/llmEndpoint myhostname:myport[,myhostname:myport...] - Change the Ollama endpoints\n" +
                             "/model <name> - Change the model used\n" +
                             "/help - Show this help message\n" +
                             "/clear - Clear the response window\n" +
-                            "/explain - Explain the selected text";
+                            "/explain - Explain the selected text\n" +
+                            "/stats - Show request timings and history size\n" +
+                            "/stop - Stop the answer being streamed";
         responseArea.append(helpMessage);
     }
     
+    /**
+     * Shows whether Ollama is up, so a down endpoint is visible before a
+     * message is sent.
+     */
+    private void updateStatus() {
+        if (!statusLabel.isDisposed()) {
+            statusLabel.setText(EndpointHealth.getDefault().status(ollamaEndpoint));
+            statusLabel.getParent().layout();
+        }
+    }
+    
+    private void showStats() {
+        responseArea.append("\n\nSystem: " + LlmMetrics.getDefault().report()
+                + "\n" + EndpointPool.getDefault().report(ollamaEndpoint)
+                + "\nHistory: " + history.size() + " messages, " + history.tokens() + " of "
+                + history.budget() + " tokens"
+                + "\nHistory compaction: " + compactor.stats());
+    }
+    
     private void clearResponseArea() {
         responseArea.setText("");
     }
     
+    /**
+     * Stops the answer being streamed. Cancelling the request closes its
+     * connection, so Ollama stops generating, and the request completes
+     * exceptionally right away, which returns the view to idle.
+     */
+    private void handleStopAction() {
+        CompletableFuture<HttpResponse<String>> request = inFlight;
+        if (request == null || !request.cancel(true)) {
+            responseArea.append("\n\nSystem: Nothing to stop.");
+        }
+    }
+    
     private void handleStartOverAction() {
         // Clear the history and reset the session ID
         history.clear();
@@ -306,82 +388,54 @@ public class AssistantView extends ViewPart implements ISelectionListener {
             
             // Add the new message to the history
             history.add(messageObject);
-            if (history.size() > 50) {
-                history.removeFirst();
-            }
+            LlmMetrics.Request metric = LlmMetrics.getDefault().start("OLLAMA", model, history.tokens());
             
             JSONObject jsonInput = new JSONObject();
             jsonInput.put("model", model);
-            jsonInput.put("messages", new JSONArray(history));
+            jsonInput.put("messages", new JSONArray(history.messages()));
             jsonInput.put("stream", true);
             jsonInput.put("session_id", sessionId);
-            
-            HttpClient client = HttpClient.newHttpClient();
-            HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(ollamaEndpoint))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(jsonInput.toString()))
-                .build();
+            jsonInput.put("keep_alive", keepAlive);
             
             sendButton.setEnabled(false);
+            stopButton.setEnabled(true);
             progressBar.setVisible(true);
             
-            client.sendAsync(request, HttpResponse.BodyHandlers.ofLines())
-                .thenApply(HttpResponse::body)
-                .thenAccept(lines -> {
-                    StringBuilder responseBuilder = new StringBuilder();
-                    final boolean[] isFirstLine = {true};
-                    
-                    lines.forEach(line -> {
-                        try {
-                            JSONObject jsonObject = new JSONObject(line);
-                            if (jsonObject.has("session_id")) {
-                                sessionId = jsonObject.getString("session_id");
-                            }
-                            
-                            if (jsonObject.has("messages")) {
-                                JSONArray messages = jsonObject.getJSONArray("messages");
-                                for (int i = 0; i < messages.length(); i++) {
-                                    JSONObject msg = messages.getJSONObject(i);
-                                    if ("assistant".equals(msg.getString("role"))) {
-                                        String content = msg.getString("content");
-                                        responseBuilder.append(content);
-                                        Display.getDefault().asyncExec(() -> {
-                                            if (isFirstLine[0]) {
-                                                responseArea.append("\n\nAssistant: " + content);
-                                                isFirstLine[0] = false;
-                                            } else {
-                                                responseArea.append(content);
-                                            }
-                                        });
-                                    }
-                                }
-                            } else if (jsonObject.has("message")) {
-                                String content = jsonObject.getJSONObject("message").getString("content");
-                                responseBuilder.append(content);
-                                Display.getDefault().asyncExec(() -> {
-                                    if (isFirstLine[0]) {
-                                        responseArea.append("\n\nAssistant: " + content);
-                                        isFirstLine[0] = false;
-                                    } else {
-                                        responseArea.append(content);
-                                    }
-                                });
-                            }
-                        } catch (JSONException e) {
-                            e.printStackTrace();
-                            Display.getDefault().asyncExec(() -> {
-                                consoleStream.println("[" + timestamp + " - Error]\n" + e.getMessage());
-                                String errorMessage = "Failed to parse JSON response: " + e.getMessage();
-                                responseArea.append("\n\nAssistant: " + errorMessage);
-                            });
+            final boolean[] isFirstLine = {true};
+            CompletableFuture<HttpResponse<String>> request = HedgedChat.send(ollamaEndpoint, sessionId, jsonInput.toString(), LlmConfiguration.defaultConfig(),
+                    HedgePolicy.disabled(), metric, new OllamaStreamDecoder.Listener() {
+                @Override
+                public void onContent(String content) {
+                    Display.getDefault().asyncExec(() -> {
+                        LlmEvents.UiAppend event = new LlmEvents.UiAppend();
+                        event.begin();
+                        if (isFirstLine[0]) {
+                            responseArea.append("\n\nAssistant: " + content);
+                            isFirstLine[0] = false;
+                        } else {
+                            responseArea.append(content);
                         }
+                        event.commit("eclipse", 1, content.length());
                     });
-                    
-                    String response = responseBuilder.toString().trim();
+                }
+
+                @Override
+                public void onSessionId(String newSessionId) {
+                    sessionId = newSessionId;
+                }
+            });
+            inFlight = request;
+            request.whenComplete(metric::record)
+                .thenApply(HttpResponse::body)
+                .thenAccept(body -> {
+                    String response = body.trim();
                     Display.getDefault().asyncExec(() -> {
                         consoleStream.println("[" + timestamp + " - Assistant]\n" + response);
+                        if (inFlight == request) {
+                            inFlight = null;
+                        }
                         sendButton.setEnabled(true);
+                        stopButton.setEnabled(false);
                         progressBar.setVisible(false);
                         
                         // Add the assistant's response to the history
@@ -390,20 +444,30 @@ public class AssistantView extends ViewPart implements ISelectionListener {
                             responseObject.put("role", "assistant");
                             responseObject.put("content", response);
                             history.add(responseObject);
-                            if (history.size() > 50) {
-                                history.removeFirst();
-                            }
                         } catch (JSONException e) {
                             e.printStackTrace();
                         }
+                        
+                        // Summarize older turns before the next message
+                        compactor.compactAsync();
                     });
                 })
                 .exceptionally(e -> {
+                    boolean stopped = e instanceof CancellationException || e.getCause() instanceof CancellationException;
                     Display.getDefault().asyncExec(() -> {
-                        consoleStream.println("[" + timestamp + " - Error]\n" + e.getMessage());
-                        String errorMessage = "Ollama is unavailable.";
-                        responseArea.append("\n\nAssistant: " + errorMessage);
+                        if (stopped) {
+                            consoleStream.println("[" + timestamp + " - System]\nStopped");
+                            responseArea.append("\n\nSystem: Stopped");
+                        } else {
+                            consoleStream.println("[" + timestamp + " - Error]\n" + e.getMessage());
+                            String errorMessage = "Ollama is unavailable.";
+                            responseArea.append("\n\nAssistant: " + errorMessage);
+                        }
+                        if (inFlight == request) {
+                            inFlight = null;
+                        }
                         sendButton.setEnabled(true);
+                        stopButton.setEnabled(false);
                         progressBar.setVisible(false);
                     });
                     return null;
@@ -413,6 +477,7 @@ public class AssistantView extends ViewPart implements ISelectionListener {
             String errorMessage = "Ollama is unavailable.";
             responseArea.append("\n\nAssistant: " + errorMessage);
             sendButton.setEnabled(true);
+            stopButton.setEnabled(false);
             progressBar.setVisible(false);
         }
     }
@@ -441,6 +506,7 @@ public class AssistantView extends ViewPart implements ISelectionListener {
     
     @Override
     public void dispose() {
+        EndpointHealth.getDefault().removeListener(healthListener);
         getSite().getWorkbenchWindow().getSelectionService().removeSelectionListener(this);
         super.dispose();
     }
@@ -8,11 +8,13 @@ group = "com.manorrock.assistant"
 version = "1.0-SNAPSHOT"
 
 repositories {
+  mavenLocal()
   mavenCentral()
 }
 
 dependencies {
     implementation("org.json:json:20231013")
+    implementation("com.manorrock.assistant:shared:25.3.0-SNAPSHOT")
     // ...other dependencies...
 }
 
@@ -17,31 +17,54 @@ import javax.swing.*
 import java.awt.*
 import java.awt.event.ActionEvent
 import java.awt.event.ActionListener
+import java.net.http.HttpResponse
 import java.time.LocalDateTime
 import java.time.format.DateTimeFormatter
-import java.util.LinkedList
 import java.util.UUID
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CompletableFuture
 import org.json.JSONObject
 import org.json.JSONArray
-import java.net.URI
-import java.net.http.HttpClient
-import java.net.http.HttpRequest
-import java.net.http.HttpResponse
+import com.manorrock.assistant.shared.ContextWindow
+import com.manorrock.assistant.shared.ConversationCompactor
+import com.manorrock.assistant.shared.EndpointHealth
+import com.manorrock.assistant.shared.EndpointPool
+import com.manorrock.assistant.shared.HedgePolicy
+import com.manorrock.assistant.shared.HedgedChat
+import com.manorrock.assistant.shared.LlmConfiguration
+import com.manorrock.assistant.shared.LlmMetrics
+import com.manorrock.assistant.shared.OllamaStreamDecoder
+import com.manorrock.assistant.shared.OllamaSummarizer
+import com.manorrock.assistant.shared.OllamaWarmup
 
 class IntelliJControllerTopComponent : ToolWindowFactory, ActionListener {
 
     private lateinit var responseArea: JTextArea
     private lateinit var requestArea: JTextArea
     private lateinit var sendButton: JButton
+    private lateinit var stopButton: JButton
     private lateinit var startOverButton: JButton
     private lateinit var progressBar: JProgressBar
+    private lateinit var statusLabel: JLabel
     private var sessionId: String = UUID.randomUUID().toString()
-    private val history: LinkedList<JSONObject> = LinkedList()
+    private val history: ContextWindow<JSONObject> = ContextWindow(
+        LlmConfiguration.defaultConfig().contextTokens(), { ContextWindow.estimateTokens(it.optString("content")) },
+        { it.optString("role") })
     private var ollamaEndpoint: String = "http://localhost:11434/api/chat"
     private var model: String = "llama3"
+    private val keepAlive: String = LlmConfiguration.defaultConfig().keepAlive()
+    private val compactor: ConversationCompactor<JSONObject> = ConversationCompactor(history,
+        { it.optString("role") + ": " + it.optString("content") },
+        { JSONObject().put("role", "system").put("content", ConversationCompactor.SUMMARY_PREFIX + it) },
+        OllamaSummarizer({ ollamaEndpoint }, { model }, { keepAlive },
+            { LlmConfiguration.defaultConfig() }))
     private val formatter: DateTimeFormatter = DateTimeFormatter.ofPattern("yyyyMMdd HH:mm:ss")
+    private var inFlight: CompletableFuture<HttpResponse<String>>? = null
 
     override fun createToolWindowContent(project: Project, toolWindow: ToolWindow) {
+        // Load the model in the background before the first message
+        OllamaWarmup.warm(ollamaEndpoint, model, keepAlive)
+
         val panel = JPanel(BorderLayout())
         responseArea = JTextArea().apply {
             lineWrap = true
@@ -49,8 +72,15 @@ class IntelliJControllerTopComponent : ToolWindowFactory, ActionListener {
         }
         requestArea = JTextArea()
         sendButton = JButton("Send")
+        stopButton = JButton("Stop").apply { isEnabled = false }
         startOverButton = JButton("Start Over")
         progressBar = JProgressBar(0, 100)
+        statusLabel = JLabel()
+
+        // Show whether Ollama is up before the first message
+        EndpointHealth.getDefault().addListener { _, _ -> javax.swing.SwingUtilities.invokeLater { updateStatus() } }
+        EndpointHealth.getDefault().watch(ollamaEndpoint)
+        updateStatus()
 
         // Set initial message
         responseArea.text = "Welcome to Manorrock Assistant"
@@ -69,6 +99,7 @@ class IntelliJControllerTopComponent : ToolWindowFactory, ActionListener {
         })
 
         sendButton.addActionListener(this)
+        stopButton.addActionListener(this)
         startOverButton.addActionListener(this)
 
         // Layout setup (simplified)
@@ -77,9 +108,11 @@ class IntelliJControllerTopComponent : ToolWindowFactory, ActionListener {
         bottomPanel.add(JScrollPane(requestArea), BorderLayout.CENTER)
         val buttonPanel = JPanel()
         buttonPanel.add(sendButton)
+        buttonPanel.add(stopButton)
         buttonPanel.add(startOverButton)
         bottomPanel.add(buttonPanel, BorderLayout.EAST)
         bottomPanel.add(progressBar, BorderLayout.SOUTH)
+        bottomPanel.add(statusLabel, BorderLayout.NORTH)
         panel.add(bottomPanel, BorderLayout.SOUTH)
 
         val contentFactory = ContentFactory.SERVICE.getInstance()
@@ -90,6 +123,7 @@ class IntelliJControllerTopComponent : ToolWindowFactory, ActionListener {
     override fun actionPerformed(e: ActionEvent) {
         when (e.source) {
             sendButton -> handleSendAction()
+            stopButton -> handleStopAction()
             startOverButton -> handleStartOverAction()
         }
     }
@@ -124,6 +158,8 @@ class IntelliJControllerTopComponent : ToolWindowFactory, ActionListener {
             command.startsWith("/model ") -> changeModel(command)
             command == "/help" -> showHelp()
             command == "/clear" -> clearResponseArea()
+            command == "/stats" -> showStats()
+            command == "/stop" -> handleStopAction()
             else -> responseArea.append("\n\nSystem: Unknown command. Type /help for a list of commands.")
         }
         requestArea.text = ""
@@ -134,7 +170,10 @@ class IntelliJControllerTopComponent : ToolWindowFactory, ActionListener {
         val matcher = pattern.matcher(command)
         if (matcher.find()) {
             val newEndpoint = matcher.group(1)
-            ollamaEndpoint = "http://$newEndpoint/api/chat"
+            ollamaEndpoint = EndpointPool.chatEndpoints(newEndpoint)
+            OllamaWarmup.warm(ollamaEndpoint, model, keepAlive)
+            EndpointHealth.getDefault().watch(ollamaEndpoint)
+            updateStatus()
             responseArea.append("\n\nSystem: Endpoint changed to $ollamaEndpoint")
         } else {
             responseArea.append("\n\nSystem: Invalid endpoint format. Use /llmEndpoint myhostname:myport")
@@ -146,6 +185,7 @@ class IntelliJControllerTopComponent : ToolWindowFactory, ActionListener {
         val matcher = pattern.matcher(command)
         if (matcher.find()) {
             model = matcher.group(1)
+            OllamaWarmup.warm(ollamaEndpoint, model, keepAlive)
             responseArea.append("\n\nSystem: Model changed to $model")
         } else {
             responseArea.append("\n\nSystem: Invalid model format. Use /model <name>")
@@ -155,18 +195,47 @@ class IntelliJControllerTopComponent : ToolWindowFactory, ActionListener {
     private fun showHelp() {
         val helpMessage = """
             |System: Available commands:
-            |/endpoint myhostname:myport - Change the Ollama endpoint
+            |/endpoint myhostname:myport[,myhostname:myport...] - Change the Ollama endpoints
             |/model <name> - Change the model used
             |/help - Show this help message
             |/clear - Clear the response window
+            |/stats - Show request timings and history size
+            |/stop - Stop the answer being streamed
         """.trimMargin()
         responseArea.append(helpMessage)
     }
 
+    private fun showStats() {
+        responseArea.append("\n\nSystem: ${LlmMetrics.getDefault().report()}" +
+            "\n${EndpointPool.getDefault().report(ollamaEndpoint)}" +
+            "\nHistory: ${history.size()} messages, ${history.tokens()} of ${history.budget()} tokens" +
+            "\nHistory compaction: ${compactor.stats()}")
+    }
+
+    /**
+     * Shows whether Ollama is up, so a down endpoint is visible before a
+     * message is sent.
+     */
+    private fun updateStatus() {
+        statusLabel.text = EndpointHealth.getDefault().status(ollamaEndpoint)
+    }
+
     private fun clearResponseArea() {
         responseArea.text = ""
     }
 
+    /**
+     * Stops the answer being streamed. Cancelling the request closes its
+     * connection, so Ollama stops generating, and the request completes
+     * exceptionally right away, which returns the window to idle.
+     */
+    private fun handleStopAction() {
+        val request = inFlight
+        if (request == null || !request.cancel(true)) {
+            responseArea.append("\n\nSystem: Nothing to stop.")
+        }
+    }
+
     private fun handleStartOverAction() {
         // Clear the history and reset the session ID
         history.clear()
@@ -193,73 +262,50 @@ class IntelliJControllerTopComponent : ToolWindowFactory, ActionListener {
 
             // Add the new message to the history
             history.add(messageObject)
-            if (history.size > 50) {
-                history.removeFirst()
-            }
+            val metric = LlmMetrics.getDefault().start("OLLAMA", model, history.tokens())
 
             val jsonInput = JSONObject().apply {
                 put("model", model)
-                put("messages", JSONArray(history))
+                put("messages", JSONArray(history.messages()))
                 put("stream", true)
                 put("session_id", sessionId)
+                put("keep_alive", keepAlive)
             }
 
-            val client = HttpClient.newHttpClient()
-            val request = HttpRequest.newBuilder()
-                .uri(URI.create(ollamaEndpoint))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(jsonInput.toString()))
-                .build()
-
             sendButton.isEnabled = false
+            stopButton.isEnabled = true
             progressBar.isIndeterminate = true
 
-            client.sendAsync(request, HttpResponse.BodyHandlers.ofLines())
-                .thenApply { it.body() }
-                .thenAccept { lines ->
-                    val responseBuilder = StringBuilder()
-                    val isFirstLine = booleanArrayOf(true)
-                    lines.forEach { line: String ->
-                        val jsonObject = JSONObject(line)
-                        if (jsonObject.has("session_id")) {
-                            sessionId = jsonObject.getString("session_id")
-                        }
-                        if (jsonObject.has("messages")) {
-                            val messages = jsonObject.getJSONArray("messages")
-                            for (i in 0 until messages.length()) {
-                                val msg = messages.getJSONObject(i)
-                                if ("assistant" == msg.getString("role")) {
-                                    val content = msg.getString("content")
-                                    responseBuilder.append(content.toString())
-                                    javax.swing.SwingUtilities.invokeLater {
-                                        if (isFirstLine[0]) {
-                                            responseArea.append("\n\nAssistant: " + content.toString())
-                                            isFirstLine[0] = false
-                                        } else {
-                                            responseArea.append(content.toString())
-                                        }
-                                        responseArea.caretPosition = responseArea.document.length
-                                    }
-                                }
-                            }
+            val isFirstLine = booleanArrayOf(true)
+            val request = HedgedChat.send(ollamaEndpoint, sessionId, jsonInput.toString(), LlmConfiguration.defaultConfig(),
+                    HedgePolicy.disabled(), metric, object : OllamaStreamDecoder.Listener {
+                override fun onContent(content: String) {
+                    javax.swing.SwingUtilities.invokeLater {
+                        if (isFirstLine[0]) {
+                            responseArea.append("\n\nAssistant: $content")
+                            isFirstLine[0] = false
                         } else {
-                            val content = jsonObject.getJSONObject("message").getString("content")
-                            responseBuilder.append(content.toString())
-                            javax.swing.SwingUtilities.invokeLater {
-                                if (isFirstLine[0]) {
-                                    responseArea.append("\n\nAssistant: " + content.toString())
-                                    isFirstLine[0] = false
-                                } else {
-                                    responseArea.append(content.toString())
-                                }
-                                responseArea.caretPosition = responseArea.document.length
-                            }
+                            responseArea.append(content)
                         }
+                        responseArea.caretPosition = responseArea.document.length
                     }
+                }
 
-                    val response = responseBuilder.toString().trim()
+                override fun onSessionId(sessionId: String) {
+                    this@IntelliJControllerTopComponent.sessionId = sessionId
+                }
+            })
+            inFlight = request
+            request.whenComplete(metric::record)
+                .thenApply { it.body() }
+                .thenAccept { body ->
+                    val response = body.trim()
                     javax.swing.SwingUtilities.invokeLater {
+                        if (inFlight === request) {
+                            inFlight = null
+                        }
                         sendButton.isEnabled = true
+                        stopButton.isEnabled = false
                         progressBar.isIndeterminate = false
 
                         // Add the assistant's response to the history
@@ -268,17 +314,26 @@ class IntelliJControllerTopComponent : ToolWindowFactory, ActionListener {
                             put("content", response)
                         }
                         history.add(responseObject)
-                        if (history.size > 50) {
-                            history.removeFirst()
-                        }
+
+                        // Summarize older turns before the next message
+                        compactor.compactAsync()
                     }
                 }
                 .exceptionally { e ->
+                    val stopped = e is CancellationException || e.cause is CancellationException
                     javax.swing.SwingUtilities.invokeLater {
-                        val errorMessage = "Ollama is unavailable."
-                        responseArea.append("\n\nAssistant: $errorMessage")
+                        if (stopped) {
+                            responseArea.append("\n\nSystem: Stopped")
+                        } else {
+                            val errorMessage = "Ollama is unavailable."
+                            responseArea.append("\n\nAssistant: $errorMessage")
+                        }
                         responseArea.caretPosition = responseArea.document.length
+                        if (inFlight === request) {
+                            inFlight = null
+                        }
                         sendButton.isEnabled = true
+                        stopButton.isEnabled = false
                         progressBar.isIndeterminate = false
                     }
                     null
@@ -288,6 +343,7 @@ class IntelliJControllerTopComponent : ToolWindowFactory, ActionListener {
             responseArea.append("\n\nAssistant: $errorMessage")
             responseArea.caretPosition = responseArea.document.length
             sendButton.isEnabled = true
+            stopButton.isEnabled = false
             progressBar.isIndeterminate = false
         }
     }
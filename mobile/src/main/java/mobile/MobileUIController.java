@@ -3,25 +3,36 @@ package mobile;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.control.Button;
+import javafx.scene.control.Label;
 import javafx.scene.control.ProgressBar;
 import javafx.scene.control.TextArea;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
 
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.LinkedList;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.json.JSONObject;
 import org.json.JSONArray;
 
+import com.manorrock.assistant.shared.ContextWindow;
+import com.manorrock.assistant.shared.ConversationCompactor;
+import com.manorrock.assistant.shared.EndpointHealth;
+import com.manorrock.assistant.shared.EndpointPool;
+import com.manorrock.assistant.shared.HedgePolicy;
+import com.manorrock.assistant.shared.HedgedChat;
+import com.manorrock.assistant.shared.LlmConfiguration;
+import com.manorrock.assistant.shared.LlmMetrics;
+import com.manorrock.assistant.shared.OllamaStreamDecoder;
+import com.manorrock.assistant.shared.OllamaSummarizer;
+import com.manorrock.assistant.shared.OllamaWarmup;
+
 public class MobileUIController {
 
     @FXML
@@ -33,24 +44,48 @@ public class MobileUIController {
     @FXML
     private Button sendRequestButton;
 
+    @FXML
+    private Button stopRequestButton;
+
     @FXML
     private ProgressBar progressBar;
 
+    @FXML
+    private Label statusLabel;
+
     private String sessionId = UUID.randomUUID().toString();
-    private LinkedList<JSONObject> history = new LinkedList<>();
+    private ContextWindow<JSONObject> history = new ContextWindow<>(
+            LlmConfiguration.defaultConfig().contextTokens(), message -> ContextWindow.estimateTokens(message.optString("content")),
+            message -> message.optString("role"));
     private String ollamaEndpoint = "http://localhost:11434/api/chat";
     private String model = "llama3";
+    private String keepAlive = LlmConfiguration.defaultConfig().keepAlive();
+    private ConversationCompactor<JSONObject> compactor = new ConversationCompactor<>(history,
+            message -> message.optString("role") + ": " + message.optString("content"),
+            summary -> new JSONObject().put("role", "system").put("content", ConversationCompactor.SUMMARY_PREFIX + summary),
+            new OllamaSummarizer(() -> ollamaEndpoint, () -> model, () -> keepAlive,
+                    LlmConfiguration::defaultConfig));
     
     private DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMdd HH:mm:ss");
 
+    private CompletableFuture<HttpResponse<String>> inFlight;
+
     @FXML
     public void initialize() {
+        // Load the model in the background before the first message
+        OllamaWarmup.warm(ollamaEndpoint, model, keepAlive);
+
         // Set initial message
         responseTextArea.setText("Welcome to Manorrock Assistant");
         
         // Stop the progress bar initially
         progressBar.setProgress(0);
 
+        // Show whether Ollama is up before the first message
+        EndpointHealth.getDefault().addListener((endpoint, state) -> Platform.runLater(this::updateStatus));
+        EndpointHealth.getDefault().watch(ollamaEndpoint);
+        updateStatus();
+
         // Show help message on startup
         showHelp();
 
@@ -63,6 +98,7 @@ public class MobileUIController {
         });
 
         sendRequestButton.setOnAction(event -> handleSendAction());
+        stopRequestButton.setOnAction(event -> handleStopAction());
     }
 
     private void handleSendAction() {
@@ -98,6 +134,10 @@ public class MobileUIController {
             showHelp();
         } else if (command.equals("/clear")) {
             clearResponseArea();
+        } else if (command.equals("/stats")) {
+            showStats();
+        } else if (command.equals("/stop")) {
+            handleStopAction();
         } else {
             responseTextArea.appendText("\n\nSystem: Unknown command. Type /help for a list of commands.");
         }
@@ -109,7 +149,10 @@ public class MobileUIController {
         Matcher matcher = pattern.matcher(command);
         if (matcher.find()) {
             String newEndpoint = matcher.group(1);
-            ollamaEndpoint = "http://" + newEndpoint + "/api/chat";
+            ollamaEndpoint = EndpointPool.chatEndpoints(newEndpoint);
+            OllamaWarmup.warm(ollamaEndpoint, model, keepAlive);
+            EndpointHealth.getDefault().watch(ollamaEndpoint);
+            updateStatus();
             responseTextArea.appendText("\n\nSystem: Endpoint changed to " + ollamaEndpoint);
         } else {
             responseTextArea.appendText("\n\nSystem: Invalid endpoint format. Use /llmEndpoint myhostname:myport");
@@ -121,6 +164,7 @@ public class MobileUIController {
         Matcher matcher = pattern.matcher(command);
         if (matcher.find()) {
             model = matcher.group(1);
+            OllamaWarmup.warm(ollamaEndpoint, model, keepAlive);
             responseTextArea.appendText("\n\nSystem: Model changed to " + model);
         } else {
             responseTextArea.appendText("\n\nSystem: Invalid model format. Use /model <name>");
@@ -129,17 +173,47 @@ public class MobileUIController {
 
     private void showHelp() {
         String helpMessage = "\n\nSystem: Available commands:\n" +
-                             "/llmEndpoint myhostname:myport - Change the Ollama endpoint\n" +
+                             "/llmEndpoint myhostname:myport[,myhostname:myport...] - Change the Ollama endpoints\n" +
                              "/model <name> - Change the model used\n" +
                              "/help - Show this help message\n" +
-                             "/clear - Clear the response window";
+                             "/clear - Clear the response window\n" +
+                             "/stats - Show request timings and history size\n" +
+                             "/stop - Stop the answer being streamed";
         responseTextArea.appendText(helpMessage);
     }
 
+    private void showStats() {
+        responseTextArea.appendText("\n\nSystem: " + LlmMetrics.getDefault().report()
+                + "\n" + EndpointPool.getDefault().report(ollamaEndpoint)
+                + "\nHistory: " + history.size() + " messages, " + history.tokens() + " of "
+                + history.budget() + " tokens"
+                + "\nHistory compaction: " + compactor.stats());
+    }
+
+    /**
+     * Shows whether Ollama is up, so a down endpoint is visible before a
+     * message is sent.
+     */
+    private void updateStatus() {
+        statusLabel.setText(EndpointHealth.getDefault().status(ollamaEndpoint));
+    }
+
     private void clearResponseArea() {
         responseTextArea.clear();
     }
 
+    /**
+     * Stops the answer being streamed. Cancelling the request closes its
+     * connection, so Ollama stops generating, and the request completes
+     * exceptionally right away, which returns the screen to idle.
+     */
+    private void handleStopAction() {
+        CompletableFuture<HttpResponse<String>> request = inFlight;
+        if (request == null || !request.cancel(true)) {
+            responseTextArea.appendText("\n\nSystem: Nothing to stop.");
+        }
+    }
+
     private void processMessage(String message) {
         String timestamp = LocalDateTime.now().format(formatter);
 
@@ -150,72 +224,51 @@ public class MobileUIController {
 
             // Add the new message to the history
             history.add(messageObject);
-            if (history.size() > 50) {
-                history.removeFirst();
-            }
+            LlmMetrics.Request metric = LlmMetrics.getDefault().start("OLLAMA", model, history.tokens());
 
             JSONObject jsonInput = new JSONObject();
             jsonInput.put("model", model);
-            jsonInput.put("messages", new JSONArray(history));
+            jsonInput.put("messages", new JSONArray(history.messages()));
             jsonInput.put("stream", true);
             jsonInput.put("session_id", sessionId);
-
-            HttpClient client = HttpClient.newHttpClient();
-            HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(ollamaEndpoint))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(jsonInput.toString()))
-                .build();
+            jsonInput.put("keep_alive", keepAlive);
 
             sendRequestButton.setDisable(true);
+            stopRequestButton.setDisable(false);
             progressBar.setProgress(ProgressBar.INDETERMINATE_PROGRESS);
 
-            client.sendAsync(request, HttpResponse.BodyHandlers.ofLines())
-                .thenApply(HttpResponse::body)
-                .thenAccept(lines -> {
-                    StringBuilder responseBuilder = new StringBuilder();
-                    final boolean[] isFirstLine = {true};
-                    lines.forEach(line -> {
-                        JSONObject jsonObject = new JSONObject(line);
-                        if (jsonObject.has("session_id")) {
-                            sessionId = jsonObject.getString("session_id");
-                        }
-                        if (jsonObject.has("messages")) {
-                            JSONArray messages = jsonObject.getJSONArray("messages");
-                            for (int i = 0; i < messages.length(); i++) {
-                                JSONObject msg = messages.getJSONObject(i);
-                                if ("assistant".equals(msg.getString("role"))) {
-                                    String content = msg.getString("content");
-                                    responseBuilder.append(content);
-                                    Platform.runLater(() -> {
-                                        if (isFirstLine[0]) {
-                                            responseTextArea.appendText("\n\nAssistant: " + content);
-                                            isFirstLine[0] = false;
-                                        } else {
-                                            responseTextArea.appendText(content);
-                                        }
-                                        responseTextArea.positionCaret(responseTextArea.getText().length());
-                                    });
-                                }
-                            }
+            final boolean[] isFirstLine = {true};
+            CompletableFuture<HttpResponse<String>> request = HedgedChat.send(ollamaEndpoint, sessionId, jsonInput.toString(), LlmConfiguration.defaultConfig(),
+                    HedgePolicy.disabled(), metric, new OllamaStreamDecoder.Listener() {
+                @Override
+                public void onContent(String content) {
+                    Platform.runLater(() -> {
+                        if (isFirstLine[0]) {
+                            responseTextArea.appendText("\n\nAssistant: " + content);
+                            isFirstLine[0] = false;
                         } else {
-                            String content = jsonObject.getJSONObject("message").getString("content");
-                            responseBuilder.append(content);
-                            Platform.runLater(() -> {
-                                if (isFirstLine[0]) {
-                                    responseTextArea.appendText("\n\nAssistant: " + content);
-                                    isFirstLine[0] = false;
-                                } else {
-                                    responseTextArea.appendText(content);
-                                }
-                                responseTextArea.positionCaret(responseTextArea.getText().length());
-                            });
+                            responseTextArea.appendText(content);
                         }
+                        responseTextArea.positionCaret(responseTextArea.getText().length());
                     });
+                }
 
-                    String response = responseBuilder.toString().trim();
+                @Override
+                public void onSessionId(String newSessionId) {
+                    sessionId = newSessionId;
+                }
+            });
+            inFlight = request;
+            request.whenComplete(metric::record)
+                .thenApply(HttpResponse::body)
+                .thenAccept(body -> {
+                    String response = body.trim();
                     Platform.runLater(() -> {
+                        if (inFlight == request) {
+                            inFlight = null;
+                        }
                         sendRequestButton.setDisable(false);
+                        stopRequestButton.setDisable(true);
                         progressBar.setProgress(0);
 
                         // Add the assistant's response to the history
@@ -223,17 +276,26 @@ public class MobileUIController {
                         responseObject.put("role", "assistant");
                         responseObject.put("content", response);
                         history.add(responseObject);
-                        if (history.size() > 50) {
-                            history.removeFirst();
-                        }
+
+                        // Summarize older turns before the next message
+                        compactor.compactAsync();
                     });
                 })
                 .exceptionally(e -> {
+                    boolean stopped = e instanceof CancellationException || e.getCause() instanceof CancellationException;
                     Platform.runLater(() -> {
-                        String errorMessage = "Ollama is unavailable.";
-                        responseTextArea.appendText("\n\nAssistant: " + errorMessage);
+                        if (stopped) {
+                            responseTextArea.appendText("\n\nSystem: Stopped");
+                        } else {
+                            String errorMessage = "Ollama is unavailable.";
+                            responseTextArea.appendText("\n\nAssistant: " + errorMessage);
+                        }
                         responseTextArea.positionCaret(responseTextArea.getText().length());
+                        if (inFlight == request) {
+                            inFlight = null;
+                        }
                         sendRequestButton.setDisable(false);
+                        stopRequestButton.setDisable(true);
                         progressBar.setProgress(0);
                     });
                     return null;
@@ -243,6 +305,7 @@ public class MobileUIController {
             responseTextArea.appendText("\n\nAssistant: " + errorMessage);
             responseTextArea.positionCaret(responseTextArea.getText().length());
             sendRequestButton.setDisable(false);
+            stopRequestButton.setDisable(true);
             progressBar.setProgress(0);
         }
     }
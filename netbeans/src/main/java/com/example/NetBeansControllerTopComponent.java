@@ -13,23 +13,33 @@ import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.LinkedList;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.swing.JButton;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JProgressBar;
 import org.json.JSONObject;
 import org.json.JSONArray;
+import com.manorrock.assistant.shared.ContextWindow;
+import com.manorrock.assistant.shared.ConversationCompactor;
+import com.manorrock.assistant.shared.EndpointHealth;
+import com.manorrock.assistant.shared.EndpointPool;
+import com.manorrock.assistant.shared.HedgePolicy;
+import com.manorrock.assistant.shared.HedgedChat;
+import com.manorrock.assistant.shared.LlmConfiguration;
+import com.manorrock.assistant.shared.LlmMetrics;
+import com.manorrock.assistant.shared.OllamaStreamDecoder;
+import com.manorrock.assistant.shared.OllamaSummarizer;
+import com.manorrock.assistant.shared.OllamaWarmup;
 import org.openide.windows.IOProvider;
 import org.openide.windows.InputOutput;
 import org.openide.cookies.EditorCookie;
@@ -59,21 +69,38 @@ public final class NetBeansControllerTopComponent extends TopComponent implement
     private JTextArea responseArea;
     private JTextArea requestArea;
     private JButton sendButton;
+    private JButton stopButton;
     private JButton startOverButton;
     private JProgressBar progressBar;
+    private JLabel statusLabel;
     private String sessionId = UUID.randomUUID().toString();
-    private LinkedList<JSONObject> history = new LinkedList<>();
+    private ContextWindow<JSONObject> history = new ContextWindow<>(
+            LlmConfiguration.defaultConfig().contextTokens(), message -> ContextWindow.estimateTokens(message.optString("content")),
+            message -> message.optString("role"));
     private String ollamaEndpoint = "http://localhost:11434/api/chat";
     private String model = "llama3";
+    private String keepAlive = LlmConfiguration.defaultConfig().keepAlive();
+    private ConversationCompactor<JSONObject> compactor = new ConversationCompactor<>(history,
+            message -> message.optString("role") + ": " + message.optString("content"),
+            summary -> new JSONObject().put("role", "system").put("content", ConversationCompactor.SUMMARY_PREFIX + summary),
+            new OllamaSummarizer(() -> ollamaEndpoint, () -> model, () -> keepAlive,
+                    LlmConfiguration::defaultConfig));
     private DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMdd HH:mm:ss");
     private InputOutput io;
     private TopComponent lastFocusedEditor;
+    private CompletableFuture<HttpResponse<String>> inFlight;
 
     public NetBeansControllerTopComponent() {
         initComponents();
         setName(Bundle.CTL_NetBeansControllerTopComponent());
         setToolTipText(Bundle.HINT_NetBeansControllerTopComponent());
         io = IOProvider.getDefault().getIO("Chat Log", false);
+        OllamaWarmup.warm(ollamaEndpoint, model, keepAlive);
+        EndpointHealth.getDefault().addListener((endpoint, state) -> javax.swing.SwingUtilities.invokeLater(this::updateStatus));
+        EndpointHealth.getDefault().watch(ollamaEndpoint);
+        updateStatus();
+        compactor.setListener(stats -> io.getOut().println(
+                "[" + LocalDateTime.now().format(formatter) + " - System]\nHistory compacted: " + stats));
         TopComponent.getRegistry().addPropertyChangeListener(evt -> {
             if (TopComponent.Registry.PROP_ACTIVATED.equals(evt.getPropertyName())) {
                 TopComponent activated = TopComponent.getRegistry().getActivated();
@@ -90,8 +117,11 @@ public final class NetBeansControllerTopComponent extends TopComponent implement
         responseArea.setWrapStyleWord(true);
         requestArea = new JTextArea();
         sendButton = new JButton("Send");
+        stopButton = new JButton("Stop");
+        stopButton.setEnabled(false);
         startOverButton = new JButton("Start Over");
         progressBar = new JProgressBar(0, 100);
+        statusLabel = new JLabel();
 
         // Set initial message
         responseArea.setText("Welcome to Manorrock Assistant");
@@ -111,6 +141,7 @@ public final class NetBeansControllerTopComponent extends TopComponent implement
         });
 
         sendButton.addActionListener(this);
+        stopButton.addActionListener(this);
         startOverButton.addActionListener(this);
 
         // Layout setup (simplified)
@@ -120,9 +151,11 @@ public final class NetBeansControllerTopComponent extends TopComponent implement
         bottomPanel.add(new JScrollPane(requestArea), BorderLayout.CENTER);
         JPanel buttonPanel = new JPanel();
         buttonPanel.add(sendButton);
+        buttonPanel.add(stopButton);
         buttonPanel.add(startOverButton);
         bottomPanel.add(buttonPanel, BorderLayout.EAST);
         bottomPanel.add(progressBar, BorderLayout.SOUTH);
+        bottomPanel.add(statusLabel, BorderLayout.NORTH);
         add(bottomPanel, BorderLayout.SOUTH);
     }
 
@@ -130,6 +163,8 @@ public final class NetBeansControllerTopComponent extends TopComponent implement
     public void actionPerformed(ActionEvent e) {
         if (e.getSource() == sendButton) {
             handleSendAction();
+        } else if (e.getSource() == stopButton) {
+            handleStopAction();
         } else if (e.getSource() == startOverButton) {
             handleStartOverAction();
         }
@@ -171,8 +206,12 @@ public final class NetBeansControllerTopComponent extends TopComponent implement
             showHelp();
         } else if (command.equals("/clear")) {
             clearResponseArea();
+        } else if (command.equals("/stats")) {
+            showStats();
         } else if (command.equals("/explain")) {
             explainSelection();
+        } else if (command.equals("/stop")) {
+            handleStopAction();
         } else {
             responseArea.append("\n\nSystem: Unknown command. Type /help for a list of commands.");
         }
@@ -214,7 +253,10 @@ public final class NetBeansControllerTopComponent extends TopComponent implement
         Matcher matcher = pattern.matcher(command);
         if (matcher.find()) {
             String newEndpoint = matcher.group(1);
-            ollamaEndpoint = "http://" + newEndpoint + "/api/chat";
+            ollamaEndpoint = EndpointPool.chatEndpoints(newEndpoint);
+            OllamaWarmup.warm(ollamaEndpoint, model, keepAlive);
+            EndpointHealth.getDefault().watch(ollamaEndpoint);
+            updateStatus();
             responseArea.append("\n\nSystem: Endpoint changed to " + ollamaEndpoint);
             io.getOut().println("[" + LocalDateTime.now().format(formatter) + " - System]\nEndpoint changed to " + ollamaEndpoint);
         } else {
@@ -227,6 +269,7 @@ public final class NetBeansControllerTopComponent extends TopComponent implement
         Matcher matcher = pattern.matcher(command);
         if (matcher.find()) {
             model = matcher.group(1);
+            OllamaWarmup.warm(ollamaEndpoint, model, keepAlive);
             responseArea.append("\n\nSystem: Model changed to " + model);
             io.getOut().println("[" + LocalDateTime.now().format(formatter) + " - System]\nModel changed to " + model);
         } else {
@@ -236,18 +279,48 @@ public final class NetBeansControllerTopComponent extends TopComponent implement
 
     private void showHelp() {
         String helpMessage = "\n\nSystem: Available commands:\n" +
-                             "/llmEndpoint myhostname:myport - Change the Ollama endpoint\n" +
+                             "/llmEndpoint myhostname:myport[,myhostname:myport...] - Change the Ollama endpoints\n" +
                              "/model <name> - Change the model used\n" +
                              "/help - Show this help message\n" +
                              "/clear - Clear the response window\n" +
-                             "/explain - Explain the selected text";
+                             "/explain - Explain the selected text\n" +
+                             "/stats - Show request timings and history size\n" +
+                             "/stop - Stop the answer being streamed";
         responseArea.append(helpMessage);
     }
 
+    private void showStats() {
+        responseArea.append("\n\nSystem: " + LlmMetrics.getDefault().report()
+                + "\n" + EndpointPool.getDefault().report(ollamaEndpoint)
+                + "\nHistory: " + history.size() + " messages, " + history.tokens() + " of "
+                + history.budget() + " tokens"
+                + "\nHistory compaction: " + compactor.stats());
+    }
+
+    /**
+     * Shows whether Ollama is up, so a down endpoint is visible before a
+     * message is sent.
+     */
+    private void updateStatus() {
+        statusLabel.setText(EndpointHealth.getDefault().status(ollamaEndpoint));
+    }
+
     private void clearResponseArea() {
         responseArea.setText("");
     }
 
+    /**
+     * Stops the answer being streamed. Cancelling the request closes its
+     * connection, so Ollama stops generating, and the request completes
+     * exceptionally right away, which returns the window to idle.
+     */
+    private void handleStopAction() {
+        CompletableFuture<HttpResponse<String>> request = inFlight;
+        if (request == null || !request.cancel(true)) {
+            responseArea.append("\n\nSystem: Nothing to stop.");
+        }
+    }
+
     private void handleStartOverAction() {
         // Clear the history and reset the session ID
         history.clear();
@@ -274,73 +347,52 @@ public final class NetBeansControllerTopComponent extends TopComponent implement
 
             // Add the new message to the history
             history.add(messageObject);
-            if (history.size() > 50) {
-                history.removeFirst();
-            }
+            LlmMetrics.Request metric = LlmMetrics.getDefault().start("OLLAMA", model, history.tokens());
 
             JSONObject jsonInput = new JSONObject();
             jsonInput.put("model", model);
-            jsonInput.put("messages", new JSONArray(history));
+            jsonInput.put("messages", new JSONArray(history.messages()));
             jsonInput.put("stream", true);
             jsonInput.put("session_id", sessionId);
-
-            HttpClient client = HttpClient.newHttpClient();
-            HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(ollamaEndpoint))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(jsonInput.toString()))
-                .build();
+            jsonInput.put("keep_alive", keepAlive);
 
             sendButton.setEnabled(false);
+            stopButton.setEnabled(true);
             progressBar.setIndeterminate(true);
 
-            client.sendAsync(request, HttpResponse.BodyHandlers.ofLines())
-                .thenApply(HttpResponse::body)
-                .thenAccept(lines -> {
-                    StringBuilder responseBuilder = new StringBuilder();
-                    final boolean[] isFirstLine = {true};
-                    lines.forEach(line -> {
-                        JSONObject jsonObject = new JSONObject(line);
-                        if (jsonObject.has("session_id")) {
-                            sessionId = jsonObject.getString("session_id");
-                        }
-                        if (jsonObject.has("messages")) {
-                            JSONArray messages = jsonObject.getJSONArray("messages");
-                            for (int i = 0; i < messages.length(); i++) {
-                                JSONObject msg = messages.getJSONObject(i);
-                                if ("assistant".equals(msg.getString("role"))) {
-                                    String content = msg.getString("content");
-                                    responseBuilder.append(content);
-                                    javax.swing.SwingUtilities.invokeLater(() -> {
-                                        if (isFirstLine[0]) {
-                                            responseArea.append("\n\nAssistant: " + content);
-                                            isFirstLine[0] = false;
-                                        } else {
-                                            responseArea.append(content);
-                                        }
-                                        responseArea.setCaretPosition(responseArea.getDocument().getLength());
-                                    });
-                                }
-                            }
+            final boolean[] isFirstLine = {true};
+            CompletableFuture<HttpResponse<String>> request = HedgedChat.send(ollamaEndpoint, sessionId, jsonInput.toString(), LlmConfiguration.defaultConfig(),
+                    HedgePolicy.disabled(), metric, new OllamaStreamDecoder.Listener() {
+                @Override
+                public void onContent(String content) {
+                    javax.swing.SwingUtilities.invokeLater(() -> {
+                        if (isFirstLine[0]) {
+                            responseArea.append("\n\nAssistant: " + content);
+                            isFirstLine[0] = false;
                         } else {
-                            String content = jsonObject.getJSONObject("message").getString("content");
-                            responseBuilder.append(content);
-                            javax.swing.SwingUtilities.invokeLater(() -> {
-                                if (isFirstLine[0]) {
-                                    responseArea.append("\n\nAssistant: " + content);
-                                    isFirstLine[0] = false;
-                                } else {
-                                    responseArea.append(content);
-                                }
-                                responseArea.setCaretPosition(responseArea.getDocument().getLength());
-                            });
+                            responseArea.append(content);
                         }
+                        responseArea.setCaretPosition(responseArea.getDocument().getLength());
                     });
+                }
 
-                    String response = responseBuilder.toString().trim();
+                @Override
+                public void onSessionId(String newSessionId) {
+                    sessionId = newSessionId;
+                }
+            });
+            inFlight = request;
+            request.whenComplete(metric::record)
+                .thenApply(HttpResponse::body)
+                .thenAccept(body -> {
+                    String response = body.trim();
                     javax.swing.SwingUtilities.invokeLater(() -> {
                         io.getOut().println("[" + timestamp + " - Assistant]\n" + response);
+                        if (inFlight == request) {
+                            inFlight = null;
+                        }
                         sendButton.setEnabled(true);
+                        stopButton.setEnabled(false);
                         progressBar.setIndeterminate(false);
 
                         // Add the assistant's response to the history
@@ -348,18 +400,28 @@ public final class NetBeansControllerTopComponent extends TopComponent implement
                         responseObject.put("role", "assistant");
                         responseObject.put("content", response);
                         history.add(responseObject);
-                        if (history.size() > 50) {
-                            history.removeFirst();
-                        }
+
+                        // Summarize older turns before the next message
+                        compactor.compactAsync();
                     });
                 })
                 .exceptionally(e -> {
+                    boolean stopped = e instanceof CancellationException || e.getCause() instanceof CancellationException;
                     javax.swing.SwingUtilities.invokeLater(() -> {
-                        io.getOut().println("[" + timestamp + " - Error]\n" + e.getMessage());
-                        String errorMessage = "Ollama is unavailable.";
-                        responseArea.append("\n\nAssistant: " + errorMessage);
+                        if (stopped) {
+                            io.getOut().println("[" + timestamp + " - System]\nStopped");
+                            responseArea.append("\n\nSystem: Stopped");
+                        } else {
+                            io.getOut().println("[" + timestamp + " - Error]\n" + e.getMessage());
+                            String errorMessage = "Ollama is unavailable.";
+                            responseArea.append("\n\nAssistant: " + errorMessage);
+                        }
                         responseArea.setCaretPosition(responseArea.getDocument().getLength());
+                        if (inFlight == request) {
+                            inFlight = null;
+                        }
                         sendButton.setEnabled(true);
+                        stopButton.setEnabled(false);
                         progressBar.setIndeterminate(false);
                     });
                     return null;
@@ -370,6 +432,7 @@ public final class NetBeansControllerTopComponent extends TopComponent implement
             responseArea.append("\n\nAssistant: " + errorMessage);
             responseArea.setCaretPosition(responseArea.getDocument().getLength());
             sendButton.setEnabled(true);
+            stopButton.setEnabled(false);
             progressBar.setIndeterminate(false);
         }
     }
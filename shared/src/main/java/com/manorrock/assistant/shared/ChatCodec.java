@@ -0,0 +1,414 @@
+package com.manorrock.assistant.shared;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hand-written JSON codec for the Ollama and OpenAI chat payloads.
+ *
+ * <p>
+ * Requests are written straight into a {@link StringBuilder} and responses
+ * are parsed by a small recursive-descent reader into maps, lists, strings,
+ * numbers and booleans. No reflection or bean introspection is involved, so
+ * the codec needs no native-image metadata and adds next to nothing to a
+ * closed-world image.
+ * </p>
+ */
+public final class ChatCodec {
+
+    private ChatCodec() {
+    }
+
+    /**
+     * Writes an Ollama {@code /api/chat} streaming request.
+     *
+     * @param model the model
+     * @param messages the messages, oldest first
+     * @param temperature the sampling temperature
+     * @param keepAlive how long to keep the model loaded, or null for the
+     * server default
+     * @param sessionId the session id, or null
+     * @return the request body
+     */
+    public static String ollamaRequest(String model, List<ChatMessage> messages, double temperature,
+            String keepAlive, String sessionId) {
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"model\":");
+        quote(json, model);
+        json.append(",\"messages\":");
+        messages(json, messages);
+        json.append(",\"stream\":true");
+        if (sessionId != null) {
+            json.append(",\"session_id\":");
+            quote(json, sessionId);
+        }
+        if (keepAlive != null) {
+            json.append(",\"keep_alive\":");
+            quote(json, keepAlive);
+        }
+        json.append(",\"options\":{\"temperature\":").append(temperature).append("}}");
+        return json.toString();
+    }
+
+    /**
+     * Writes an OpenAI {@code /v1/chat/completions} request.
+     *
+     * @param model the model
+     * @param messages the messages, oldest first
+     * @param temperature the sampling temperature
+     * @param stream true to stream the answer as server-sent events
+     * @return the request body
+     */
+    public static String openAiRequest(String model, List<ChatMessage> messages, double temperature, boolean stream) {
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"model\":");
+        quote(json, model);
+        json.append(",\"messages\":");
+        messages(json, messages);
+        json.append(",\"temperature\":").append(temperature);
+        json.append(",\"stream\":").append(stream).append('}');
+        return json.toString();
+    }
+
+    /**
+     * Writes a message as a JSON object.
+     *
+     * @param message the message
+     * @return the JSON object
+     */
+    public static String encode(ChatMessage message) {
+        StringBuilder json = new StringBuilder(message.content().length() + 32);
+        message(json, message);
+        return json.toString();
+    }
+
+    /**
+     * Reads a message from a JSON object with {@code role} and
+     * {@code content} fields. Other fields are ignored.
+     *
+     * @param json the JSON object
+     * @return the message
+     * @throws IllegalArgumentException if the JSON is malformed
+     */
+    public static ChatMessage decodeMessage(String json) {
+        return toMessage(parse(json));
+    }
+
+    /**
+     * Reads messages from a JSON array of message objects.
+     *
+     * @param json the JSON array
+     * @return the messages
+     * @throws IllegalArgumentException if the JSON is malformed
+     */
+    public static List<ChatMessage> decodeMessages(String json) {
+        List<ChatMessage> messages = new ArrayList<>();
+        if (parse(json) instanceof List<?> list) {
+            for (Object value : list) {
+                messages.add(toMessage(value));
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Reads the assistant text of a complete chat response: Ollama's
+     * {@code message.content}, or the {@code message.content} (or streamed
+     * {@code delta.content}) of OpenAI's first choice.
+     *
+     * @param json the response body or one streamed chunk
+     * @return the content, or an empty string if there is none
+     * @throws IllegalArgumentException if the JSON is malformed
+     */
+    public static String responseContent(String json) {
+        Object root = parse(json);
+        Object message = field(root, "message");
+        if (message == null && field(root, "choices") instanceof List<?> choices && !choices.isEmpty()) {
+            message = field(choices.get(0), "message");
+            if (message == null) {
+                message = field(choices.get(0), "delta");
+            }
+        }
+        return field(message, "content") instanceof String content ? content : "";
+    }
+
+    /**
+     * Parses a JSON value into {@link Map}, {@link List}, {@link String},
+     * {@link Double} or {@link Long}, {@link Boolean} or null.
+     *
+     * @param json the JSON text
+     * @return the value
+     * @throws IllegalArgumentException if the JSON is malformed
+     */
+    public static Object parse(String json) {
+        Reader reader = new Reader(json);
+        Object value = reader.value();
+        reader.skipWhitespace();
+        if (reader.position != json.length()) {
+            throw reader.error("Unexpected trailing characters");
+        }
+        return value;
+    }
+
+    /**
+     * Returns a JSON string literal for the value.
+     *
+     * @param value the value
+     * @return the quoted and escaped value
+     */
+    public static String quote(String value) {
+        StringBuilder json = new StringBuilder(value.length() + 2);
+        quote(json, value);
+        return json.toString();
+    }
+
+    private static void messages(StringBuilder json, List<ChatMessage> messages) {
+        json.append('[');
+        for (int i = 0; i < messages.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            message(json, messages.get(i));
+        }
+        json.append(']');
+    }
+
+    private static void message(StringBuilder json, ChatMessage message) {
+        json.append("{\"role\":");
+        quote(json, message.role());
+        json.append(",\"content\":");
+        quote(json, message.content());
+        json.append('}');
+    }
+
+    private static void quote(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                case '\b' -> json.append("\\b");
+                case '\f' -> json.append("\\f");
+                default -> {
+                    if (c < 0x20) {
+                        json.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+                    } else {
+                        json.append(c);
+                    }
+                }
+            }
+        }
+        json.append('"');
+    }
+
+    private static ChatMessage toMessage(Object value) {
+        Object role = field(value, "role");
+        Object content = field(value, "content");
+        return new ChatMessage(role instanceof String text ? text : "",
+                content instanceof String text ? text : "");
+    }
+
+    private static Object field(Object object, String name) {
+        return object instanceof Map<?, ?> map ? map.get(name) : null;
+    }
+
+    /**
+     * Recursive-descent JSON reader.
+     */
+    private static final class Reader {
+
+        private final String json;
+
+        private int position;
+
+        Reader(String json) {
+            this.json = json;
+        }
+
+        Object value() {
+            skipWhitespace();
+            if (position >= json.length()) {
+                throw error("Unexpected end of input");
+            }
+            char c = json.charAt(position);
+            return switch (c) {
+                case '{' -> object();
+                case '[' -> array();
+                case '"' -> string();
+                case 't' -> literal("true", Boolean.TRUE);
+                case 'f' -> literal("false", Boolean.FALSE);
+                case 'n' -> literal("null", null);
+                default -> number();
+            };
+        }
+
+        private Map<String, Object> object() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            position++;
+            skipWhitespace();
+            if (peek() == '}') {
+                position++;
+                return map;
+            }
+            while (true) {
+                skipWhitespace();
+                if (peek() != '"') {
+                    throw error("Expected a field name");
+                }
+                String name = string();
+                skipWhitespace();
+                expect(':');
+                map.put(name, value());
+                skipWhitespace();
+                if (peek() == ',') {
+                    position++;
+                } else {
+                    expect('}');
+                    return map;
+                }
+            }
+        }
+
+        private List<Object> array() {
+            List<Object> list = new ArrayList<>();
+            position++;
+            skipWhitespace();
+            if (peek() == ']') {
+                position++;
+                return list;
+            }
+            while (true) {
+                list.add(value());
+                skipWhitespace();
+                if (peek() == ',') {
+                    position++;
+                } else {
+                    expect(']');
+                    return list;
+                }
+            }
+        }
+
+        private String string() {
+            position++;
+            StringBuilder builder = null;
+            int start = position;
+            while (position < json.length()) {
+                char c = json.charAt(position);
+                if (c == '"') {
+                    String value = builder == null
+                            ? json.substring(start, position)
+                            : builder.append(json, start, position).toString();
+                    position++;
+                    return value;
+                }
+                if (c == '\\') {
+                    if (builder == null) {
+                        builder = new StringBuilder();
+                    }
+                    builder.append(json, start, position);
+                    builder.append(escape());
+                    start = position;
+                } else {
+                    position++;
+                }
+            }
+            throw error("Unterminated string");
+        }
+
+        private char escape() {
+            if (position + 1 >= json.length()) {
+                throw error("Unterminated escape");
+            }
+            char c = json.charAt(position + 1);
+            position += 2;
+            return switch (c) {
+                case '"', '\\', '/' -> c;
+                case 'b' -> '\b';
+                case 'f' -> '\f';
+                case 'n' -> '\n';
+                case 'r' -> '\r';
+                case 't' -> '\t';
+                case 'u' -> {
+                    if (position + 4 > json.length()) {
+                        throw error("Invalid unicode escape");
+                    }
+                    try {
+                        char decoded = (char) Integer.parseInt(json.substring(position, position + 4), 16);
+                        position += 4;
+                        yield decoded;
+                    } catch (NumberFormatException e) {
+                        throw error("Invalid unicode escape");
+                    }
+                }
+                default -> throw error("Invalid escape");
+            };
+        }
+
+        private Object number() {
+            int start = position;
+            boolean decimal = false;
+            while (position < json.length()) {
+                char c = json.charAt(position);
+                if (c == '.' || c == 'e' || c == 'E') {
+                    decimal = true;
+                } else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) {
+                    break;
+                }
+                position++;
+            }
+            String text = json.substring(start, position);
+            try {
+                if (!decimal) {
+                    try {
+                        return Long.parseLong(text);
+                    } catch (NumberFormatException e) {
+                        // too large for a long, fall back to a double
+                    }
+                }
+                return Double.parseDouble(text);
+            } catch (NumberFormatException e) {
+                position = start;
+                throw error("Unexpected character");
+            }
+        }
+
+        private Object literal(String literal, Object value) {
+            if (!json.startsWith(literal, position)) {
+                throw error("Unexpected character");
+            }
+            position += literal.length();
+            return value;
+        }
+
+        private char peek() {
+            if (position >= json.length()) {
+                throw error("Unexpected end of input");
+            }
+            return json.charAt(position);
+        }
+
+        private void expect(char c) {
+            if (peek() != c) {
+                throw error("Expected '" + c + "'");
+            }
+            position++;
+        }
+
+        void skipWhitespace() {
+            while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+                position++;
+            }
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + position);
+        }
+    }
+}
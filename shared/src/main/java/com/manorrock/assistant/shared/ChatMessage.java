@@ -0,0 +1,22 @@
+package com.manorrock.assistant.shared;
+
+/**
+ * A chat message as sent to and stored for the chat APIs.
+ *
+ * @param role the role, e.g. "system", "user" or "assistant"
+ * @param content the text content
+ */
+public record ChatMessage(String role, String content) {
+
+    public static ChatMessage user(String content) {
+        return new ChatMessage("user", content);
+    }
+
+    public static ChatMessage assistant(String content) {
+        return new ChatMessage("assistant", content);
+    }
+
+    public static ChatMessage system(String content) {
+        return new ChatMessage("system", content);
+    }
+}
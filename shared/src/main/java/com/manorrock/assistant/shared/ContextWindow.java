@@ -0,0 +1,228 @@
+package com.manorrock.assistant.shared;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * Conversation history bounded by a token budget instead of a message count.
+ *
+ * <p>
+ * Keeps a running token estimate per message. When a message is added the
+ * oldest turns are dropped until the estimated prompt fits the budget, so a
+ * few pasted files cannot blow past the model's context window while many
+ * short turns are all kept. A turn is a user message and the messages up to
+ * the next one, so the window never starts with an answer whose question was
+ * dropped. A leading system message, e.g. the summary of a
+ * {@link ConversationCompactor}, is never dropped. The newest message is
+ * always kept, even when it alone exceeds the budget.
+ * </p>
+ *
+ * <p>
+ * The prompt budget is three quarters of the context size (see
+ * {@link LlmConfiguration#contextTokens()}), leaving the rest for the answer.
+ * It is a single setting of the window, not one per model, so a frontend
+ * switching to a model with a smaller context lowers it with
+ * {@link #setContextTokens(int)}.
+ * </p>
+ *
+ * <p>
+ * The window is thread-safe so a {@link ConversationCompactor} can replace
+ * the oldest turns with a summary from a background thread.
+ * </p>
+ *
+ * @param <M> the message type
+ */
+public final class ContextWindow<M> implements Iterable<M> {
+
+    private static final int MESSAGE_OVERHEAD = 4;
+
+    private final ToIntFunction<M> estimator;
+
+    private final Function<M, String> role;
+
+    private final ArrayDeque<M> messages = new ArrayDeque<>();
+
+    private final ArrayDeque<Integer> estimates = new ArrayDeque<>();
+
+    private int budget;
+
+    private int tokens;
+
+    /**
+     * Constructor.
+     *
+     * @param contextTokens the model's context size in tokens
+     * @param estimator estimates the tokens of a message, see
+     * {@link #estimateTokens(String)}
+     * @param role returns the role of a message as named by the chat APIs,
+     * e.g. "system", "user" or "assistant"
+     */
+    public ContextWindow(int contextTokens, ToIntFunction<M> estimator, Function<M, String> role) {
+        this.budget = promptBudget(contextTokens);
+        this.estimator = estimator;
+        this.role = role;
+    }
+
+    /**
+     * Estimates the tokens of a message with the given content, using about
+     * four characters per token plus a small per-message overhead for the
+     * role framing.
+     *
+     * @param content the message content
+     * @return the estimated tokens
+     */
+    public static int estimateTokens(String content) {
+        return (content == null ? 0 : (content.length() + 3) / 4) + MESSAGE_OVERHEAD;
+    }
+
+    /**
+     * Adds a message and drops the oldest turns that no longer fit.
+     *
+     * @param message the message
+     */
+    public synchronized void add(M message) {
+        int estimate = estimator.applyAsInt(message);
+        messages.addLast(message);
+        estimates.addLast(estimate);
+        tokens += estimate;
+        trim();
+    }
+
+    /**
+     * Changes the context size, dropping the oldest turns that no longer fit.
+     *
+     * @param contextTokens the model's context size in tokens
+     */
+    public synchronized void setContextTokens(int contextTokens) {
+        budget = promptBudget(contextTokens);
+        trim();
+    }
+
+    /**
+     * Removes all messages.
+     */
+    public synchronized void clear() {
+        messages.clear();
+        estimates.clear();
+        tokens = 0;
+    }
+
+    /**
+     * Replaces the oldest messages with a single message, e.g. a summary of
+     * them. Nothing is replaced if the window no longer starts with exactly
+     * the given messages, e.g. because they were trimmed or cleared while
+     * the summary was being generated.
+     *
+     * @param oldest the oldest messages to replace
+     * @param replacement the message replacing them
+     * @return true if the messages were replaced
+     */
+    public synchronized boolean replaceOldest(List<M> oldest, M replacement) {
+        if (oldest.isEmpty() || oldest.size() > messages.size()) {
+            return false;
+        }
+        Iterator<M> current = messages.iterator();
+        for (M message : oldest) {
+            if (current.next() != message) {
+                return false;
+            }
+        }
+        for (int i = 0; i < oldest.size(); i++) {
+            messages.removeFirst();
+            tokens -= estimates.removeFirst();
+        }
+        int estimate = estimator.applyAsInt(replacement);
+        messages.addFirst(replacement);
+        estimates.addFirst(estimate);
+        tokens += estimate;
+        return true;
+    }
+
+    /**
+     * Returns the number of tokens the given message is estimated at.
+     *
+     * @param message the message
+     * @return the estimated tokens
+     */
+    public int estimate(M message) {
+        return estimator.applyAsInt(message);
+    }
+
+    /**
+     * Returns the prompt budget in tokens.
+     *
+     * @return the prompt budget
+     */
+    public synchronized int budget() {
+        return budget;
+    }
+
+    /**
+     * Returns a snapshot of the messages, oldest first.
+     *
+     * @return the messages
+     */
+    public synchronized List<M> messages() {
+        return new ArrayList<>(messages);
+    }
+
+    /**
+     * Returns the number of messages.
+     *
+     * @return the number of messages
+     */
+    public synchronized int size() {
+        return messages.size();
+    }
+
+    /**
+     * Returns the estimated tokens of all messages.
+     *
+     * @return the estimated tokens
+     */
+    public synchronized int tokens() {
+        return tokens;
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the messages, oldest first.
+     *
+     * @return the iterator
+     */
+    @Override
+    public Iterator<M> iterator() {
+        return Collections.unmodifiableList(messages()).iterator();
+    }
+
+    private void trim() {
+        if (tokens <= budget || messages.size() < 2) {
+            return;
+        }
+        M pinned = null;
+        int pinnedEstimate = 0;
+        if ("system".equals(role.apply(messages.peekFirst()))) {
+            pinned = messages.removeFirst();
+            pinnedEstimate = estimates.removeFirst();
+        }
+        while (tokens > budget && messages.size() > 1) {
+            // drop the oldest turn, up to the next user message
+            do {
+                messages.removeFirst();
+                tokens -= estimates.removeFirst();
+            } while (messages.size() > 1 && !"user".equals(role.apply(messages.peekFirst())));
+        }
+        if (pinned != null) {
+            messages.addFirst(pinned);
+            estimates.addFirst(pinnedEstimate);
+        }
+    }
+
+    private static int promptBudget(int contextTokens) {
+        return contextTokens - contextTokens / 4;
+    }
+}
@@ -0,0 +1,184 @@
+package com.manorrock.assistant.shared;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Replaces the oldest turns of a {@link ContextWindow} with a model-generated
+ * rolling summary.
+ *
+ * <p>
+ * Call {@link #compactAsync()} after each completed turn. Once the window
+ * uses more than half of its prompt budget, everything but the most recent
+ * {@link #KEEP_RECENT} messages is summarized in the background and swapped
+ * for a single summary message. The previous summary is the oldest message
+ * of the window, so it is folded into the next one and long-range context is
+ * kept while the prompt resent with every turn stays bounded. If a new turn
+ * trims the window while a summary is being generated, the summary is
+ * discarded and the next turn tries again.
+ * </p>
+ *
+ * @param <M> the message type
+ */
+public final class ConversationCompactor<M> {
+
+    /**
+     * The number of most recent messages that are never summarized.
+     */
+    public static final int KEEP_RECENT = 4;
+
+    /**
+     * The instruction preceding the transcript in a summary request.
+     */
+    public static final String SUMMARY_PROMPT = "Summarize the following conversation in a few sentences. "
+            + "Keep facts, decisions, names, code identifiers and open questions the assistant needs to "
+            + "continue the conversation. Reply with the summary only.\n\n";
+
+    /**
+     * The prefix of the message holding the summary.
+     */
+    public static final String SUMMARY_PREFIX = "Summary of the earlier conversation: ";
+
+    /**
+     * Generates a summary of a conversation transcript.
+     */
+    public interface Summarizer {
+
+        /**
+         * Summarizes the transcript.
+         *
+         * @param transcript the transcript, one "role: content" block per
+         * message
+         * @return the future summary
+         */
+        CompletableFuture<String> summarize(String transcript);
+    }
+
+    /**
+     * Compaction totals.
+     *
+     * @param compactions the number of compactions
+     * @param messagesCompacted the number of messages replaced by summaries
+     * @param tokensBefore the estimated tokens of the replaced messages
+     * @param tokensAfter the estimated tokens of the summaries
+     */
+    public record Stats(long compactions, long messagesCompacted, long tokensBefore, long tokensAfter) {
+
+        /**
+         * Returns the estimated tokens no longer sent with every turn.
+         *
+         * @return the tokens saved
+         */
+        public long tokensSaved() {
+            return tokensBefore - tokensAfter;
+        }
+
+        @Override
+        public String toString() {
+            return compactions + " compactions, " + messagesCompacted + " messages summarized, "
+                    + tokensSaved() + " tokens saved (" + tokensBefore + " -> " + tokensAfter + ")";
+        }
+    }
+
+    private final ContextWindow<M> window;
+
+    private final Function<M, String> formatter;
+
+    private final Function<String, M> summaryFactory;
+
+    private final Summarizer summarizer;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private final AtomicLong compactions = new AtomicLong();
+
+    private final AtomicLong messagesCompacted = new AtomicLong();
+
+    private final AtomicLong tokensBefore = new AtomicLong();
+
+    private final AtomicLong tokensAfter = new AtomicLong();
+
+    private volatile Consumer<Stats> listener = stats -> { };
+
+    /**
+     * Constructor.
+     *
+     * @param window the window to compact
+     * @param formatter renders a message as "role: content"
+     * @param summaryFactory creates the message holding a summary
+     * @param summarizer generates the summaries
+     */
+    public ConversationCompactor(ContextWindow<M> window, Function<M, String> formatter,
+            Function<String, M> summaryFactory, Summarizer summarizer) {
+        this.window = window;
+        this.formatter = formatter;
+        this.summaryFactory = summaryFactory;
+        this.summarizer = summarizer;
+    }
+
+    /**
+     * Sets the listener notified with the totals after each compaction. The
+     * listener is called on the summarizer's thread.
+     *
+     * @param listener the listener
+     */
+    public void setListener(Consumer<Stats> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts a compaction in the background if the window is over half of
+     * its budget and no compaction is running.
+     *
+     * @return the future completing with true if the window was compacted
+     */
+    public CompletableFuture<Boolean> compactAsync() {
+        if (window.tokens() <= window.budget() / 2 || !running.compareAndSet(false, true)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        List<M> messages = window.messages();
+        if (messages.size() <= KEEP_RECENT + 1) {
+            running.set(false);
+            return CompletableFuture.completedFuture(false);
+        }
+        List<M> oldest = messages.subList(0, messages.size() - KEEP_RECENT);
+        StringBuilder transcript = new StringBuilder();
+        int before = 0;
+        for (M message : oldest) {
+            transcript.append(formatter.apply(message)).append("\n\n");
+            before += window.estimate(message);
+        }
+        int tokens = before;
+        return summarizer.summarize(transcript.toString())
+                .thenApply(summary -> {
+                    if (summary == null || summary.isBlank()) {
+                        return false;
+                    }
+                    M replacement = summaryFactory.apply(summary.trim());
+                    int after = window.estimate(replacement);
+                    if (after >= tokens || !window.replaceOldest(oldest, replacement)) {
+                        return false;
+                    }
+                    compactions.incrementAndGet();
+                    messagesCompacted.addAndGet(oldest.size());
+                    tokensBefore.addAndGet(tokens);
+                    tokensAfter.addAndGet(after);
+                    listener.accept(stats());
+                    return true;
+                })
+                .whenComplete((compacted, throwable) -> running.set(false));
+    }
+
+    /**
+     * Returns the compaction totals.
+     *
+     * @return the totals
+     */
+    public Stats stats() {
+        return new Stats(compactions.get(), messagesCompacted.get(), tokensBefore.get(), tokensAfter.get());
+    }
+}
@@ -0,0 +1,373 @@
+package com.manorrock.assistant.shared;
+
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.UnresolvedAddressException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a circuit breaker per Ollama host, so requests to a host that is down
+ * fail at once instead of waiting for a connect failure.
+ *
+ * <p>
+ * A breaker opens when a request or a probe cannot connect to its host.
+ * While it is open, {@link #available(String)} leaves the host out, and
+ * {@link HedgedChat} fails without sending anything when no host is left.
+ * After a retry delay the breaker becomes half-open and a single probe of
+ * {@code /api/tags} is sent. That request is cheap, since it only lists the
+ * installed models. A probe that reaches the host closes the breaker,
+ * whatever it answers or even when the answer is late, so a busy host or a
+ * proxy that only exposes {@code /api/chat} is not taken for down. A probe
+ * that cannot connect opens it again, with the retry delay doubling from 1
+ * second up to 30 seconds.
+ * </p>
+ *
+ * <p>
+ * The hosts a frontend {@link #watch(String) watches} are probed at once and
+ * then every 15 seconds while their breaker is closed, so the frontend can
+ * show whether Ollama is up before the user sends a message. Listeners hear
+ * about every change of state, on a background thread.
+ * </p>
+ */
+public final class EndpointHealth {
+
+    /**
+     * The state of the circuit breaker of a host.
+     */
+    public enum State {
+
+        /**
+         * Requests are sent, the host answered its last request or probe.
+         */
+        CLOSED,
+
+        /**
+         * Requests fail at once until the next probe.
+         */
+        OPEN,
+
+        /**
+         * A probe is in flight, requests still fail at once until it succeeds.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Hears about changes of the state of a host.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the breaker of a host changes state.
+         *
+         * @param endpoint the chat endpoint
+         * @param state the new state
+         */
+        void stateChanged(String endpoint, State state);
+    }
+
+    private static final Duration PROBE_TIMEOUT = Duration.ofSeconds(2);
+
+    private static final long MIN_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final long MAX_RETRY_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private static final long WATCH_NANOS = TimeUnit.SECONDS.toNanos(15);
+
+    private static final EndpointHealth DEFAULT = new EndpointHealth();
+
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "endpoint-health");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Returns the process-wide health of the endpoints.
+     *
+     * @return the default instance
+     */
+    public static EndpointHealth getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Adds a listener for changes of state.
+     *
+     * @param listener the listener
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener.
+     *
+     * @param listener the listener
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Probes the given endpoints now and keeps probing them in the
+     * background. Endpoints watched before and no longer listed are no
+     * longer probed while they are up.
+     *
+     * @param endpoints the comma separated chat endpoints
+     */
+    public void watch(String endpoints) {
+        List<String> watched = EndpointPool.split(endpoints);
+        for (Host host : hosts.values()) {
+            host.watched = watched.contains(host.endpoint);
+        }
+        for (String endpoint : watched) {
+            Host host = host(endpoint);
+            host.watched = true;
+            schedule(host, 0);
+        }
+    }
+
+    /**
+     * Returns the state of the breaker of an endpoint.
+     *
+     * @param endpoint the chat endpoint
+     * @return the state, closed for an endpoint not seen yet
+     */
+    public State state(String endpoint) {
+        return host(endpoint).state;
+    }
+
+    /**
+     * Returns the endpoints requests may be sent to.
+     *
+     * @param endpoints the comma separated chat endpoints
+     * @return the comma separated endpoints whose breaker is closed, empty if
+     * there are none
+     */
+    public String available(String endpoints) {
+        StringBuilder available = new StringBuilder();
+        for (String endpoint : EndpointPool.split(endpoints)) {
+            if (host(endpoint).state == State.CLOSED) {
+                if (available.length() > 0) {
+                    available.append(',');
+                }
+                available.append(endpoint);
+            }
+        }
+        return available.toString();
+    }
+
+    /**
+     * Describes the state of the endpoints for the status line of a
+     * frontend, e.g. "Ollama is up" or "Ollama is down, retrying in 4 s".
+     *
+     * @param endpoints the comma separated chat endpoints
+     * @return the status
+     */
+    public String status(String endpoints) {
+        List<String> all = EndpointPool.split(endpoints);
+        int up = 0;
+        boolean checked = true;
+        boolean probing = false;
+        long retry = Long.MAX_VALUE;
+        long now = System.nanoTime();
+        for (String endpoint : all) {
+            Host host = host(endpoint);
+            checked &= host.checked;
+            if (host.state == State.CLOSED) {
+                up++;
+            } else if (host.state == State.HALF_OPEN) {
+                probing = true;
+            } else {
+                retry = Math.min(retry, Math.max(0, host.retryAt - now));
+            }
+        }
+        if (up == all.size()) {
+            return checked ? "Ollama is up" : "Checking Ollama";
+        }
+        if (up == 0) {
+            return probing ? "Checking Ollama"
+                    : "Ollama is down, retrying in " + TimeUnit.NANOSECONDS.toSeconds(retry + 999_999_999) + " s";
+        }
+        return "Ollama is up on " + up + " of " + all.size() + " hosts";
+    }
+
+    /**
+     * Records a request that reached its host.
+     *
+     * @param endpoint the chat endpoint
+     */
+    public void succeeded(String endpoint) {
+        close(host(endpoint));
+    }
+
+    /**
+     * Records a failed request. Only a failure to connect opens the breaker,
+     * an error of the model does not mean the host is down.
+     *
+     * @param endpoint the chat endpoint
+     * @param error the error
+     */
+    public void failed(String endpoint, Throwable error) {
+        if (isConnectFailure(error)) {
+            open(host(endpoint));
+        }
+    }
+
+    /**
+     * Returns whether an error means the host could not be reached.
+     *
+     * @param error the error, possibly wrapped
+     * @return true for a refused or timed out connection or an unknown host
+     */
+    public static boolean isConnectFailure(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof HttpConnectTimeoutException
+                    || cause instanceof UnresolvedAddressException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Host host(String endpoint) {
+        return hosts.computeIfAbsent(endpoint, Host::new);
+    }
+
+    private void open(Host host) {
+        long delay;
+        synchronized (host) {
+            host.checked = true;
+            if (host.state == State.OPEN) {
+                return;
+            }
+            if (host.state == State.CLOSED) {
+                host.retryNanos = MIN_RETRY_NANOS;
+            } else {
+                host.retryNanos = Math.min(host.retryNanos * 2, MAX_RETRY_NANOS);
+            }
+            delay = host.retryNanos;
+            host.retryAt = System.nanoTime() + delay;
+            host.state = State.OPEN;
+        }
+        fire(host.endpoint, State.OPEN);
+        schedule(host, delay);
+    }
+
+    private void close(Host host) {
+        boolean changed;
+        synchronized (host) {
+            host.checked = true;
+            changed = host.state != State.CLOSED;
+            host.state = State.CLOSED;
+        }
+        if (changed) {
+            fire(host.endpoint, State.CLOSED);
+            if (host.watched) {
+                schedule(host, WATCH_NANOS);
+            }
+        }
+    }
+
+    private void schedule(Host host, long delayNanos) {
+        synchronized (host) {
+            if (host.probe != null) {
+                host.probe.cancel(false);
+            }
+            host.probe = scheduler.schedule(() -> probe(host), delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void probe(Host host) {
+        boolean halfOpen;
+        synchronized (host) {
+            host.probe = null;
+            if (host.state == State.CLOSED && !host.watched) {
+                return;
+            }
+            halfOpen = host.state == State.OPEN;
+            if (halfOpen) {
+                host.state = State.HALF_OPEN;
+            }
+        }
+        if (halfOpen) {
+            fire(host.endpoint, State.HALF_OPEN);
+        }
+        HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder(tagsUri(host.endpoint)).timeout(PROBE_TIMEOUT).GET().build();
+        } catch (IllegalArgumentException e) {
+            open(host);
+            return;
+        }
+        LlmTransport.getDefault().sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, error) -> {
+                    // like failed(), only an unreachable host counts as down
+                    if (isConnectFailure(error)) {
+                        open(host);
+                        return;
+                    }
+                    boolean wasClosed;
+                    synchronized (host) {
+                        wasClosed = host.state == State.CLOSED;
+                    }
+                    close(host);
+                    if (wasClosed && host.watched) {
+                        schedule(host, WATCH_NANOS);
+                    }
+                });
+    }
+
+    private static URI tagsUri(String endpoint) {
+        URI uri = URI.create(endpoint);
+        String path = uri.getPath() == null ? "" : uri.getPath();
+        int api = path.lastIndexOf("/api/");
+        return uri.resolve((api >= 0 ? path.substring(0, api) : "") + "/api/tags");
+    }
+
+    private void fire(String endpoint, State state) {
+        for (Listener listener : listeners) {
+            listener.stateChanged(endpoint, state);
+        }
+    }
+
+    /**
+     * The breaker of one host.
+     */
+    private static final class Host {
+
+        private final String endpoint;
+
+        private volatile State state = State.CLOSED;
+
+        private volatile boolean checked;
+
+        private volatile boolean watched;
+
+        private volatile long retryAt;
+
+        private long retryNanos = MIN_RETRY_NANOS;
+
+        private ScheduledFuture<?> probe;
+
+        Host(String endpoint) {
+            this.endpoint = endpoint;
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package com.manorrock.assistant.shared;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads chat requests over several Ollama hosts.
+ *
+ * <p>
+ * An endpoint setting may list several chat endpoints separated by commas,
+ * e.g. {@code http://gpu1:11434/api/chat,http://gpu2:11434/api/chat}. Every
+ * request leases one of them: the host with the lowest product of requests
+ * in flight and its recent time to first token, so a busy or slow host gets
+ * fewer requests while a host not used yet is tried right away. A single
+ * endpoint is simply always returned.
+ * </p>
+ *
+ * <p>
+ * Health is taken passively from the requests themselves. A host failing
+ * {@value #FAILURES_TO_EJECT} requests in a row is left out for 5 seconds,
+ * doubling up to a minute while it keeps failing, and is trusted again after
+ * its first success. When every host is out the pool still hands out the
+ * least bad one, so a recovering cluster is not waited on.
+ * </p>
+ *
+ * <p>
+ * A conversation sticks to the host that answered it last, since that host
+ * still holds the prompt of the conversation in its KV cache and only has
+ * to process the new turn. It moves only when that host is out or no longer
+ * listed.
+ * </p>
+ */
+public final class EndpointPool {
+
+    /**
+     * Failed requests in a row after which a host is left out.
+     */
+    public static final int FAILURES_TO_EJECT = 3;
+
+    private static final long EJECT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static final long MAX_EJECT_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final int MAX_CONVERSATIONS = 10_000;
+
+    private static final EndpointPool DEFAULT = new EndpointPool();
+
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+
+    private final Map<String, String> conversations = Collections.synchronizedMap(
+            new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CONVERSATIONS;
+        }
+    });
+
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    /**
+     * Returns the process-wide pool.
+     *
+     * @return the default pool
+     */
+    public static EndpointPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Splits a comma separated endpoint setting.
+     *
+     * @param endpoints the endpoints
+     * @return the endpoints, in order
+     */
+    public static List<String> split(String endpoints) {
+        List<String> result = new ArrayList<>();
+        for (String endpoint : endpoints.split(",")) {
+            if (!endpoint.isBlank()) {
+                result.add(endpoint.strip());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Turns the argument of {@code /llmEndpoint}, one or more comma separated
+     * {@code hostname:port} pairs, into Ollama chat endpoints.
+     *
+     * @param hosts the hosts, e.g. {@code gpu1:11434,gpu2:11434}
+     * @return the comma separated chat endpoints
+     */
+    public static String chatEndpoints(String hosts) {
+        StringBuilder endpoints = new StringBuilder();
+        for (String host : split(hosts)) {
+            if (endpoints.length() > 0) {
+                endpoints.append(',');
+            }
+            boolean url = host.startsWith("http://") || host.startsWith("https://");
+            endpoints.append(url ? host : "http://" + host).append("/api/chat");
+        }
+        return endpoints.toString();
+    }
+
+    /**
+     * Picks an endpoint for a request and counts it as in flight until the
+     * lease is released.
+     *
+     * @param endpoints the comma separated endpoints to pick from
+     * @param conversation the conversation to stick to a host, or null
+     * @return the lease
+     */
+    public Lease acquire(String endpoints, String conversation) {
+        List<String> candidates = split(endpoints);
+        if (candidates.isEmpty()) {
+            throw new IllegalArgumentException("No endpoint configured");
+        }
+        long now = System.nanoTime();
+        Host chosen = null;
+        if (conversation != null) {
+            String sticky = conversations.get(conversation);
+            if (sticky != null && candidates.contains(sticky) && host(sticky).isHealthy(now)) {
+                chosen = host(sticky);
+            }
+        }
+        if (chosen == null) {
+            chosen = leastLoaded(candidates, now);
+        }
+        if (conversation != null) {
+            conversations.put(conversation, chosen.endpoint);
+        }
+        chosen.outstanding.incrementAndGet();
+        return new Lease(chosen);
+    }
+
+    /**
+     * Renders the state of the given endpoints for the {@code /stats}
+     * commands of the frontends.
+     *
+     * @param endpoints the comma separated endpoints
+     * @return the report, one line per endpoint
+     */
+    public String report(String endpoints) {
+        long now = System.nanoTime();
+        StringBuilder report = new StringBuilder();
+        for (String endpoint : split(endpoints)) {
+            Host host = host(endpoint);
+            if (report.length() > 0) {
+                report.append('\n');
+            }
+            report.append("Endpoint ").append(endpoint).append(": ")
+                    .append(host.outstanding.get()).append(" in flight, ")
+                    .append(host.latency == 0 ? "no first token yet"
+                            : "first token after " + TimeUnit.NANOSECONDS.toMillis(host.latency) + " ms")
+                    .append(", ")
+                    .append(host.failures).append(" failed in a row, ")
+                    .append(host.isHealthy(now) ? "healthy" : "left out for "
+                            + TimeUnit.NANOSECONDS.toSeconds(host.ejectedUntil - now + 999_999_999) + " s");
+        }
+        return report.toString();
+    }
+
+    private Host leastLoaded(List<String> candidates, long now) {
+        // hosts without a latency yet score as the fastest known host
+        long fastest = Long.MAX_VALUE;
+        for (String endpoint : candidates) {
+            long latency = host(endpoint).latency;
+            if (latency != 0) {
+                fastest = Math.min(fastest, latency);
+            }
+        }
+        fastest = fastest == Long.MAX_VALUE ? 1 : fastest;
+        Host best = null;
+        double bestScore = Double.MAX_VALUE;
+        boolean bestHealthy = false;
+        // start at a rotating offset so ties are spread over the hosts
+        int offset = Math.floorMod(rotation.getAndIncrement(), candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            Host host = host(candidates.get((offset + i) % candidates.size()));
+            boolean healthy = host.isHealthy(now);
+            double score = (host.outstanding.get() + 1.0) * (host.latency != 0 ? host.latency : fastest);
+            if (!healthy) {
+                // the host coming back soonest is the least bad one
+                score = host.ejectedUntil - now;
+            }
+            if (best == null || healthy && !bestHealthy || healthy == bestHealthy && score < bestScore) {
+                best = host;
+                bestScore = score;
+                bestHealthy = healthy;
+            }
+        }
+        return best;
+    }
+
+    private Host host(String endpoint) {
+        return hosts.computeIfAbsent(endpoint, Host::new);
+    }
+
+    /**
+     * The load and health of one endpoint.
+     */
+    private static final class Host {
+
+        private final String endpoint;
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private volatile long latency;
+
+        private volatile int failures;
+
+        private volatile long ejectedUntil;
+
+        private long ejectNanos = EJECT_NANOS;
+
+        Host(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        boolean isHealthy(long now) {
+            return failures < FAILURES_TO_EJECT || now - ejectedUntil >= 0;
+        }
+
+        synchronized void firstToken(long nanos) {
+            // exponentially weighted, so the score follows a host that slows down
+            latency = latency == 0 ? nanos : (long) (latency * 0.7 + nanos * 0.3);
+        }
+
+        synchronized void succeeded() {
+            failures = 0;
+            ejectNanos = EJECT_NANOS;
+        }
+
+        synchronized void failed() {
+            failures++;
+            if (failures >= FAILURES_TO_EJECT) {
+                ejectedUntil = System.nanoTime() + ejectNanos;
+                ejectNanos = Math.min(ejectNanos * 2, MAX_EJECT_NANOS);
+            }
+        }
+    }
+
+    /**
+     * One request on an endpoint. Releasing it more than once has no effect,
+     * so the frontends can report from whichever callback sees the outcome
+     * first.
+     */
+    public final class Lease {
+
+        private final Host host;
+
+        private final long start = System.nanoTime();
+
+        private final AtomicBoolean firstToken = new AtomicBoolean();
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Lease(Host host) {
+            this.host = host;
+        }
+
+        /**
+         * Returns the endpoint to send the request to.
+         *
+         * @return the endpoint URL
+         */
+        public String endpoint() {
+            return host.endpoint;
+        }
+
+        /**
+         * Records the time to the first token of the answer.
+         */
+        public void firstToken() {
+            if (firstToken.compareAndSet(false, true)) {
+                host.firstToken(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Ends the request.
+         *
+         * @param error the error, null if the request succeeded
+         */
+        public void release(Throwable error) {
+            if (released.compareAndSet(false, true)) {
+                host.outstanding.decrementAndGet();
+                if (error == null) {
+                    host.succeeded();
+                } else {
+                    host.failed();
+                }
+            }
+        }
+
+        /**
+         * Ends a request that was cancelled, e.g. because a hedged request
+         * answered first, without counting it for or against the host.
+         */
+        public void cancel() {
+            if (released.compareAndSet(false, true)) {
+                host.outstanding.decrementAndGet();
+            }
+        }
+
+        /**
+         * Moves a conversation to this host, e.g. after a backup request on
+         * it answered first.
+         *
+         * @param conversation the conversation
+         */
+        public void stick(String conversation) {
+            conversations.put(conversation, host.endpoint);
+        }
+
+        /**
+         * Ends the request with the outcome of an asynchronous send, for use
+         * with {@link java.util.concurrent.CompletableFuture#whenComplete}.
+         *
+         * @param response the response, null on failure
+         * @param error the error, null on success
+         */
+        public void record(HttpResponse<?> response, Throwable error) {
+            if (error != null || response == null) {
+                release(error != null ? error : new IOException("Request failed"));
+            } else if (response.statusCode() != 200) {
+                release(new IOException("HTTP status " + response.statusCode()));
+            } else {
+                release(null);
+            }
+        }
+
+        /**
+         * Wraps a stream listener so the first token is timed and a session
+         * id handed out by the server keeps the conversation on this host.
+         *
+         * @param listener the listener
+         * @return the wrapping listener
+         */
+        public OllamaStreamDecoder.Listener listener(OllamaStreamDecoder.Listener listener) {
+            return new OllamaStreamDecoder.Listener() {
+                @Override
+                public void onContent(String content) {
+                    firstToken();
+                    listener.onContent(content);
+                }
+
+                @Override
+                public void onSessionId(String sessionId) {
+                    conversations.put(sessionId, host.endpoint);
+                    listener.onSessionId(sessionId);
+                }
+
+                @Override
+                public void onDone() {
+                    listener.onDone();
+                }
+            };
+        }
+    }
+}
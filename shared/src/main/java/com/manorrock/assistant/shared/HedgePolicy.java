@@ -0,0 +1,111 @@
+package com.manorrock.assistant.shared;
+
+import java.time.Duration;
+
+/**
+ * When a chat request is hedged with a backup request.
+ *
+ * <p>
+ * The backup is sent once the primary request has not produced a first
+ * token within the given percentile of the recent times to first token of
+ * the model (see {@link LlmMetrics.Request#firstTokens()}, the last 100 to
+ * 200 requests), so only the slow tail is hedged and a backend that is merely
+ * slow for everyone does not double its load. The delay is kept between
+ * {@code minDelay} and {@code maxDelay}; until {@code minSamples} requests
+ * were timed it is {@code maxDelay}. A percentile of 0 disables hedging, a
+ * failed primary still fails over to the backup.
+ * </p>
+ *
+ * @param percentile the percentile of the time to first token, e.g. 95
+ * @param minDelay the shortest delay before the backup is sent
+ * @param maxDelay the longest delay before the backup is sent
+ * @param minSamples the timed requests needed before the percentile is used
+ */
+public record HedgePolicy(double percentile, Duration minDelay, Duration maxDelay, int minSamples) {
+
+    /**
+     * Returns the policy hedging at the p95 time to first token, between
+     * 250 milliseconds and 10 seconds, once 20 requests were timed.
+     *
+     * @return the default policy
+     */
+    public static HedgePolicy defaultPolicy() {
+        return new HedgePolicy(95, Duration.ofMillis(250), Duration.ofSeconds(10), 20);
+    }
+
+    /**
+     * Returns the policy that never hedges, a failed primary still fails
+     * over to the backup.
+     *
+     * @return the disabled policy
+     */
+    public static HedgePolicy disabled() {
+        return defaultPolicy().withPercentile(0);
+    }
+
+    /**
+     * Returns a copy with another percentile.
+     *
+     * @param percentile the percentile of the time to first token, 0 to
+     * disable hedging
+     * @return the policy
+     */
+    public HedgePolicy withPercentile(double percentile) {
+        return new HedgePolicy(percentile, minDelay, maxDelay, minSamples);
+    }
+
+    /**
+     * Returns a copy with another shortest delay.
+     *
+     * @param minDelay the shortest delay before the backup is sent
+     * @return the policy
+     */
+    public HedgePolicy withMinDelay(Duration minDelay) {
+        return new HedgePolicy(percentile, minDelay, maxDelay, minSamples);
+    }
+
+    /**
+     * Returns a copy with another longest delay.
+     *
+     * @param maxDelay the longest delay before the backup is sent
+     * @return the policy
+     */
+    public HedgePolicy withMaxDelay(Duration maxDelay) {
+        return new HedgePolicy(percentile, minDelay, maxDelay, minSamples);
+    }
+
+    /**
+     * Returns a copy with another number of timed requests needed before
+     * the percentile is used.
+     *
+     * @param minSamples the timed requests needed
+     * @return the policy
+     */
+    public HedgePolicy withMinSamples(int minSamples) {
+        return new HedgePolicy(percentile, minDelay, maxDelay, minSamples);
+    }
+
+    /**
+     * Returns whether a slow primary request is hedged.
+     *
+     * @return true if hedging is enabled
+     */
+    public boolean isEnabled() {
+        return percentile > 0;
+    }
+
+    /**
+     * Returns how long to wait for the first token before sending the
+     * backup.
+     *
+     * @param firstTokens the recent times to first token in microseconds
+     * @return the delay
+     */
+    public Duration delay(LatencyHistogram firstTokens) {
+        if (firstTokens.count() < minSamples) {
+            return maxDelay;
+        }
+        Duration delay = Duration.ofNanos(firstTokens.percentile(percentile) * 1000);
+        return delay.compareTo(minDelay) < 0 ? minDelay : delay.compareTo(maxDelay) > 0 ? maxDelay : delay;
+    }
+}
@@ -0,0 +1,218 @@
+package com.manorrock.assistant.shared;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sends an Ollama chat request through the {@link EndpointPool}, hedged with
+ * a backup request to another host of the pool.
+ *
+ * <p>
+ * The primary request goes to the host the pool picks for the conversation.
+ * When it has not streamed its first token within the {@link HedgePolicy}
+ * delay, or fails, the same request is sent to the least loaded of the other
+ * hosts and the first host to stream wins (see {@link HedgedRequest}). The
+ * losing request is cancelled by cancelling its body subscription, which
+ * closes its connection so the host stops generating. A backup that wins
+ * takes the conversation over, since its host now holds the KV cache. With
+ * a single endpoint there is no backup and the request is sent as is.
+ * </p>
+ *
+ * <p>
+ * A response other than 200 counts as a failed attempt, so the future only
+ * completes with a 200 response whose body is the streamed answer.
+ * Cancelling the future, e.g. for the Stop action of a frontend, cancels the
+ * body subscription of every attempt, so the hosts stop generating too.
+ * </p>
+ *
+ * <p>
+ * Hosts whose circuit breaker is open (see {@link EndpointHealth}) are left
+ * out. When that leaves none, the future fails at once with a
+ * {@link ConnectException} without sending anything.
+ * </p>
+ *
+ * <p>
+ * Every attempt uses the connect, first token and idle timeouts of the
+ * {@link LlmConfiguration}. An attempt that times out before its first token
+ * fails over to the backup like any other failure; a winner that stalls
+ * later fails the request.
+ * </p>
+ */
+public final class HedgedChat {
+
+    private HedgedChat() {
+    }
+
+    /**
+     * Sends a streaming chat request.
+     *
+     * @param endpoints the comma separated chat endpoints
+     * @param session the conversation, or null
+     * @param body the JSON request body
+     * @param config the timeouts of the request
+     * @param policy when to send the backup request
+     * @param metric the timing of the request
+     * @param listener receives the streamed answer of the winning request
+     * @return the response of the winning request
+     */
+    public static CompletableFuture<HttpResponse<String>> send(String endpoints, String session, String body,
+            LlmConfiguration config, HedgePolicy policy, LlmMetrics.Request metric,
+            OllamaStreamDecoder.Listener listener) {
+        EndpointHealth health = EndpointHealth.getDefault();
+        String available = health.available(endpoints);
+        if (available.isEmpty()) {
+            return CompletableFuture.failedFuture(new ConnectException("Request not sent: " + health.status(endpoints)));
+        }
+        EndpointPool pool = EndpointPool.getDefault();
+        EndpointPool.Lease primary = pool.acquire(available, session);
+        List<String> others = EndpointPool.split(available);
+        others.remove(primary.endpoint());
+        HedgedRequest.Starter<HttpResponse<String>> backup = others.isEmpty() ? null
+                : attempt -> start(pool.acquire(String.join(",", others), null), session, body, config, metric,
+                        listener, attempt);
+        Duration delay = policy.isEnabled() ? policy.delay(metric.firstTokens()) : null;
+        return HedgedRequest.send(attempt -> start(primary, session, body, config, metric, listener, attempt),
+                backup, delay);
+    }
+
+    private static Runnable start(EndpointPool.Lease lease, String session, String body, LlmConfiguration config,
+            LlmMetrics.Request metric, OllamaStreamDecoder.Listener listener,
+            HedgedRequest.Attempt<HttpResponse<String>> attempt) {
+        LlmTransport transport = LlmTransport.getDefault();
+        HttpRequest request;
+        try {
+            request = transport.jsonPost(lease.endpoint(), body, config.firstTokenTimeout());
+        } catch (IllegalArgumentException e) {
+            lease.release(e);
+            throw e;
+        }
+        HttpResponse.BodyHandler<String> handler = metric.handler(lease.listener(listener),
+                config.firstTokenTimeout(), config.idleTimeout());
+        AtomicReference<GatedSubscriber> subscriber = new AtomicReference<>();
+        CompletableFuture<HttpResponse<String>> future = transport.sendAsync(request, responseInfo -> {
+            if (responseInfo.statusCode() != 200) {
+                return HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8);
+            }
+            GatedSubscriber gated = new GatedSubscriber(handler.apply(responseInfo), attempt, lease, session);
+            subscriber.set(gated);
+            return gated;
+        }, config.connectTimeout());
+        future.whenComplete((response, error) -> {
+            if (attempt.isCancelled()) {
+                lease.cancel();
+            } else if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                EndpointHealth.getDefault().failed(lease.endpoint(), cause);
+                lease.release(cause);
+                attempt.fail(cause);
+            } else if (response.statusCode() != 200) {
+                EndpointHealth.getDefault().succeeded(lease.endpoint());
+                lease.record(response, null);
+                attempt.fail(new IOException("HTTP status " + response.statusCode() + " from " + lease.endpoint()));
+            } else {
+                EndpointHealth.getDefault().succeeded(lease.endpoint());
+                lease.release(null);
+                attempt.complete(response);
+            }
+        });
+        return () -> {
+            future.cancel(true);
+            GatedSubscriber gated = subscriber.get();
+            if (gated != null) {
+                gated.cancel();
+            }
+        };
+    }
+
+    /**
+     * Hands the body to the decoder only while its attempt holds the
+     * answer.
+     */
+    private static final class GatedSubscriber implements HttpResponse.BodySubscriber<String> {
+
+        private final HttpResponse.BodySubscriber<String> decoder;
+
+        private final HedgedRequest.Attempt<HttpResponse<String>> attempt;
+
+        private final EndpointPool.Lease lease;
+
+        private final String session;
+
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+
+        private volatile Flow.Subscription subscription;
+
+        private boolean claimed;
+
+        GatedSubscriber(HttpResponse.BodySubscriber<String> decoder,
+                HedgedRequest.Attempt<HttpResponse<String>> attempt, EndpointPool.Lease lease, String session) {
+            this.decoder = decoder;
+            this.attempt = attempt;
+            this.lease = lease;
+            this.session = session;
+        }
+
+        @Override
+        public CompletionStage<String> getBody() {
+            return decoder.getBody();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (cancelled.get()) {
+                subscription.cancel();
+            }
+            decoder.onSubscribe(subscription);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            if (!attempt.claim()) {
+                cancel();
+                return;
+            }
+            if (!claimed) {
+                claimed = true;
+                if (attempt.isBackup() && session != null) {
+                    lease.stick(session);
+                }
+            }
+            decoder.onNext(items);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            decoder.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            decoder.onComplete();
+        }
+
+        void cancel() {
+            if (cancelled.compareAndSet(false, true)) {
+                Flow.Subscription current = subscription;
+                if (current != null) {
+                    current.cancel();
+                }
+                decoder.onError(new CancellationException("Request cancelled"));
+            }
+        }
+    }
+}
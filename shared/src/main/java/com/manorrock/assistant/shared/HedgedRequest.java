@@ -0,0 +1,250 @@
+package com.manorrock.assistant.shared;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Races a streaming request against a delayed backup.
+ *
+ * <p>
+ * The primary attempt starts at once. If it has not produced its first
+ * token when the hedge delay expires, or fails before that, the backup
+ * attempt starts, e.g. on another host of the {@link EndpointPool} or at
+ * another vendor. The first attempt to produce a token wins: the other one
+ * is cancelled and only the winner streams to the frontend, so the answer
+ * is never mixed from two attempts. The request fails only when every
+ * attempt failed. Cancelling the returned future cancels all attempts.
+ * </p>
+ *
+ * <p>
+ * How an attempt is sent is up to its {@link Starter}, which reports back
+ * through the {@link Attempt}: {@link Attempt#claim()} before forwarding a
+ * token, then {@link Attempt#complete(Object)} or
+ * {@link Attempt#fail(Throwable)}.
+ * </p>
+ *
+ * @param <T> the result type, e.g. the HTTP response
+ */
+public final class HedgedRequest<T> {
+
+    /**
+     * Sends one attempt.
+     *
+     * @param <T> the result type
+     */
+    public interface Starter<T> {
+
+        /**
+         * Sends the attempt without waiting for it.
+         *
+         * @param attempt receives the outcome of the attempt
+         * @return cancels the attempt, may be called more than once
+         */
+        Runnable start(Attempt<T> attempt);
+    }
+
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+
+    private final List<Attempt<T>> attempts = new CopyOnWriteArrayList<>();
+
+    private final AtomicReference<Attempt<T>> winner = new AtomicReference<>();
+
+    private final Starter<T> backup;
+
+    private boolean backupStarted;
+
+    private int running = 1;
+
+    private HedgedRequest(Starter<T> backup) {
+        this.backup = backup;
+    }
+
+    /**
+     * Sends the primary attempt and schedules the backup.
+     *
+     * @param <T> the result type
+     * @param primary sends the primary attempt
+     * @param backup sends the backup attempt, or null if there is none
+     * @param delay how long to wait for the first token of the primary
+     * attempt before the backup is sent, or null to send it only when the
+     * primary attempt fails
+     * @return the result of the winning attempt
+     */
+    public static <T> CompletableFuture<T> send(Starter<T> primary, Starter<T> backup, Duration delay) {
+        HedgedRequest<T> request = new HedgedRequest<>(backup);
+        request.result.whenComplete((value, error) -> {
+            if (request.result.isCancelled()) {
+                request.attempts.forEach(Attempt::cancel);
+            }
+        });
+        request.launch(primary, false);
+        if (backup != null && delay != null) {
+            CompletableFuture.delayedExecutor(delay.toNanos(), TimeUnit.NANOSECONDS).execute(() -> {
+                if (request.winner.get() == null && !request.result.isDone() && request.reserveBackup()) {
+                    request.launch(backup, true);
+                }
+            });
+        }
+        return request.result;
+    }
+
+    private synchronized boolean reserveBackup() {
+        if (backup == null || backupStarted) {
+            return false;
+        }
+        backupStarted = true;
+        running++;
+        return true;
+    }
+
+    private void launch(Starter<T> starter, boolean isBackup) {
+        Attempt<T> attempt = new Attempt<>(this, isBackup);
+        attempts.add(attempt);
+        try {
+            attempt.setCanceller(starter.start(attempt));
+        } catch (RuntimeException e) {
+            attempt.fail(e);
+        }
+    }
+
+    private void failed(Attempt<T> attempt, Throwable error) {
+        boolean startBackup = false;
+        boolean failRequest = false;
+        synchronized (this) {
+            running--;
+            if (winner.get() == null) {
+                if (backup != null && !backupStarted) {
+                    backupStarted = true;
+                    running++;
+                    startBackup = true;
+                } else {
+                    failRequest = running == 0;
+                }
+            }
+        }
+        if (winner.get() == attempt || failRequest) {
+            result.completeExceptionally(error);
+        } else if (startBackup) {
+            launch(backup, true);
+        }
+    }
+
+    /**
+     * One attempt of a hedged request.
+     *
+     * @param <T> the result type
+     */
+    public static final class Attempt<T> {
+
+        private final HedgedRequest<T> request;
+
+        private final boolean backup;
+
+        private Runnable canceller;
+
+        private boolean cancelled;
+
+        private Attempt(HedgedRequest<T> request, boolean backup) {
+            this.request = request;
+            this.backup = backup;
+        }
+
+        /**
+         * Returns whether this is the backup attempt.
+         *
+         * @return true for the backup attempt
+         */
+        public boolean isBackup() {
+            return backup;
+        }
+
+        /**
+         * Claims the answer for this attempt. Call it before forwarding each
+         * token; the first call of any attempt wins and cancels the others.
+         * Once the request was cancelled even the winner may not forward.
+         *
+         * @return true if this attempt won and may forward its tokens
+         */
+        public boolean claim() {
+            if (isCancelled()) {
+                return false;
+            }
+            Attempt<T> current = request.winner.get();
+            if (current == this) {
+                return true;
+            }
+            if (current != null || request.result.isDone() || !request.winner.compareAndSet(null, this)) {
+                return false;
+            }
+            for (Attempt<T> other : request.attempts) {
+                if (other != this) {
+                    other.cancel();
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Completes the request if this attempt won, or claims it for an
+         * answer without tokens.
+         *
+         * @param value the result
+         */
+        public void complete(T value) {
+            if (claim()) {
+                request.result.complete(value);
+            }
+        }
+
+        /**
+         * Reports this attempt as failed. Before any attempt won this starts
+         * the backup, or fails the request when no attempt is left.
+         *
+         * @param error the error
+         */
+        public void fail(Throwable error) {
+            if (!isCancelled()) {
+                request.failed(this, error);
+            }
+        }
+
+        /**
+         * Returns whether this attempt was cancelled because another one won
+         * or the request was cancelled.
+         *
+         * @return true if cancelled
+         */
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void setCanceller(Runnable canceller) {
+            boolean cancelNow;
+            synchronized (this) {
+                this.canceller = canceller;
+                cancelNow = cancelled;
+            }
+            if (cancelNow && canceller != null) {
+                canceller.run();
+            }
+        }
+
+        private void cancel() {
+            Runnable cancel;
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                cancel = canceller;
+            }
+            if (cancel != null) {
+                cancel.run();
+            }
+        }
+    }
+}
@@ -1,7 +1,67 @@
 package com.manorrock.assistant.shared;
 
-public record LlmConfiguration(String endpoint, String model, String vendor, String apiKey, double temperature) {
+import java.time.Duration;
+import java.util.List;
+
+public record LlmConfiguration(String endpoint, String model, String vendor, String apiKey, double temperature,
+        int contextTokens, String keepAlive, Duration connectTimeout, Duration firstTokenTimeout,
+        Duration idleTimeout) {
     public static LlmConfiguration defaultConfig() {
-        return new LlmConfiguration("http://localhost:11434/api/chat", "llama3", "OLLAMA", "", 0.0);
+        return new LlmConfiguration("http://localhost:11434/api/chat", "llama3", "OLLAMA", "", 0.0, 4096, "30m",
+                Duration.ofSeconds(5), Duration.ofSeconds(120), Duration.ofSeconds(15));
+    }
+
+    public List<String> endpoints() {
+        return EndpointPool.split(endpoint);
+    }
+
+    public LlmConfiguration withEndpoint(String endpoint) {
+        return new LlmConfiguration(endpoint, model, vendor, apiKey, temperature, contextTokens, keepAlive,
+                connectTimeout, firstTokenTimeout, idleTimeout);
+    }
+
+    public LlmConfiguration withModel(String model) {
+        return new LlmConfiguration(endpoint, model, vendor, apiKey, temperature, contextTokens, keepAlive,
+                connectTimeout, firstTokenTimeout, idleTimeout);
+    }
+
+    public LlmConfiguration withVendor(String vendor) {
+        return new LlmConfiguration(endpoint, model, vendor, apiKey, temperature, contextTokens, keepAlive,
+                connectTimeout, firstTokenTimeout, idleTimeout);
+    }
+
+    public LlmConfiguration withApiKey(String apiKey) {
+        return new LlmConfiguration(endpoint, model, vendor, apiKey, temperature, contextTokens, keepAlive,
+                connectTimeout, firstTokenTimeout, idleTimeout);
+    }
+
+    public LlmConfiguration withTemperature(double temperature) {
+        return new LlmConfiguration(endpoint, model, vendor, apiKey, temperature, contextTokens, keepAlive,
+                connectTimeout, firstTokenTimeout, idleTimeout);
+    }
+
+    public LlmConfiguration withContextTokens(int contextTokens) {
+        return new LlmConfiguration(endpoint, model, vendor, apiKey, temperature, contextTokens, keepAlive,
+                connectTimeout, firstTokenTimeout, idleTimeout);
+    }
+
+    public LlmConfiguration withKeepAlive(String keepAlive) {
+        return new LlmConfiguration(endpoint, model, vendor, apiKey, temperature, contextTokens, keepAlive,
+                connectTimeout, firstTokenTimeout, idleTimeout);
+    }
+
+    public LlmConfiguration withConnectTimeout(Duration connectTimeout) {
+        return new LlmConfiguration(endpoint, model, vendor, apiKey, temperature, contextTokens, keepAlive,
+                connectTimeout, firstTokenTimeout, idleTimeout);
+    }
+
+    public LlmConfiguration withFirstTokenTimeout(Duration firstTokenTimeout) {
+        return new LlmConfiguration(endpoint, model, vendor, apiKey, temperature, contextTokens, keepAlive,
+                connectTimeout, firstTokenTimeout, idleTimeout);
+    }
+
+    public LlmConfiguration withIdleTimeout(Duration idleTimeout) {
+        return new LlmConfiguration(endpoint, model, vendor, apiKey, temperature, contextTokens, keepAlive,
+                connectTimeout, firstTokenTimeout, idleTimeout);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,309 @@
+package com.manorrock.assistant.shared;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder events of the request and render paths.
+ *
+ * <p>
+ * A recording started with
+ * {@code -XX:StartFlightRecording:filename=assistant.jfr} (or from JDK
+ * Mission Control on a running frontend) shows every chat request as a chain
+ * of events: building the body, waiting for the response headers, the first
+ * bytes of the body, each batch of tokens decoded from the wire, and the
+ * request as a whole. The frontends add the batches of text appended to the
+ * UI and the writes of the conversation history, so a stutter can be placed
+ * on the model, the network, the decoder, persistence or rendering.
+ * </p>
+ *
+ * <p>
+ * The request path events are emitted by {@link LlmMetrics.Request}. When no
+ * recording is running an event is an object the JIT removes and a check
+ * that returns false, so the events stay in the production code paths. The
+ * {@code commit} overloads only fill in the fields when the event is
+ * recorded.
+ * </p>
+ */
+public final class LlmEvents {
+
+    private static final String CATEGORY = "Manorrock Assistant";
+
+    private LlmEvents() {
+    }
+
+    /**
+     * Building the request body from the history, or for LangChain4j
+     * obtaining the model, until the request is handed to the client.
+     */
+    @Name("com.manorrock.assistant.RequestBuild")
+    @Label("Request Build")
+    @Category({CATEGORY, "Request"})
+    @StackTrace(false)
+    public static final class RequestBuild extends Event {
+
+        @Label("Vendor")
+        String vendor;
+
+        @Label("Model")
+        String model;
+
+        @Label("Prompt Tokens")
+        int promptTokens;
+
+        /**
+         * Ends the event and records it if enabled.
+         *
+         * @param vendor the vendor
+         * @param model the model
+         * @param promptTokens the estimated tokens of the prompt
+         */
+        public void commit(String vendor, String model, int promptTokens) {
+            if (shouldCommit()) {
+                this.vendor = vendor;
+                this.model = model;
+                this.promptTokens = promptTokens;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * From sending the request to its response headers, which covers
+     * connecting, the TLS handshake and the server queueing the request.
+     */
+    @Name("com.manorrock.assistant.ResponseHeaders")
+    @Label("Response Headers")
+    @Description("From sending the request to receiving the response headers, including connecting")
+    @Category({CATEGORY, "Request"})
+    @StackTrace(false)
+    public static final class ResponseHeaders extends Event {
+
+        @Label("Vendor")
+        String vendor;
+
+        @Label("Model")
+        String model;
+
+        @Label("Status Code")
+        int statusCode;
+
+        /**
+         * Ends the event and records it if enabled.
+         *
+         * @param vendor the vendor
+         * @param model the model
+         * @param statusCode the HTTP status code
+         */
+        public void commit(String vendor, String model, int statusCode) {
+            if (shouldCommit()) {
+                this.vendor = vendor;
+                this.model = model;
+                this.statusCode = statusCode;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * From the response headers to the first bytes of the body, mostly the
+     * model loading and processing the prompt.
+     */
+    @Name("com.manorrock.assistant.FirstByte")
+    @Label("First Byte")
+    @Description("From the response headers to the first bytes of the streamed body")
+    @Category({CATEGORY, "Request"})
+    @StackTrace(false)
+    public static final class FirstByte extends Event {
+
+        @Label("Vendor")
+        String vendor;
+
+        @Label("Model")
+        String model;
+
+        /**
+         * Ends the event and records it if enabled.
+         *
+         * @param vendor the vendor
+         * @param model the model
+         */
+        public void commit(String vendor, String model) {
+            if (shouldCommit()) {
+                this.vendor = vendor;
+                this.model = model;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Decoding one batch of bytes delivered by the HTTP client and handing
+     * its tokens to the frontend.
+     */
+    @Name("com.manorrock.assistant.TokenBatch")
+    @Label("Token Batch")
+    @Description("Decoding one batch of streamed bytes and handing its tokens to the frontend")
+    @Category({CATEGORY, "Request"})
+    @StackTrace(false)
+    public static final class TokenBatch extends Event {
+
+        @Label("Model")
+        String model;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Tokens")
+        int tokens;
+
+        /**
+         * Ends the event and records it if enabled.
+         *
+         * @param model the model
+         * @param bytes the bytes in the batch
+         * @param tokens the tokens decoded from the batch
+         */
+        public void commit(String model, long bytes, int tokens) {
+            if (shouldCommit()) {
+                this.model = model;
+                this.bytes = bytes;
+                this.tokens = tokens;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * A chat request from start to completion or failure.
+     */
+    @Name("com.manorrock.assistant.ChatRequest")
+    @Label("Chat Request")
+    @Category({CATEGORY, "Request"})
+    @StackTrace(false)
+    public static final class ChatRequest extends Event {
+
+        @Label("Vendor")
+        String vendor;
+
+        @Label("Model")
+        String model;
+
+        @Label("Prompt Tokens")
+        int promptTokens;
+
+        @Label("Tokens")
+        long tokens;
+
+        @Label("Time to First Token")
+        @Timespan
+        long timeToFirstToken;
+
+        @Label("Failed")
+        boolean failed;
+
+        @Label("Error")
+        String error;
+
+        /**
+         * Ends the event and records it if enabled.
+         *
+         * @param vendor the vendor
+         * @param model the model
+         * @param promptTokens the estimated tokens of the prompt
+         * @param tokens the tokens received
+         * @param timeToFirstToken nanoseconds to the first token, 0 if none
+         * @param error the error, null if the request succeeded
+         */
+        public void commit(String vendor, String model, int promptTokens, long tokens, long timeToFirstToken,
+                Throwable error) {
+            if (shouldCommit()) {
+                this.vendor = vendor;
+                this.model = model;
+                this.promptTokens = promptTokens;
+                this.tokens = tokens;
+                this.timeToFirstToken = timeToFirstToken;
+                this.failed = error != null;
+                this.error = error == null ? null : String.valueOf(error.getMessage());
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Writing or reading the persisted conversation history.
+     */
+    @Name("com.manorrock.assistant.HistoryPersistence")
+    @Label("History Persistence")
+    @Category({CATEGORY, "Frontend"})
+    public static final class HistoryPersistence extends Event {
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Messages")
+        int messages;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        /**
+         * Ends the event and records it if enabled.
+         *
+         * @param operation what was done, e.g. append or compact
+         * @param messages the messages written or read
+         * @param bytes the bytes written or read
+         */
+        public void commit(String operation, int messages, long bytes) {
+            if (shouldCommit()) {
+                this.operation = operation;
+                this.messages = messages;
+                this.bytes = bytes;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Appending a batch of streamed text to the transcript on the UI thread.
+     */
+    @Name("com.manorrock.assistant.UiAppend")
+    @Label("UI Append")
+    @Category({CATEGORY, "Frontend"})
+    @StackTrace(false)
+    public static final class UiAppend extends Event {
+
+        @Label("Frontend")
+        String frontend;
+
+        @Label("Tokens")
+        int tokens;
+
+        @Label("Characters")
+        int characters;
+
+        /**
+         * Ends the event and records it if enabled.
+         *
+         * @param frontend the frontend, e.g. desktop
+         * @param tokens the tokens in the batch
+         * @param characters the characters appended
+         */
+        public void commit(String frontend, int tokens, int characters) {
+            if (shouldCommit()) {
+                this.frontend = frontend;
+                this.tokens = tokens;
+                this.characters = characters;
+                commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,471 @@
+package com.manorrock.assistant.shared;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per vendor and model timings of the chat requests of this process.
+ *
+ * <p>
+ * Each request is split into the phases that point at different culprits:
+ * building the request body (our client), waiting for the response headers
+ * (network, connection setup and the server queue), waiting for the first
+ * token (model load and prompt processing) and streaming the rest of the
+ * answer (generation speed). Every phase is kept in a
+ * {@link LatencyHistogram}, together with the prompt size, the answer size
+ * and the number of failed and stopped requests, and {@link #report()}
+ * renders them for the {@code /stats} command of the frontends. For the
+ * token rate the slow tail is what hurts, so its p90 and p99 are the rates
+ * 90% and 99% of the answers streamed at least as fast as.
+ * </p>
+ *
+ * <p>
+ * The times to first token are also kept over a sliding window of the last
+ * {@link #RECENT} to twice as many requests, so the {@link HedgePolicy}
+ * delay follows current conditions instead of every request since startup,
+ * cold model loads included.
+ * </p>
+ */
+public final class LlmMetrics {
+
+    /**
+     * The least number of most recent requests the recent times to first
+     * token cover.
+     */
+    public static final int RECENT = 100;
+
+    private static final LlmMetrics DEFAULT = new LlmMetrics();
+
+    private final Map<String, Model> models = new ConcurrentSkipListMap<>();
+
+    /**
+     * Returns the process-wide metrics.
+     *
+     * @return the default metrics
+     */
+    public static LlmMetrics getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Starts timing a request. Call it before building the request body.
+     *
+     * @param vendor the vendor, e.g. OLLAMA
+     * @param model the model
+     * @param promptTokens the estimated tokens of the prompt
+     * @return the request to report progress to
+     */
+    public Request start(String vendor, String model, int promptTokens) {
+        return new Request(model(vendor, model), vendor, model, promptTokens);
+    }
+
+    /**
+     * Counts an answer replayed from the {@link ResponseCache}.
+     *
+     * @param vendor the vendor
+     * @param model the model
+     */
+    public void cacheHit(String vendor, String model) {
+        model(vendor, model).cacheHits.incrementAndGet();
+    }
+
+    /**
+     * Forgets all recorded requests.
+     */
+    public void reset() {
+        models.clear();
+    }
+
+    /**
+     * Renders the recorded requests per vendor and model, with times in
+     * milliseconds.
+     *
+     * @return the report
+     */
+    public String report() {
+        if (models.isEmpty()) {
+            return "No requests recorded yet";
+        }
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, Model> entry : models.entrySet()) {
+            Model model = entry.getValue();
+            if (report.length() > 0) {
+                report.append('\n');
+            }
+            report.append(entry.getKey()).append(": ")
+                    .append(model.requests.get()).append(" requests, ")
+                    .append(model.errors.get()).append(" failed, ")
+                    .append(model.cancellations.get()).append(" stopped, ")
+                    .append(model.cacheHits.get()).append(" cached, ")
+                    .append(Math.round(model.promptTokens.mean())).append(" prompt tokens and ")
+                    .append(Math.round(model.answerTokens.mean())).append(" answer tokens on average\n")
+                    .append(String.format("  %-16s %8s %8s %8s %8s%n", "ms", "p50", "p90", "p99", "worst"));
+            row(report, "request build", model.build);
+            row(report, "response headers", model.headers);
+            row(report, "first token", model.firstToken);
+            row(report, "total", model.total);
+            report.append(String.format("  %-16s %8d %8d %8d %8d", "tokens/s",
+                    model.tokensPerSecond.percentile(50), model.tokensPerSecond.percentile(10),
+                    model.tokensPerSecond.percentile(1), model.tokensPerSecond.percentile(0)));
+        }
+        return report.toString();
+    }
+
+    private static void row(StringBuilder report, String name, LatencyHistogram histogram) {
+        report.append(String.format("  %-16s %8.1f %8.1f %8.1f %8.1f%n", name,
+                histogram.percentile(50) / 1000.0, histogram.percentile(90) / 1000.0,
+                histogram.percentile(99) / 1000.0, histogram.max() / 1000.0));
+    }
+
+    private Model model(String vendor, String model) {
+        return models.computeIfAbsent(vendor.toUpperCase() + " " + model, key -> new Model());
+    }
+
+    /**
+     * The histograms of one vendor and model. Times are in microseconds.
+     */
+    private static final class Model {
+
+        private final AtomicLong requests = new AtomicLong();
+
+        private final AtomicLong errors = new AtomicLong();
+
+        private final AtomicLong cancellations = new AtomicLong();
+
+        private final AtomicLong cacheHits = new AtomicLong();
+
+        private final LatencyHistogram promptTokens = new LatencyHistogram();
+
+        private final LatencyHistogram answerTokens = new LatencyHistogram();
+
+        private final LatencyHistogram build = new LatencyHistogram();
+
+        private final LatencyHistogram headers = new LatencyHistogram();
+
+        private final LatencyHistogram firstToken = new LatencyHistogram();
+
+        private final LatencyHistogram total = new LatencyHistogram();
+
+        private final LatencyHistogram tokensPerSecond = new LatencyHistogram();
+
+        /**
+         * Two histograms both recording every time to first token, reset in
+         * turn every {@link #RECENT} requests, so the one reset longer ago
+         * holds the last {@link #RECENT} to twice as many.
+         */
+        private final LatencyHistogram[] recentFirstTokens = {new LatencyHistogram(), new LatencyHistogram()};
+
+        private final AtomicLong firstTokenSamples = new AtomicLong();
+
+        private void recordFirstToken(long micros) {
+            firstToken.record(micros);
+            long samples = firstTokenSamples.incrementAndGet();
+            if (samples % RECENT == 0) {
+                recentFirstTokens[(int) (samples / RECENT % 2)].reset();
+            }
+            recentFirstTokens[0].record(micros);
+            recentFirstTokens[1].record(micros);
+        }
+
+        private LatencyHistogram recentFirstTokens() {
+            return recentFirstTokens[(int) ((firstTokenSamples.get() / RECENT + 1) % 2)];
+        }
+    }
+
+    /**
+     * The timing of one request. Every phase is recorded once; calls after
+     * the request completed or failed are ignored, so the frontends can
+     * report from whichever callback sees an event first. Each phase is
+     * also emitted as an {@link LlmEvents} event.
+     */
+    public static final class Request {
+
+        private final Model model;
+
+        private final String vendor;
+
+        private final String modelName;
+
+        private final int promptTokens;
+
+        private final long start = System.nanoTime();
+
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private final LlmEvents.ChatRequest chatEvent = new LlmEvents.ChatRequest();
+
+        private final LlmEvents.RequestBuild buildEvent = new LlmEvents.RequestBuild();
+
+        private final LlmEvents.ResponseHeaders headersEvent = new LlmEvents.ResponseHeaders();
+
+        private final LlmEvents.FirstByte firstByteEvent = new LlmEvents.FirstByte();
+
+        private volatile long built;
+
+        private volatile long headers;
+
+        private volatile long firstToken;
+
+        private volatile long lastToken;
+
+        private final AtomicLong tokens = new AtomicLong();
+
+        private Request(Model model, String vendor, String modelName, int promptTokens) {
+            this.model = model;
+            this.vendor = vendor;
+            this.modelName = modelName;
+            this.promptTokens = promptTokens;
+            chatEvent.begin();
+            buildEvent.begin();
+        }
+
+        /**
+         * Marks the request body as built and the request as sent.
+         */
+        public void built() {
+            if (built == 0) {
+                built = System.nanoTime();
+                buildEvent.commit(vendor, modelName, promptTokens);
+                headersEvent.begin();
+            }
+        }
+
+        /**
+         * Marks the response headers as received.
+         */
+        public void headers() {
+            headers(0);
+        }
+
+        private void headers(int statusCode) {
+            built();
+            if (headers == 0) {
+                headers = System.nanoTime();
+                headersEvent.commit(vendor, modelName, statusCode);
+                firstByteEvent.begin();
+            }
+        }
+
+        /**
+         * Counts a streamed content delta as one token, which is how Ollama
+         * and the OpenAI-compatible servers stream.
+         *
+         * @param content the content delta
+         */
+        public void content(String content) {
+            long now = System.nanoTime();
+            if (firstToken == 0) {
+                firstToken = now;
+            }
+            lastToken = now;
+            tokens.incrementAndGet();
+        }
+
+        /**
+         * Records the request as completed.
+         */
+        public void complete() {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            long end = System.nanoTime();
+            model.requests.incrementAndGet();
+            model.promptTokens.record(promptTokens);
+            model.answerTokens.record(tokens.get());
+            if (built != 0) {
+                model.build.record(micros(built - start));
+            }
+            if (headers != 0) {
+                model.headers.record(micros(headers - built));
+            }
+            if (firstToken != 0) {
+                model.recordFirstToken(micros(firstToken - start));
+                long streaming = lastToken - firstToken;
+                if (tokens.get() > 1 && streaming > 0) {
+                    model.tokensPerSecond.record((tokens.get() - 1) * TimeUnit.SECONDS.toNanos(1) / streaming);
+                }
+            }
+            model.total.record(micros(end - start));
+            chatEvent.commit(vendor, modelName, promptTokens, tokens.get(),
+                    firstToken == 0 ? 0 : firstToken - start, null);
+        }
+
+        /**
+         * Records the request as failed.
+         *
+         * @param error the error, may be null
+         */
+        public void fail(Throwable error) {
+            if (done.compareAndSet(false, true)) {
+                model.requests.incrementAndGet();
+                model.errors.incrementAndGet();
+                chatEvent.commit(vendor, modelName, promptTokens, tokens.get(),
+                        firstToken == 0 ? 0 : firstToken - start,
+                        error != null ? error : new IOException("Request failed"));
+            }
+        }
+
+        /**
+         * Records the request as stopped by the user. Its timings are not
+         * recorded, since the answer is incomplete.
+         */
+        public void cancel() {
+            if (done.compareAndSet(false, true)) {
+                model.requests.incrementAndGet();
+                model.cancellations.incrementAndGet();
+                chatEvent.commit(vendor, modelName, promptTokens, tokens.get(),
+                        firstToken == 0 ? 0 : firstToken - start, new CancellationException("Stopped"));
+            }
+        }
+
+        /**
+         * Records the outcome of an asynchronous send, for use with
+         * {@link java.util.concurrent.CompletableFuture#whenComplete}.
+         *
+         * @param response the response, null on failure
+         * @param error the error, null on success
+         */
+        public void record(HttpResponse<?> response, Throwable error) {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause() : error;
+            if (cause instanceof CancellationException) {
+                cancel();
+            } else if (error != null || response == null) {
+                fail(cause);
+            } else if (response.statusCode() != 200) {
+                fail(new IOException("HTTP status " + response.statusCode()));
+            } else {
+                complete();
+            }
+        }
+
+        /**
+         * Creates a body handler that marks the response headers and counts
+         * the streamed tokens before handing them to the listener.
+         *
+         * @param listener the listener receiving stream events
+         * @return the body handler
+         */
+        public HttpResponse.BodyHandler<String> handler(OllamaStreamDecoder.Listener listener) {
+            return handler(listener, null, null);
+        }
+
+        /**
+         * Creates a body handler that marks the response headers, counts the
+         * streamed tokens and fails a stalled stream (see
+         * {@link StreamWatchdog}). The time to the first token counts from
+         * the creation of the handler, so create it right before sending.
+         *
+         * @param listener the listener receiving stream events
+         * @param firstTokenTimeout how long to wait for the first token, or
+         * null for no timeouts
+         * @param idleTimeout how long to wait for each later token
+         * @return the body handler
+         */
+        public HttpResponse.BodyHandler<String> handler(OllamaStreamDecoder.Listener listener,
+                Duration firstTokenTimeout, Duration idleTimeout) {
+            built();
+            long sentNanos = System.nanoTime();
+            return responseInfo -> {
+                headers(responseInfo.statusCode());
+                return new TimedSubscriber(new OllamaStreamDecoder(new OllamaStreamDecoder.Listener() {
+                    @Override
+                    public void onContent(String content) {
+                        Request.this.content(content);
+                        listener.onContent(content);
+                    }
+
+                    @Override
+                    public void onSessionId(String sessionId) {
+                        listener.onSessionId(sessionId);
+                    }
+
+                    @Override
+                    public void onDone() {
+                        listener.onDone();
+                    }
+                }, sentNanos, firstTokenTimeout, idleTimeout));
+            };
+        }
+
+        /**
+         * Returns the times to first token of the last {@link #RECENT} to
+         * twice as many requests of the vendor and model, e.g. for the
+         * {@link HedgePolicy} delay.
+         *
+         * @return the times to first token in microseconds
+         */
+        public LatencyHistogram firstTokens() {
+            return model.recentFirstTokens();
+        }
+
+        private static long micros(long nanos) {
+            return TimeUnit.NANOSECONDS.toMicros(nanos);
+        }
+
+        /**
+         * Emits the first byte and token batch events around the decoder.
+         */
+        private final class TimedSubscriber implements HttpResponse.BodySubscriber<String> {
+
+            private final HttpResponse.BodySubscriber<String> decoder;
+
+            private boolean first = true;
+
+            TimedSubscriber(HttpResponse.BodySubscriber<String> decoder) {
+                this.decoder = decoder;
+            }
+
+            @Override
+            public CompletionStage<String> getBody() {
+                return decoder.getBody();
+            }
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                decoder.onSubscribe(subscription);
+            }
+
+            @Override
+            public void onNext(List<ByteBuffer> items) {
+                if (first) {
+                    first = false;
+                    firstByteEvent.commit(vendor, modelName);
+                }
+                LlmEvents.TokenBatch event = new LlmEvents.TokenBatch();
+                event.begin();
+                long bytes = 0;
+                if (event.isEnabled()) {
+                    for (ByteBuffer item : items) {
+                        bytes += item.remaining();
+                    }
+                }
+                long before = tokens.get();
+                decoder.onNext(items);
+                event.commit(modelName, bytes, (int) (tokens.get() - before));
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                decoder.onError(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                decoder.onComplete();
+            }
+        }
+    }
+}
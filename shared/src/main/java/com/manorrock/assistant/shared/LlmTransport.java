@@ -0,0 +1,180 @@
+package com.manorrock.assistant.shared;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-lived HTTP transport shared by all frontends.
+ *
+ * <p>
+ * Keeps one {@link HttpClient} per endpoint (scheme, host and port) so
+ * keep-alive connections are reused across prompts instead of paying a new
+ * TCP/TLS handshake and selector thread for every message. HTTPS endpoints
+ * negotiate HTTP/2 through ALPN, plain HTTP endpoints stay on HTTP/1.1 with
+ * keep-alive. All clients share one bounded executor.
+ * </p>
+ *
+ * <p>
+ * The connect timeout is a setting of the client, so an endpoint used with
+ * another {@link LlmConfiguration#connectTimeout()} gets a client of its
+ * own. The default is the one of {@link LlmConfiguration#defaultConfig()}.
+ * </p>
+ */
+public final class LlmTransport {
+
+    private static final int MAX_THREADS = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    private static final LlmTransport DEFAULT = new LlmTransport();
+
+    private final Map<String, HttpClient> clients = new ConcurrentHashMap<>();
+
+    private final ExecutorService executor;
+
+    private LlmTransport() {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "llm-transport-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+    }
+
+    /**
+     * Returns the process-wide transport.
+     *
+     * @return the default transport
+     */
+    public static LlmTransport getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the pooled client for the given endpoint, creating it on first
+     * use.
+     *
+     * @param endpoint the endpoint URI
+     * @return the client for the endpoint's scheme, host and port
+     */
+    public HttpClient client(URI endpoint) {
+        return client(endpoint, LlmConfiguration.defaultConfig().connectTimeout());
+    }
+
+    /**
+     * Returns the pooled client for the given endpoint and connect timeout,
+     * creating it on first use.
+     *
+     * @param endpoint the endpoint URI
+     * @param connectTimeout how long to wait for a connection
+     * @return the client for the endpoint's scheme, host and port
+     */
+    public HttpClient client(URI endpoint, Duration connectTimeout) {
+        return clients.computeIfAbsent(key(endpoint) + "/" + connectTimeout.toMillis(), key -> HttpClient.newBuilder()
+                .version("https".equalsIgnoreCase(endpoint.getScheme())
+                        ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .connectTimeout(connectTimeout)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(executor)
+                .build());
+    }
+
+    /**
+     * Creates a JSON POST request for the given endpoint.
+     *
+     * @param endpoint the endpoint URL
+     * @param body the JSON request body
+     * @return the request
+     */
+    public HttpRequest jsonPost(String endpoint, String body) {
+        return HttpRequest.newBuilder()
+                .uri(URI.create(endpoint))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+    }
+
+    /**
+     * Creates a JSON POST request that fails when the response headers do
+     * not arrive in time. Ollama sends the headers of a streamed answer with
+     * its first token, so this is the first token timeout until the body is
+     * being read.
+     *
+     * @param endpoint the endpoint URL
+     * @param body the JSON request body
+     * @param timeout how long to wait for the response headers
+     * @return the request
+     */
+    public HttpRequest jsonPost(String endpoint, String body, Duration timeout) {
+        return HttpRequest.newBuilder()
+                .uri(URI.create(endpoint))
+                .header("Content-Type", "application/json")
+                .timeout(timeout)
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+    }
+
+    /**
+     * Sends a request synchronously on the pooled client for its endpoint.
+     *
+     * @param <T> the response body type
+     * @param request the request
+     * @param handler the body handler
+     * @return the response
+     * @throws IOException if an I/O error occurs
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler)
+            throws IOException, InterruptedException {
+        return client(request.uri()).send(request, handler);
+    }
+
+    /**
+     * Sends a request asynchronously on the pooled client for its endpoint.
+     *
+     * @param <T> the response body type
+     * @param request the request
+     * @param handler the body handler
+     * @return the future response
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+        return client(request.uri()).sendAsync(request, handler);
+    }
+
+    /**
+     * Sends a request asynchronously on the pooled client for its endpoint
+     * and connect timeout.
+     *
+     * @param <T> the response body type
+     * @param request the request
+     * @param handler the body handler
+     * @param connectTimeout how long to wait for a connection
+     * @return the future response
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> handler,
+            Duration connectTimeout) {
+        return client(request.uri(), connectTimeout).sendAsync(request, handler);
+    }
+
+    private static String key(URI endpoint) {
+        String scheme = endpoint.getScheme() == null ? "http" : endpoint.getScheme().toLowerCase();
+        int port = endpoint.getPort();
+        if (port == -1) {
+            port = "https".equals(scheme) ? 443 : 80;
+        }
+        return scheme + "://" + endpoint.getHost() + ":" + port;
+    }
+}
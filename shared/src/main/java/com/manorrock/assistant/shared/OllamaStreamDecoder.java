@@ -0,0 +1,473 @@
+package com.manorrock.assistant.shared;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * Incremental decoder for Ollama NDJSON chat streams.
+ *
+ * <p>
+ * Reads the response {@link ByteBuffer}s straight off the wire, splits them
+ * into lines at the byte level and scans each line for the handful of fields
+ * the frontends need ({@code message.content}, {@code messages[].content},
+ * {@code done}, {@code session_id} and {@code error}). No JSON tree is built
+ * per token; unknown fields are skipped without being materialized. The body
+ * of the response is the concatenated assistant content.
+ * </p>
+ *
+ * <p>
+ * Given a first token and an idle timeout, the decoder fails the body with
+ * an {@link java.net.http.HttpTimeoutException} and closes the connection
+ * when the stream stalls (see {@link StreamWatchdog}).
+ * </p>
+ */
+public final class OllamaStreamDecoder implements HttpResponse.BodySubscriber<String> {
+
+    /**
+     * Receives the decoded stream events. Callbacks run on the transport
+     * thread delivering the bytes.
+     */
+    public interface Listener {
+
+        /**
+         * Called for every non-empty assistant content delta.
+         *
+         * @param content the content delta
+         */
+        void onContent(String content);
+
+        /**
+         * Called when the server reports a session id.
+         *
+         * @param sessionId the session id
+         */
+        default void onSessionId(String sessionId) {
+        }
+
+        /**
+         * Called when the server marks the stream as done.
+         */
+        default void onDone() {
+        }
+    }
+
+    private static final byte[] MESSAGE = bytes("message");
+    private static final byte[] MESSAGES = bytes("messages");
+    private static final byte[] SESSION_ID = bytes("session_id");
+    private static final byte[] DONE = bytes("done");
+    private static final byte[] ERROR = bytes("error");
+    private static final byte[] ROLE = bytes("role");
+    private static final byte[] CONTENT = bytes("content");
+    private static final byte[] ASSISTANT = bytes("assistant");
+
+    private final Listener listener;
+    private final long sentNanos;
+    private final Duration firstTokenTimeout;
+    private final Duration idleTimeout;
+    private final CompletableFuture<String> body = new CompletableFuture<>();
+    private final StringBuilder text = new StringBuilder();
+    private final StringBuilder scratch = new StringBuilder();
+    private volatile Flow.Subscription subscription;
+    private StreamWatchdog watchdog;
+    private byte[] line = new byte[4096];
+    private int length;
+    private int position;
+    private volatile boolean failed;
+
+    /**
+     * Constructor.
+     *
+     * @param listener the listener receiving stream events
+     */
+    public OllamaStreamDecoder(Listener listener) {
+        this(listener, 0, null, null);
+    }
+
+    /**
+     * Constructor for a decoder that fails a stalled stream.
+     *
+     * @param listener the listener receiving stream events
+     * @param sentNanos when the request was sent, from {@link System#nanoTime()}
+     * @param firstTokenTimeout how long to wait for the first token, or null
+     * for no timeouts
+     * @param idleTimeout how long to wait for each later token
+     */
+    public OllamaStreamDecoder(Listener listener, long sentNanos, Duration firstTokenTimeout, Duration idleTimeout) {
+        this.listener = listener;
+        this.sentNanos = sentNanos;
+        this.firstTokenTimeout = firstTokenTimeout;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Creates a body handler that decodes each response with a new decoder.
+     *
+     * @param listener the listener receiving stream events
+     * @return the body handler
+     */
+    public static HttpResponse.BodyHandler<String> handler(Listener listener) {
+        return responseInfo -> new OllamaStreamDecoder(listener);
+    }
+
+    /**
+     * Creates a body handler that decodes each response with a new decoder
+     * failing a stalled stream. The time to the first token counts from the
+     * creation of the handler, so create it right before sending.
+     *
+     * @param listener the listener receiving stream events
+     * @param firstTokenTimeout how long to wait for the first token
+     * @param idleTimeout how long to wait for each later token
+     * @return the body handler
+     */
+    public static HttpResponse.BodyHandler<String> handler(Listener listener, Duration firstTokenTimeout,
+            Duration idleTimeout) {
+        long sentNanos = System.nanoTime();
+        return responseInfo -> new OllamaStreamDecoder(listener, sentNanos, firstTokenTimeout, idleTimeout);
+    }
+
+    @Override
+    public CompletionStage<String> getBody() {
+        return body;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        if (firstTokenTimeout != null) {
+            watchdog = StreamWatchdog.start(sentNanos, firstTokenTimeout, idleTimeout, this::timeout);
+        }
+        subscription.request(1);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> items) {
+        if (failed) {
+            return;
+        }
+        if (watchdog != null) {
+            watchdog.activity();
+        }
+        try {
+            for (ByteBuffer buffer : items) {
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b == '\n') {
+                        decodeLine();
+                        length = 0;
+                    } else {
+                        if (length == line.length) {
+                            byte[] grown = new byte[line.length * 2];
+                            System.arraycopy(line, 0, grown, 0, length);
+                            line = grown;
+                        }
+                        line[length++] = b;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        subscription.request(1);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        stopWatchdog();
+        failed = true;
+        body.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        stopWatchdog();
+        if (failed) {
+            return;
+        }
+        try {
+            decodeLine();
+            length = 0;
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        body.complete(text.toString());
+    }
+
+    private void fail(IOException exception) {
+        stopWatchdog();
+        failed = true;
+        subscription.cancel();
+        body.completeExceptionally(exception);
+    }
+
+    /**
+     * Fails the body of a stalled stream, on the watchdog thread.
+     */
+    private void timeout(IOException exception) {
+        failed = true;
+        // complete first, cancelling makes the client fail the body with its own error
+        body.completeExceptionally(exception);
+        subscription.cancel();
+    }
+
+    private void stopWatchdog() {
+        if (watchdog != null) {
+            watchdog.stop();
+        }
+    }
+
+    /**
+     * Decodes the line currently held in the line buffer.
+     */
+    private void decodeLine() throws IOException {
+        position = 0;
+        skipWhitespace();
+        if (position >= length) {
+            return;
+        }
+        String error = null;
+        boolean done = false;
+        expect('{');
+        skipWhitespace();
+        if (!consume('}')) {
+            do {
+                skipWhitespace();
+                int keyStart = position + 1;
+                int keyEnd = skipString();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                if (keyEquals(keyStart, keyEnd, MESSAGE) && peek() == '{') {
+                    readMessage(false);
+                } else if (keyEquals(keyStart, keyEnd, MESSAGES) && peek() == '[') {
+                    position++;
+                    skipWhitespace();
+                    if (!consume(']')) {
+                        do {
+                            skipWhitespace();
+                            readMessage(true);
+                            skipWhitespace();
+                        } while (consume(','));
+                        expect(']');
+                    }
+                } else if (keyEquals(keyStart, keyEnd, SESSION_ID) && peek() == '"') {
+                    listener.onSessionId(readString());
+                } else if (keyEquals(keyStart, keyEnd, DONE) && peek() == 't') {
+                    skipValue();
+                    done = true;
+                } else if (keyEquals(keyStart, keyEnd, ERROR) && peek() == '"') {
+                    error = readString();
+                } else {
+                    skipValue();
+                }
+                skipWhitespace();
+            } while (consume(','));
+            expect('}');
+        }
+        if (error != null) {
+            throw new IOException(error);
+        }
+        if (done) {
+            listener.onDone();
+        }
+    }
+
+    /**
+     * Reads a chat message object and emits its content.
+     *
+     * @param assistantOnly true to only emit content of assistant messages
+     */
+    private void readMessage(boolean assistantOnly) throws IOException {
+        expect('{');
+        boolean assistant = false;
+        String content = null;
+        skipWhitespace();
+        if (!consume('}')) {
+            do {
+                skipWhitespace();
+                int keyStart = position + 1;
+                int keyEnd = skipString();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                if (keyEquals(keyStart, keyEnd, CONTENT) && peek() == '"') {
+                    content = readString();
+                } else if (keyEquals(keyStart, keyEnd, ROLE) && peek() == '"') {
+                    int valueStart = position + 1;
+                    int valueEnd = skipString();
+                    assistant = keyEquals(valueStart, valueEnd, ASSISTANT);
+                } else {
+                    skipValue();
+                }
+                skipWhitespace();
+            } while (consume(','));
+            expect('}');
+        }
+        if (content != null && !content.isEmpty() && (assistant || !assistantOnly) && !failed) {
+            text.append(content);
+            listener.onContent(content);
+        }
+    }
+
+    /**
+     * Reads a string value, only decoding escapes when there are any.
+     *
+     * @return the string value
+     */
+    private String readString() throws IOException {
+        int start = position + 1;
+        int end = skipString();
+        int escape = -1;
+        for (int i = start; i < end; i++) {
+            if (line[i] == '\\') {
+                escape = i;
+                break;
+            }
+        }
+        if (escape == -1) {
+            return new String(line, start, end - start, StandardCharsets.UTF_8);
+        }
+        scratch.setLength(0);
+        int segment = start;
+        int i = escape;
+        while (i < end) {
+            if (line[i] != '\\') {
+                i++;
+                continue;
+            }
+            if (i > segment) {
+                scratch.append(new String(line, segment, i - segment, StandardCharsets.UTF_8));
+            }
+            byte c = line[i + 1];
+            switch (c) {
+                case 'n' -> scratch.append('\n');
+                case 't' -> scratch.append('\t');
+                case 'r' -> scratch.append('\r');
+                case 'b' -> scratch.append('\b');
+                case 'f' -> scratch.append('\f');
+                case 'u' -> {
+                    if (i + 6 > end) {
+                        throw new IOException("Invalid unicode escape in stream");
+                    }
+                    scratch.append((char) Integer.parseInt(new String(line, i + 2, 4, StandardCharsets.US_ASCII), 16));
+                    i += 4;
+                }
+                default -> scratch.append((char) c);
+            }
+            i += 2;
+            segment = i;
+        }
+        if (end > segment) {
+            scratch.append(new String(line, segment, end - segment, StandardCharsets.UTF_8));
+        }
+        return scratch.toString();
+    }
+
+    /**
+     * Skips over a string starting at the current position.
+     *
+     * @return the index of the closing quote
+     */
+    private int skipString() throws IOException {
+        expect('"');
+        while (position < length) {
+            byte b = line[position];
+            if (b == '\\') {
+                position += 2;
+            } else if (b == '"') {
+                return position++;
+            } else {
+                position++;
+            }
+        }
+        throw new IOException("Unterminated string in stream");
+    }
+
+    /**
+     * Skips over any JSON value starting at the current position.
+     */
+    private void skipValue() throws IOException {
+        byte b = peek();
+        if (b == '"') {
+            skipString();
+        } else if (b == '{' || b == '[') {
+            int depth = 0;
+            do {
+                b = peek();
+                if (b == '"') {
+                    skipString();
+                    continue;
+                }
+                if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    depth--;
+                }
+                position++;
+            } while (depth > 0);
+        } else {
+            while (position < length) {
+                b = line[position];
+                if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\t' || b == '\r') {
+                    break;
+                }
+                position++;
+            }
+        }
+    }
+
+    private boolean keyEquals(int start, int end, byte[] key) {
+        if (end - start != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (line[start + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipWhitespace() {
+        while (position < length) {
+            byte b = line[position];
+            if (b != ' ' && b != '\t' && b != '\r') {
+                return;
+            }
+            position++;
+        }
+    }
+
+    private byte peek() throws IOException {
+        if (position >= length) {
+            throw new IOException("Unexpected end of line in stream");
+        }
+        return line[position];
+    }
+
+    private boolean consume(char c) {
+        if (position < length && line[position] == c) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) throws IOException {
+        if (!consume(c)) {
+            throw new IOException("Malformed stream, expected '" + c + "' at offset " + position);
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
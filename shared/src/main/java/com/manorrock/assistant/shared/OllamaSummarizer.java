@@ -0,0 +1,74 @@
+package com.manorrock.assistant.shared;
+
+import java.net.ConnectException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * {@link ConversationCompactor.Summarizer} asking an Ollama chat endpoint for
+ * the summary.
+ *
+ * <p>
+ * The endpoint, model and keep-alive are looked up for every summary so it
+ * follows {@code /model} and endpoint changes. The keep-alive is sent like on
+ * every chat request, since Ollama resets a model loaded without one to its
+ * 5 minute default. The request goes through the shared
+ * {@link LlmTransport}, reusing the connection of the chat itself, to the
+ * least loaded host of the {@link EndpointPool}. Hosts that are down (see
+ * {@link EndpointHealth}) are left out, and when none is up the summary
+ * fails at once and is tried again after the next turn. A summary that
+ * stalls fails on the timeouts of the {@link LlmConfiguration} like a chat
+ * answer, so the compactor is free to try again.
+ * </p>
+ */
+public final class OllamaSummarizer implements ConversationCompactor.Summarizer {
+
+    private final Supplier<String> endpoint;
+
+    private final Supplier<String> model;
+
+    private final Supplier<String> keepAlive;
+
+    private final Supplier<LlmConfiguration> timeouts;
+
+    /**
+     * Constructor.
+     *
+     * @param endpoint supplies the chat endpoint URLs, separated by commas
+     * @param model supplies the model name
+     * @param keepAlive supplies how long Ollama keeps the model loaded, see
+     * {@link LlmConfiguration#keepAlive()}
+     * @param timeouts supplies the connect, first token and idle timeouts
+     */
+    public OllamaSummarizer(Supplier<String> endpoint, Supplier<String> model, Supplier<String> keepAlive,
+            Supplier<LlmConfiguration> timeouts) {
+        this.endpoint = endpoint;
+        this.model = model;
+        this.keepAlive = keepAlive;
+        this.timeouts = timeouts;
+    }
+
+    @Override
+    public CompletableFuture<String> summarize(String transcript) {
+        String body = ChatCodec.ollamaRequest(model.get(),
+                List.of(ChatMessage.user(ConversationCompactor.SUMMARY_PROMPT + transcript)), 0.0, keepAlive.get(), null);
+        String available = EndpointHealth.getDefault().available(endpoint.get());
+        if (available.isEmpty()) {
+            return CompletableFuture.failedFuture(new ConnectException("No Ollama host is up"));
+        }
+        EndpointPool.Lease lease = EndpointPool.getDefault().acquire(available, null);
+        LlmTransport transport = LlmTransport.getDefault();
+        LlmConfiguration config = timeouts.get();
+        try {
+            return transport.sendAsync(transport.jsonPost(lease.endpoint(), body, config.firstTokenTimeout()),
+                    OllamaStreamDecoder.handler(lease.listener(content -> { }), config.firstTokenTimeout(),
+                            config.idleTimeout()), config.connectTimeout())
+                    .whenComplete(lease::record)
+                    .thenApply(response -> response.body());
+        } catch (IllegalArgumentException e) {
+            lease.release(e);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.manorrock.assistant.shared;
+
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Loads an Ollama model ahead of the first message.
+ *
+ * <p>
+ * A chat request without messages makes Ollama load the model into memory
+ * and keep it there for the given {@code keep_alive} duration without
+ * generating anything. Frontends send it in the background at startup and
+ * whenever the model or endpoint changes, so loading the weights is no
+ * longer part of the first answer's latency. Every chat request should also
+ * carry the same {@code keep_alive} (see {@link LlmConfiguration#keepAlive()}),
+ * since Ollama otherwise falls back to its 5 minute default.
+ * </p>
+ */
+public final class OllamaWarmup {
+
+    private OllamaWarmup() {
+    }
+
+    /**
+     * Sends a warm-up request in the background. Failures are ignored, the
+     * model is then simply loaded by the first message.
+     *
+     * @param endpoint the chat endpoint URL, or several separated by commas
+     * @param model the model
+     * @param keepAlive how long to keep the model loaded, e.g. "30m", or a
+     * negative duration such as "-1m" to keep it loaded indefinitely
+     * @return the future completing with true if the model is loaded on every
+     * endpoint
+     */
+    public static CompletableFuture<Boolean> warm(String endpoint, String model, String keepAlive) {
+        List<String> endpoints = EndpointPool.split(endpoint);
+        if (endpoints.size() > 1) {
+            CompletableFuture<Boolean> loaded = CompletableFuture.completedFuture(true);
+            for (String host : endpoints) {
+                loaded = loaded.thenCombine(warm(host, model, keepAlive), Boolean::logicalAnd);
+            }
+            return loaded;
+        }
+        String body = "{\"model\":" + ChatCodec.quote(model)
+                + ",\"messages\":[],\"keep_alive\":" + ChatCodec.quote(keepAlive) + "}";
+        try {
+            LlmTransport transport = LlmTransport.getDefault();
+            return transport.sendAsync(transport.jsonPost(endpoint, body), HttpResponse.BodyHandlers.discarding())
+                    .handle((response, throwable) -> throwable == null && response.statusCode() == 200);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    /**
+     * Sends a warm-up request for the configuration if its vendor is Ollama.
+     *
+     * @param config the configuration
+     * @return the future completing with true if the model is loaded
+     */
+    public static CompletableFuture<Boolean> warm(LlmConfiguration config) {
+        if (!"OLLAMA".equalsIgnoreCase(config.vendor())) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return warm(config.endpoint(), config.model(), config.keepAlive());
+    }
+}
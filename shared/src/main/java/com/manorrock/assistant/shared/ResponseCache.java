@@ -0,0 +1,193 @@
+package com.manorrock.assistant.shared;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * Content-addressed on-disk cache of deterministic answers.
+ *
+ * <p>
+ * With a temperature of 0.0 the same model given the same messages gives the
+ * same answer, so the answer is stored under a SHA-256 hash of the vendor,
+ * model, temperature and normalized message list. A hit is replayed in one
+ * piece instead of waiting for the model, which makes repeated prompts such
+ * as {@code /explain} of the same text instant across runs and machines
+ * sharing the directory.
+ * </p>
+ *
+ * <p>
+ * Every hit refreshes the entry's modification time. When the entries exceed
+ * the size limit the least recently used ones are deleted. Writes go through
+ * a temporary file and an atomic move, so concurrent processes never read a
+ * partial answer.
+ * </p>
+ */
+public final class ResponseCache {
+
+    /**
+     * The default size limit in bytes.
+     */
+    public static final long DEFAULT_MAX_BYTES = 32L << 20;
+
+    private static final String SUFFIX = ".txt";
+
+    private record Entry(Path file, FileTime lastUsed, long size) {
+    }
+
+    private final Path directory;
+
+    private final long maxBytes;
+
+    private long size = -1;
+
+    /**
+     * Constructor.
+     *
+     * @param directory the cache directory
+     * @param maxBytes the size limit in bytes
+     */
+    public ResponseCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cache directory shared by all frontends.
+     *
+     * @return the default cache directory
+     */
+    public static Path defaultDirectory() {
+        return Paths.get(System.getProperty("user.home"), ".manorrock", "assistant", "response-cache");
+    }
+
+    /**
+     * Tells whether answers for the given temperature are deterministic and
+     * may be cached.
+     *
+     * @param temperature the sampling temperature
+     * @return true if answers may be cached
+     */
+    public static boolean isCacheable(double temperature) {
+        return temperature == 0.0;
+    }
+
+    /**
+     * Computes the cache key of a request. Roles are lower-cased, line
+     * endings normalized and surrounding whitespace stripped from contents,
+     * so cosmetic differences still hit the same entry.
+     *
+     * @param <M> the message type
+     * @param vendor the vendor
+     * @param model the model
+     * @param temperature the temperature
+     * @param messages the messages, oldest first
+     * @param role returns the role of a message
+     * @param content returns the content of a message
+     * @return the key, a lower-case hex SHA-256 hash
+     */
+    public static <M> String key(String vendor, String model, double temperature, List<M> messages,
+            Function<M, String> role, Function<M, String> content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        update(digest, vendor.toUpperCase());
+        update(digest, model);
+        update(digest, Double.toString(temperature));
+        for (M message : messages) {
+            update(digest, role.apply(message).toLowerCase());
+            String text = content.apply(message);
+            update(digest, text == null ? "" : text.replace("\r\n", "\n").strip());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Returns the cached answer and marks it as recently used.
+     *
+     * @param key the key
+     * @return the answer, or empty if it is not cached or cannot be read
+     */
+    public Optional<String> get(String key) {
+        Path file = directory.resolve(key + SUFFIX);
+        try {
+            String response = Files.readString(file, StandardCharsets.UTF_8);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return Optional.of(response);
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Stores an answer and evicts the least recently used entries above the
+     * size limit. Failures are ignored, the cache is only an optimization.
+     *
+     * @param key the key
+     * @param response the answer
+     */
+    public synchronized void put(String key, String response) {
+        try {
+            Files.createDirectories(directory);
+            byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+            Path temp = Files.createTempFile(directory, key, ".tmp");
+            Files.write(temp, bytes);
+            Files.move(temp, directory.resolve(key + SUFFIX),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (size < 0 || size + bytes.length > maxBytes) {
+                evict();
+            } else {
+                size += bytes.length;
+            }
+        } catch (IOException e) {
+            size = -1;
+        }
+    }
+
+    private void evict() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                entries.add(new Entry(file, attributes.lastModifiedTime(), attributes.size()));
+                total += attributes.size();
+            }
+        }
+        entries.sort(Comparator.comparing(Entry::lastUsed));
+        for (Entry entry : entries) {
+            if (total <= maxBytes) {
+                break;
+            }
+            Files.deleteIfExists(entry.file());
+            total -= entry.size();
+        }
+        size = total;
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        digest.update((byte) (bytes.length >>> 24));
+        digest.update((byte) (bytes.length >>> 16));
+        digest.update((byte) (bytes.length >>> 8));
+        digest.update((byte) bytes.length);
+        digest.update(bytes);
+    }
+}
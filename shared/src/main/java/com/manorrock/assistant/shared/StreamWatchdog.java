@@ -0,0 +1,125 @@
+package com.manorrock.assistant.shared;
+
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Fails a streamed answer that stops coming in.
+ *
+ * <p>
+ * A stream gets {@link LlmConfiguration#firstTokenTimeout()} from the moment
+ * the request was sent for its first token, so a large model can take its
+ * time to load and read the prompt, and then
+ * {@link LlmConfiguration#idleTimeout()} between tokens, so a stream whose
+ * host died is caught within seconds however long the answer is.
+ * </p>
+ *
+ * <p>
+ * No thread waits per stream. The first token moves the check to the idle
+ * timeout, later tokens only move the deadline forward. All streams share a
+ * single timer thread whose check wakes up at the old deadline and sleeps
+ * again for whatever is left, so a stream that keeps coming in costs one
+ * wake-up per idle timeout.
+ * </p>
+ */
+public final class StreamWatchdog {
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "stream-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Duration firstTokenTimeout;
+
+    private final Duration idleTimeout;
+
+    private final Consumer<HttpTimeoutException> onTimeout;
+
+    private volatile long deadline;
+
+    private volatile boolean streaming;
+
+    private volatile boolean stopped;
+
+    private ScheduledFuture<?> check;
+
+    private StreamWatchdog(long sentNanos, Duration firstTokenTimeout, Duration idleTimeout,
+            Consumer<HttpTimeoutException> onTimeout) {
+        this.firstTokenTimeout = firstTokenTimeout;
+        this.idleTimeout = idleTimeout;
+        this.onTimeout = onTimeout;
+        this.deadline = sentNanos + firstTokenTimeout.toNanos();
+    }
+
+    /**
+     * Starts watching a stream.
+     *
+     * @param sentNanos when the request was sent, from {@link System#nanoTime()}
+     * @param firstTokenTimeout how long to wait for the first token
+     * @param idleTimeout how long to wait for each later token
+     * @param onTimeout called once, on the timer thread, when a deadline
+     * passes before {@link #stop()}
+     * @return the watchdog
+     */
+    public static StreamWatchdog start(long sentNanos, Duration firstTokenTimeout, Duration idleTimeout,
+            Consumer<HttpTimeoutException> onTimeout) {
+        StreamWatchdog watchdog = new StreamWatchdog(sentNanos, firstTokenTimeout, idleTimeout, onTimeout);
+        watchdog.schedule(watchdog.deadline - System.nanoTime());
+        return watchdog;
+    }
+
+    /**
+     * Records a token, or any other sign of life of the stream.
+     */
+    public void activity() {
+        deadline = System.nanoTime() + idleTimeout.toNanos();
+        if (!streaming) {
+            // the pending check waits for the first token timeout, which is
+            // usually much longer than the idle timeout
+            streaming = true;
+            schedule(idleTimeout.toNanos());
+        }
+    }
+
+    /**
+     * Stops watching, e.g. when the stream completed or failed.
+     */
+    public void stop() {
+        stopped = true;
+        synchronized (this) {
+            if (check != null) {
+                check.cancel(false);
+            }
+        }
+    }
+
+    private synchronized void schedule(long delayNanos) {
+        if (check != null) {
+            check.cancel(false);
+        }
+        if (!stopped) {
+            check = SCHEDULER.schedule(this::check, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void check() {
+        if (stopped) {
+            return;
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining > 0) {
+            schedule(remaining);
+            return;
+        }
+        stopped = true;
+        onTimeout.accept(new HttpTimeoutException(streaming
+                ? "No token for " + idleTimeout.toSeconds() + " s"
+                : "No first token within " + firstTokenTimeout.toSeconds() + " s"));
+    }
+}